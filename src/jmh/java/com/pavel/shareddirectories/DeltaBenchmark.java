@@ -0,0 +1,133 @@
+package com.pavel.shareddirectories;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Передача измененного файла в виде разницы {@link DeltaTransfer}: вычисление сигнатур прежней версии, разницы новой
+ * версии и сборка файла из разницы. Вспомогательный счетчик sent - байты сигнатур и разницы, full - байты передачи
+ * файла целиком; отношение их скоростей показывает долю трафика, которую сберегает разница.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DeltaBenchmark {
+    /** изменен один байт в середине файла */
+    private static final String ONE_BYTE = "oneByte";
+    /** в конец файла дописан 1 КБ */
+    private static final String APPENDED = "appended";
+    /** в первую треть файла вставлено 100 байт */
+    private static final String INSERTED = "inserted";
+    /** изменено 10 байт в случайных местах */
+    private static final String SCATTERED = "scattered";
+    /** файл полностью перезаписан */
+    private static final String REWRITTEN = "rewritten";
+
+    @Param({ONE_BYTE, APPENDED, INSERTED, SCATTERED, REWRITTEN})
+    public String scenario;
+
+    @Param({"64"})
+    public int sizeMb;
+
+    private File root;
+    private File baseFile;
+    private File modifiedFile;
+    private File rebuiltFile;
+
+    /** Счетчики переданных байт текущего потока */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Transferred {
+        public long sent;
+        public long full;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("delta-benchmark").toFile();
+        baseFile = new File(root, "base");
+        modifiedFile = new File(root, "modified");
+        rebuiltFile = new File(root, "rebuilt");
+        Random random = new Random(42);
+        byte[] original = new byte[sizeMb << 20];
+        random.nextBytes(original);
+        Files.write(baseFile.toPath(), original);
+        byte[] modified = modify(original, random);
+        Files.write(modifiedFile.toPath(), modified);
+        transfer(new Transferred());
+        if (!Arrays.equals(modified, Files.readAllBytes(rebuiltFile.toPath()))) {
+            throw new IllegalStateException("Rebuilt file differs in scenario " + scenario);
+        }
+    }
+
+    /** @return новая версия файла для {@link #scenario} */
+    private byte[] modify(byte[] original, Random random) {
+        switch (scenario) {
+            case ONE_BYTE:
+                byte[] oneByte = original.clone();
+                oneByte[oneByte.length / 2] ^= 1;
+                return oneByte;
+            case APPENDED:
+                byte[] tail = new byte[1024];
+                random.nextBytes(tail);
+                byte[] appended = Arrays.copyOf(original, original.length + tail.length);
+                System.arraycopy(tail, 0, appended, original.length, tail.length);
+                return appended;
+            case INSERTED:
+                byte[] inserted = new byte[original.length + 100];
+                System.arraycopy(original, 0, inserted, 0, original.length / 3);
+                System.arraycopy(original, original.length / 3, inserted, original.length / 3 + 100,
+                        original.length - original.length / 3);
+                return inserted;
+            case SCATTERED:
+                byte[] scattered = original.clone();
+                for (int i = 0; i < 10; i++) {
+                    scattered[random.nextInt(scattered.length)] ^= 0x5a;
+                }
+                return scattered;
+            case REWRITTEN:
+                byte[] rewritten = new byte[original.length];
+                random.nextBytes(rewritten);
+                return rewritten;
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    /** передает сигнатуры прежней версии, разницу новой версии и собирает из нее файл */
+    @Benchmark
+    public byte[] transfer(Transferred transferred) throws IOException {
+        ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+        DeltaTransfer.computeSignatures(baseFile).write(new DataOutputStream(signatureBytes));
+        DeltaTransfer.Signatures signatures = DeltaTransfer.Signatures.read(
+                new DataInputStream(new ByteArrayInputStream(signatureBytes.toByteArray())));
+        ByteArrayOutputStream deltaBytes = new ByteArrayOutputStream();
+        DataOutputStream deltaOut = new DataOutputStream(deltaBytes);
+        long length = modifiedFile.length();
+        DeltaTransfer.writeDelta(modifiedFile, length, signatures, deltaOut);
+        deltaOut.flush();
+        byte[] hash = DeltaTransfer.applyDelta(new DataInputStream(new ByteArrayInputStream(deltaBytes.toByteArray())),
+                baseFile, signatures, rebuiltFile, length);
+        transferred.sent += signatureBytes.size() + deltaBytes.size();
+        transferred.full += length + 8;
+        return hash;
+    }
+}
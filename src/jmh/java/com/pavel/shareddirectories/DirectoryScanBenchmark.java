@@ -0,0 +1,73 @@
+package com.pavel.shareddirectories;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Полная проверка неизмененной директории на диске: параллельный обход {@link DirectoryScan} отдельно и вместе со
+ * сравнением каждого файла с {@link DirectoryIndex} в {@link Monitor#classifyAll(Set, Set, Set)}. Дерево создается один
+ * раз на запуск, проверку дерева с изменениями измеряет {@link IndexDiffBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryScanBenchmark {
+    /** количество файлов в одной директории */
+    private static final int FILES_PER_DIRECTORY = 500;
+
+    @Param({"1000", "100000"})
+    public int files;
+
+    private File root;
+    private DirectoryIndex index;
+    private Monitor monitor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("scan-benchmark").toFile();
+        index = DirectoryIndex.inMemory(root);
+        monitor = new Monitor(index, null, root, new PathLocks(64), new SharedDirSettings(), new SyncMetrics());
+        byte[] content = new byte[128];
+        for (int i = 0; i < files; i++) {
+            File directory = new File(root, "d" + i / FILES_PER_DIRECTORY);
+            if (i % FILES_PER_DIRECTORY == 0) {
+                Files.createDirectory(directory.toPath());
+                index.put(directory, DirectoryIndex.DIRECTORY_LENGTH, 0, null);
+            }
+            File file = new File(directory, "f" + i);
+            Files.write(file.toPath(), content);
+            index.put(file, file.length(), file.lastModified(), null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    /** обходит дерево без сравнения с индексом */
+    @Benchmark
+    public long scan() {
+        LongAdder found = new LongAdder();
+        DirectoryScan.scan(root, element -> found.increment());
+        return found.sum();
+    }
+
+    /** обходит дерево и сравнивает каждый файл и директорию с индексом */
+    @Benchmark
+    public int scanAndDiff() {
+        Set<File> changed = ConcurrentHashMap.newKeySet();
+        monitor.classifyAll(changed, changed, changed);
+        return changed.size();
+    }
+}
@@ -0,0 +1,103 @@
+package com.pavel.shareddirectories;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** Полная проверка директории {@link Monitor#classifyAll(Set, Set, Set)}: обход дерева на диске и сравнение каждого
+ * файла с {@link DirectoryIndex}, а также запись подтвержденных изменений в индекс. Между проверками удалена, создана и
+ * изменена небольшая доля файлов. Дерево создается один раз на запуск, для миллиона файлов это занимает несколько
+ * минут; стоимость обхода неизмененного дерева отдельно измеряет {@link DirectoryScanBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexDiffBenchmark {
+    /** количество файлов в одной директории */
+    private static final int FILES_PER_DIRECTORY = 1000;
+    /** время изменения удаленных файлов в индексе */
+    private static final long BASE_TIME = 1_500_000_000_000L;
+    /** каждый CHANGE_STEP-й файл удален, создан заново или изменен между проверками */
+    private static final int CHANGE_STEP = 200;
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    private File root;
+    private DirectoryIndex index;
+    private Monitor monitor;
+    /** измененные файлы, которые записываются в индекс после подтверждения */
+    private List<File> changed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("diff-benchmark").toFile();
+        index = DirectoryIndex.inMemory(root);
+        monitor = new Monitor(index, null, root, new PathLocks(64), new SharedDirSettings(), new SyncMetrics());
+        changed = new ArrayList<>();
+        for (int i = 0; i < entries; i++) {
+            File directory = new File(root, "d" + i / FILES_PER_DIRECTORY);
+            if (i % FILES_PER_DIRECTORY == 0) {
+                Files.createDirectory(directory.toPath());
+                index.put(directory, DirectoryIndex.DIRECTORY_LENGTH, 0, null);
+            }
+            File file = new File(directory, "f" + i);
+            switch (i % CHANGE_STEP) {
+                case 0:
+                    index.put(file, 0, BASE_TIME, null);
+                    break;
+                case 1:
+                    Files.createFile(file.toPath());
+                    index.put(file, file.length(), file.lastModified(), null);
+                    Files.createFile(new File(directory, "new" + i).toPath());
+                    break;
+                case 2:
+                    Files.createFile(file.toPath());
+                    index.put(file, file.length(), file.lastModified() - 1000, null);
+                    changed.add(file);
+                    break;
+                default:
+                    Files.createFile(file.toPath());
+                    index.put(file, file.length(), file.lastModified(), null);
+                    break;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(root);
+    }
+
+    /** классифицирует файлы директории на новые, измененные и удаленные */
+    @Benchmark
+    public void diff(Blackhole blackhole) {
+        Set<File> filesToCreate = ConcurrentHashMap.newKeySet();
+        Set<File> filesToModify = ConcurrentHashMap.newKeySet();
+        Set<File> filesToDelete = ConcurrentHashMap.newKeySet();
+        blackhole.consume(monitor.classifyAll(filesToCreate, filesToModify, filesToDelete));
+        blackhole.consume(filesToCreate);
+        blackhole.consume(filesToModify);
+        blackhole.consume(filesToDelete);
+    }
+
+    /** записывает в индекс подтвержденные изменения файлов */
+    @Benchmark
+    public void applyChanges() {
+        for (File file : changed) {
+            index.put(file, file.length(), file.lastModified(), null);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.pavel.shareddirectories;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/** Стоимость записи значений в горячем пути передачи: {@link LatencyHistogram} и учет байт неограниченным
+ * {@link TrafficShaper.Throttle}. С профилировщиком -prof gc показатель gc.alloc.rate.norm должен быть равен нулю.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final TrafficShaper.Throttle throttle = new TrafficShaper().sendThrottle();
+
+    /** Записываемое значение текущего потока */
+    @State(Scope.Thread)
+    public static class Sample {
+        private long nanos;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordLatency(Sample sample) {
+        histogram.record(sample.nanos++ & 0xfffffff);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void acquireUnlimited() throws InterruptedIOException {
+        throttle.acquire(TrafficShaper.CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,94 @@
+package com.pavel.shareddirectories;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Передача файла от {@link SocketChangesSender} или {@link SessionChangesSender} к {@link SocketReceiver} через
+ * loopback: каждая операция отправляет измененный файл и дожидается подтверждения сервера. Количество переданных байт
+ * выводится вспомогательным счетчиком bytes, его скорость - пропускная способность передачи.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+    /** время ожидания запуска сервера, в милисекундах */
+    private static final long SERVER_START_MS = 10000;
+
+    @Param({SharedDirSettings.CONNECTION_ONESHOT, SharedDirSettings.CONNECTION_SESSION})
+    public String connection;
+
+    @Param({"4096", "67108864"})
+    public int fileLength;
+
+    private File root;
+    private File file;
+    private ChangesReceiverServer server;
+    private ChangesSender sender;
+
+    /** Счетчик переданных байт текущего потока */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Transferred {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("transfer-benchmark").toFile();
+        File senderPath = new File(root, "sender");
+        File receiverPath = new File(root, "receiver");
+        File downloadPath = new File(receiverPath, ".download");
+        if (!senderPath.mkdir() || !downloadPath.mkdirs()) {
+            throw new IOException("Cannot create benchmark directories");
+        }
+        file = new File(senderPath, "file");
+        byte[] content = new byte[fileLength];
+        new Random(42).nextBytes(content);
+        Files.write(file.toPath(), content);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        SyncMetrics metrics = new SyncMetrics();
+        server = new SocketReceiverServer(new SocketReceiver(DirectoryIndex.inMemory(receiverPath), receiverPath,
+                downloadPath, new PathLocks(64), metrics), port, 4);
+        server.start();
+        sender = SharedDirSettings.CONNECTION_SESSION.equals(connection)
+                ? new SessionChangesSender(senderPath, "localhost", port, 16, 0, 0, false, new TrafficShaper(),
+                metrics)
+                : new SocketChangesSender(senderPath, "localhost", port, 0, 0, new TrafficShaper(), metrics);
+        long deadline = System.currentTimeMillis() + SERVER_START_MS;
+        while (!sender.sendNew(file)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Benchmark server did not start");
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        server.close(1000);
+        FileUtils.deleteQuietly(root);
+    }
+
+    @Benchmark
+    public boolean sendModify(Transferred transferred) {
+        boolean success = sender.sendModify(file);
+        if (success) {
+            transferred.bytes += fileLength;
+        }
+        return success;
+    }
+}
@@ -0,0 +1,73 @@
+package com.pavel.shareddirectories;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/** Вариант {@link ChangesReceiver} для неблокирующего сервера: операцию разбирает сам сервер, а получатель только
+ * выполняет действия с файлами. Методы вызываются из потоков записи на диск, части содержимого одного файла передаются
+ * строго по порядку.
+ */
+public interface AsyncChangesReceiver {
+
+    /**Начинает получение файла
+     * @param name путь файла относительно синхронизируемой директории
+     * @param length размер файла, указанный отправителем
+     * @return получаемый файл, или null если файл не может быть получен (содержимое при этом пропускается)
+     * @throws IOException если временный файл не удалось создать
+     */
+    Upload startFile(String name, long length) throws IOException;
+
+    /**Записывает очередную часть содержимого файла
+     * @param upload получаемый файл
+     * @param content часть содержимого, после вызова полностью прочитана
+     * @throws IOException if I/O errors occurred
+     */
+    void writeContent(Upload upload, ByteBuffer content) throws IOException;
+
+    /**Заменяет файл полностью полученным содержимым
+     * @param upload получаемый файл
+     * @param expectedHash MD5 содержимого, вычисленный отправителем, null если отправитель его не передал
+     * @return результат получения файла, неудачный в том числе если содержимое не совпало с суммой
+     */
+    ReceiveResult finishFile(Upload upload, byte[] expectedHash);
+
+    /**Прерывает получение файла и удаляет уже полученную часть
+     * @param upload получаемый файл
+     */
+    void abortFile(Upload upload);
+
+    /**Удаляет файл
+     * @param name путь файла относительно синхронизируемой директории
+     * @return результат удаления файла
+     */
+    ReceiveResult deleteFile(String name);
+
+    /**Создает или удаляет поддиректорию
+     * @param name путь директории относительно синхронизируемой директории
+     * @param create true для создания, false для удаления
+     * @return результат операции
+     * @see ChangesReceiver#receiveDirectory(java.io.InputStream, boolean)
+     */
+    ReceiveResult changeDirectory(String name, boolean create);
+
+    /** Состояние получения одного файла */
+    final class Upload {
+        /** путь, по которому будет размещен полученный файл */
+        final File file;
+        /** временный файл, в который записывается содержимое */
+        final File temporaryFile;
+        final FileChannel channel;
+        /** MD5 уже полученного содержимого */
+        final MessageDigest digest;
+
+        Upload(File file, File temporaryFile, FileChannel channel, MessageDigest digest) {
+            this.file = file;
+            this.temporaryFile = temporaryFile;
+            this.channel = channel;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/** Задерживает отправку файлов, запись которых еще продолжается. Файл считается дописанным, когда его размер и время
+ * изменения не меняются в течение периода тишины и на него можно взять разделяемую блокировку, то есть никто не держит
+ * на нем исключительную блокировку записи. Повторные изменения задержанного файла объединяются, и он отправляется один
+ * раз. Файл, который изменяется непрерывно (например, дописываемый журнал), отправляется не реже одного раза за
+ * максимальное время задержки. Используется только потоком монитора.
+ */
+final class ChangeDebouncer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeDebouncer.class);
+    /** минимальный интервал повторной проверки задержанного файла, в милисекундах */
+    private static final long MIN_RECHECK_MS = 100;
+    /** период тишины, в милисекундах, 0 отключает задержку */
+    private final long quietMs;
+    /** максимальное время задержки файла, в милисекундах */
+    private final long maxHoldMs;
+    /** задержанные файлы и их последнее наблюдаемое состояние */
+    private final Map<File, Held> heldFiles = new HashMap<>();
+
+    /**
+     * @param quietMs период тишины, в милисекундах, 0 отключает задержку
+     * @param maxHoldMs максимальное время задержки файла, в милисекундах
+     */
+    ChangeDebouncer(long quietMs, long maxHoldMs) {
+        this.quietMs = quietMs;
+        this.maxHoldMs = maxHoldMs;
+    }
+
+    /**Оставляет в множестве только дописанные файлы, остальные задерживаются до повторной проверки
+     * @param files новые или измененные файлы и директории
+     */
+    void retainStable(Set<File> files) {
+        if (quietMs <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<File> iterator = files.iterator(); iterator.hasNext(); ) {
+            File file = iterator.next();
+            if (!file.isDirectory() && !isStable(file, now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /** забывает задержанный файл, например удаленный */
+    void forget(File file) {
+        heldFiles.remove(file);
+    }
+
+    /** @return количество задержанных файлов */
+    int size() {
+        return heldFiles.size();
+    }
+
+    /** @return время ближайшей повторной проверки задержанного файла, {@link Long#MAX_VALUE} если таких нет */
+    long nextRecheckTime() {
+        long next = Long.MAX_VALUE;
+        for (Held held : heldFiles.values()) {
+            next = Math.min(next, held.recheckTime);
+        }
+        return next;
+    }
+
+    /** @return задержанные файлы, которые пора проверить повторно; до проверки они больше не возвращаются, а
+     * исчезнувшие файлы забываются */
+    Set<File> due() {
+        long now = System.currentTimeMillis();
+        Set<File> due = new HashSet<>();
+        for (Iterator<Map.Entry<File, Held>> iterator = heldFiles.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<File, Held> element = iterator.next();
+            if (element.getValue().recheckTime > now) {
+                continue;
+            }
+            if (element.getKey().exists()) {
+                element.getValue().recheckTime = Long.MAX_VALUE;
+                due.add(element.getKey());
+            } else {
+                iterator.remove();
+            }
+        }
+        return due;
+    }
+
+    private boolean isStable(File file, long now) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Held held = heldFiles.get(file);
+        boolean unchanged = held != null && held.length == length && held.lastModified == lastModified;
+        boolean quiet = now - lastModified >= quietMs || unchanged && now - held.observedTime >= quietMs;
+        if (quiet && canLockShared(file)) {
+            heldFiles.remove(file);
+            return true;
+        }
+        if (held != null && now - held.heldTime >= maxHoldMs) {
+            LOGGER.debug("client sends {} which is still being written", file.getName());
+            heldFiles.remove(file);
+            return true;
+        }
+        long observedTime = unchanged ? held.observedTime : now;
+        long heldTime = held == null ? now : held.heldTime;
+        long recheckTime = Math.max(now + MIN_RECHECK_MS,
+                Math.min(Math.max(lastModified, observedTime) + quietMs, heldTime + maxHoldMs));
+        heldFiles.put(file, new Held(length, lastModified, observedTime, heldTime, recheckTime));
+        if (held == null) {
+            LOGGER.debug("client holds {} until it is written", file.getName());
+        }
+        return false;
+    }
+
+    /** @return true если на файл можно взять разделяемую блокировку или файловая система не поддерживает
+     * блокировки, false если файл открыт другим процессом на запись без совместного доступа */
+    private static boolean canLockShared(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            try (FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true)) {
+                return lock != null;
+            } catch (OverlappingFileLockException | IOException e) {
+                return true;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Состояние задержанного файла */
+    private static final class Held {
+        private final long length;
+        private final long lastModified;
+        /** время, с которого наблюдаются эти размер и время изменения */
+        private final long observedTime;
+        /** время, с которого файл задержан */
+        private final long heldTime;
+        private long recheckTime;
+
+        private Held(long length, long lastModified, long observedTime, long heldTime, long recheckTime) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.observedTime = observedTime;
+            this.heldTime = heldTime;
+            this.recheckTime = recheckTime;
+        }
+    }
+}
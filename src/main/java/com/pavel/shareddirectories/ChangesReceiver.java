@@ -1,13 +1,76 @@
 package com.pavel.shareddirectories;
 
-import java.io.File;
 import java.io.InputStream;
+import java.io.OutputStream;
 
+/** Получатель операций, прочитанных сервером из соединения. Каждая операция завершается {@link ReceiveResult}, в котором
+ * для невыполненной операции указана причина неудачи.
+ */
 public interface ChangesReceiver {
 
-    File receiveToCreate(InputStream in);
+    ReceiveResult receiveToCreate(InputStream in);
 
-    File receiveToMod(InputStream in);
+    ReceiveResult receiveToMod(InputStream in);
 
-    File receiveToDel(InputStream in);
+    ReceiveResult receiveToDel(InputStream in);
+
+    /**Получает новый или измененный файл в сессии, в которой согласовано сжатие ({@link ContentCodec}) или сверка
+     * контрольных сумм ({@link SharedDirService#FEATURE_CHECKSUM}).
+     * @param in поток, из которого читается операция
+     * @param encoded флаг, если true, то содержимое файла передано в формате {@link ContentCodec}
+     * @param checksummed флаг, если true, то за содержимым передан MD5, с которым сверяется полученное содержимое
+     * @return результат получения файла, неудачный в том числе если содержимое не совпало с суммой
+     */
+    ReceiveResult receiveInSession(InputStream in, boolean encoded, boolean checksummed);
+
+    /**Получает кадр {@link SharedDirService#BATCH} с несколькими операциями над маленькими файлами. Содержимое всех
+     * файлов сначала записывается во временные файлы, затем операции применяются за один проход.
+     * @param in поток, из которого читается кадр
+     * @param encoded флаг, если true, то содержимое файлов передано в формате {@link ContentCodec}
+     * @param checksummed флаг, если true, то за содержимым каждого файла передан его MD5; операция, содержимое которой
+     *                    не совпало с суммой, завершается неудачей, не прерывая кадр
+     * @return результаты операций в порядке их следования в кадре, null если кадр не удалось прочитать полностью
+     */
+    ReceiveResult[] receiveBatch(InputStream in, boolean encoded, boolean checksummed);
+
+    /**Получает измененный файл в виде разницы с текущей копией. Перед получением разницы отправляет через out сигнатуры
+     * блоков текущей копии, поэтому используется только на отдельном соединении.
+     * @param in поток, из которого читается операция
+     * @param out поток, в который отправляются сигнатуры блоков
+     * @return результат изменения файла
+     */
+    ReceiveResult receiveToModDelta(InputStream in, OutputStream out);
+
+    /**Получает большой файл частями с возможностью докачки ({@link ResumableTransfer}). Перед получением частей отправляет
+     * через out смещение, с которого продолжается передача, поэтому используется только на отдельном соединении.
+     * @param in поток, из которого читается операция
+     * @param out поток, в который отправляется смещение
+     * @return результат получения файла
+     */
+    ReceiveResult receiveResumable(InputStream in, OutputStream out);
+
+    /**Получает новый файл из файла с тем же содержимым, который уже есть в директории: переименованием для
+     * {@link SharedDirService#RENAME} или копированием для {@link SharedDirService#COPY_FROM}. Содержимое сверяется с
+     * переданной отправителем контрольной суммой.
+     * @param in поток, из которого читается операция
+     * @param move true для переименования, false для копирования
+     * @return результат получения файла, неудачный если файла с таким содержимым нет или произошла ошибка
+     */
+    ReceiveResult receiveCopy(InputStream in, boolean move);
+
+    /**Отвечает на сверку состояния директории ({@link SharedDirService#RECONCILE}) суммами узлов {@link ReconcileTree} и
+     * записями отличающихся листьев. Используется только на отдельном соединении.
+     * @param in поток, из которого читаются запросы
+     * @param out поток, в который отправляются ответы
+     * @return true если сверка завершена, false если формат дерева отличается или соединение было прервано
+     */
+    boolean answerReconcile(InputStream in, OutputStream out);
+
+    /**Создает или удаляет поддиректорию. Удаляется только директория, в которой не осталось файлов.
+     * @param in поток, из которого читается операция
+     * @param create true для {@link SharedDirService#CREATE_DIRECTORY}, false для
+     *               {@link SharedDirService#DELETE_DIRECTORY}
+     * @return результат операции
+     */
+    ReceiveResult receiveDirectory(InputStream in, boolean create);
 }
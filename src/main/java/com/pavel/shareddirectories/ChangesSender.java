@@ -2,6 +2,7 @@ package com.pavel.shareddirectories;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Set;
 
 
 public interface ChangesSender {
@@ -12,5 +13,33 @@ public interface ChangesSender {
 
     boolean sendDelete(File fdel);
 
+    /**Отправляет создание или удаление поддиректории
+     * @param directory путь к директории
+     * @param receiverInstruction {@link SharedDirService#CREATE_DIRECTORY} или
+     *                            {@link SharedDirService#DELETE_DIRECTORY}
+     * @return true если сервер выполнил операцию, false если он отказался или соединение было прервано
+     */
+    boolean sendDirectory(File directory, int receiverInstruction);
+
+    /**Сообщает серверу, что файл совпадает по содержимому с файлом, который уже есть у сервера, поэтому сервер получает
+     * его переименованием или копированием своего файла, без передачи содержимого
+     * @param source файл, содержимое которого есть у сервера
+     * @param target новый файл
+     * @param hash MD5 содержимого нового файла, сервер сверяет с ним свой файл
+     * @param receiverInstruction {@link SharedDirService#RENAME} или {@link SharedDirService#COPY_FROM}
+     * @return true если сервер получил файл, false если он отказался или соединение было прервано
+     */
+    boolean sendCopy(File source, File target, byte[] hash, int receiverInstruction);
+
+    /**Сверяет подтвержденное состояние директории с состоянием сервера по {@link ReconcileTree} и находит файлы, которые
+     * нужно ему отправить
+     * @param index индекс директории
+     * @param filesToCreate множество, в которое добавляются файлы, отсутствующие у сервера
+     * @param filesToModify множество, в которое добавляются файлы, копия которых у сервера устарела
+     * @return false если соединение было прервано и сверку нужно повторить, true если она выполнена или сервер ее не
+     * поддерживает
+     */
+    boolean reconcile(DirectoryIndex index, Set<File> filesToCreate, Set<File> filesToModify);
+
     void close() throws IOException;
 }
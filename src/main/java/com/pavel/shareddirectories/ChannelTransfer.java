@@ -0,0 +1,268 @@
+package com.pavel.shareddirectories;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Передача содержимого файлов между файлом и сокетом без копирования через буферы в куче: при отправке используется
+ * {@link FileChannel#transferTo}, при получении {@link FileChannel#transferFrom}. Заголовки операций по-прежнему
+ * читаются и пишутся через буферизованные потоки поверх того же канала, поэтому формат передачи не меняется. Файлы
+ * меньше {@link #CHANNEL_TRANSFER_THRESHOLD} передаются через буфер потока вместе с заголовками, как и содержимое,
+ * контрольная сумма которого вычисляется при отправке: для нее содержимое все равно читается в память.
+ * <p>Потоки {@link #output(SocketChannel, TrafficShaper.Throttle)} и {@link #input(SocketChannel,
+ * TrafficShaper.Throttle)} обращаются к каналу напрямую, а не через {@link java.net.Socket#getInputStream()}, чтобы
+ * чтение и запись в разных потоках не блокировали друг друга. Все потоки и прямая передача содержимого учитываются в
+ * ограничении скорости соединения {@link TrafficShaper}.
+ */
+final class ChannelTransfer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelTransfer.class);
+    /** минимальный размер содержимого, начиная с которого оно передается напрямую через канал, в байтах */
+    static final long CHANNEL_TRANSFER_THRESHOLD = 1 << 20;
+    /** размер буфера потоков поверх канала, в байтах */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** максимальный объем одного вызова {@link FileChannel#transferFrom}, на который отводится таймаут сокета */
+    private static final long RECEIVE_CHUNK = 8 << 20;
+    /** поток, закрывающий соединения, получение файла по которым не продвигается дольше таймаута сокета */
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "transfer watchdog thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ChannelTransfer() {
+    }
+
+    /**Открывает соединение в блокирующем режиме
+     * @param ipAddress ip адрес удаленного пользователя
+     * @param port порт сервера удаленного пользователя
+     * @param connectTimeoutMs время ожидания установки соединения, 0 - без ограничения
+     * @return канал установленного соединения
+     * @throws IOException если соединение не удалось установить
+     */
+    static SocketChannel connect(String ipAddress, int port, int connectTimeoutMs) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(ipAddress, port), connectTimeoutMs);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**Создает буферизованный поток записи в канал
+     * @param channel канал соединения
+     * @param throttle ограничение скорости отправки по соединению
+     * @return поток, через который содержимое файла можно передать напрямую в канал
+     */
+    static ChannelDataOutput output(SocketChannel channel, TrafficShaper.Throttle throttle) {
+        return new ChannelDataOutput(throttle, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    int limit = buffer.position() + (int) throttle.chunk(buffer.remaining());
+                    ByteBuffer part = (ByteBuffer) buffer.duplicate().limit(limit);
+                    while (part.hasRemaining()) {
+                        channel.write(part);
+                    }
+                    throttle.acquire(limit - buffer.position());
+                    buffer.position(limit);
+                }
+            }
+        });
+    }
+
+    /**Создает буферизованный поток чтения из канала без таймаута чтения. Для соединений, в которых чтение и запись
+     * выполняются по очереди в одном потоке, используется {@link #timedInput(SocketChannel, TrafficShaper.Throttle)}.
+     * @param channel канал соединения
+     * @param throttle ограничение скорости получения по соединению
+     * @return поток, который умеет передавать содержимое файла напрямую из канала
+     */
+    static ChannelDataInput input(SocketChannel channel, TrafficShaper.Throttle throttle) {
+        return new ChannelDataInput(channel, throttle, throttled(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        }, throttle));
+    }
+
+    /**Создает буферизованный поток чтения из канала, учитывающий таймаут сокета
+     * @param channel канал соединения
+     * @param throttle ограничение скорости получения по соединению
+     * @return поток, который умеет передавать содержимое файла напрямую из канала
+     * @throws IOException if I/O errors occurred
+     */
+    static ChannelDataInput timedInput(SocketChannel channel, TrafficShaper.Throttle throttle) throws IOException {
+        return new ChannelDataInput(channel, throttle, throttled(channel.socket().getInputStream(), throttle));
+    }
+
+    /** @return поток, прочитанные из которого байты учитываются в ограничении скорости */
+    private static InputStream throttled(InputStream source, TrafficShaper.Throttle throttle) {
+        return new FilterInputStream(source) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, (int) throttle.chunk(len));
+                if (read > 0) {
+                    throttle.acquire(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**Отправляет содержимое файла после уже записанного в поток заголовка
+     * @param out поток соединения, {@link ChannelDataOutput} для передачи напрямую в канал
+     * @param channel канал соединения, null если соединение не основано на канале
+     * @param file канал отправляемого файла
+     * @param length количество отправляемых байт
+     * @throws IOException если файл был укорочен во время отправки или соединение было прервано
+     */
+    static void sendFile(DataOutputStream out, SocketChannel channel, FileChannel file, long length)
+            throws IOException {
+        sendFile(out, channel, file, length, null);
+    }
+
+    /**Отправляет содержимое файла после уже записанного в поток заголовка, вычисляя контрольную сумму отправленного
+     * @param digest контрольная сумма, которая обновляется отправленными байтами, null - без нее
+     * @see #sendFile(DataOutputStream, SocketChannel, FileChannel, long)
+     */
+    static void sendFile(DataOutputStream out, SocketChannel channel, FileChannel file, long length,
+                         MessageDigest digest) throws IOException {
+        if (digest != null || channel == null || !(out instanceof ChannelDataOutput)
+                || length < CHANNEL_TRANSFER_THRESHOLD) {
+            InputStream content = Channels.newInputStream(file);
+            if (digest != null) {
+                content = new DigestInputStream(content, digest);
+            }
+            if (IOUtils.copyLarge(content, out, 0, length, new byte[BUFFER_SIZE]) != length) {
+                throw new EOFException("File was truncated during sending");
+            }
+            return;
+        }
+        out.flush();
+        TrafficShaper.Throttle throttle = ((ChannelDataOutput) out).throttle;
+        long position = 0;
+        while (position < length) {
+            long transferred = file.transferTo(position, throttle.chunk(length - position), channel);
+            if (transferred <= 0) {
+                throw new EOFException("File was truncated during sending");
+            }
+            throttle.acquire(transferred);
+            position += transferred;
+        }
+        LOGGER.debug("sent {} bytes through channel", length);
+    }
+
+    /** Буферизованный поток записи в канал, в который содержимое файла можно передать напрямую из файла */
+    static final class ChannelDataOutput extends DataOutputStream {
+        private final TrafficShaper.Throttle throttle;
+
+        private ChannelDataOutput(TrafficShaper.Throttle throttle, OutputStream target) {
+            super(new BufferedOutputStream(target, BUFFER_SIZE));
+            this.throttle = throttle;
+        }
+    }
+
+    /** Буферизованный поток чтения из канала, из которого содержимое файла можно передать напрямую в файл */
+    static final class ChannelDataInput extends DataInputStream {
+        private final SocketChannel channel;
+        private final TrafficShaper.Throttle throttle;
+
+        private ChannelDataInput(SocketChannel channel, TrafficShaper.Throttle throttle, InputStream source) {
+            super(new Buffer(source));
+            this.channel = channel;
+            this.throttle = throttle;
+        }
+
+        /**Записывает в файл следующие length байт соединения: сначала уже прочитанные в буфер, затем напрямую из
+         * канала. Если получение не продвигается дольше таймаута сокета, соединение закрывается.
+         * @param target канал файла, в который записывается содержимое с начала
+         * @param length количество получаемых байт
+         * @return количество полученных байт, меньше length если соединение было закрыто отправителем
+         * @throws IOException if I/O errors occurred
+         */
+        long transferTo(FileChannel target, long length) throws IOException {
+            long position = ((Buffer) in).drainTo(target, length);
+            if (position < length && length - position < CHANNEL_TRANSFER_THRESHOLD) {
+                return position + IOUtils.copyLarge(this, Channels.newOutputStream(target.position(position)), 0,
+                        length - position);
+            }
+            int timeoutMs = channel.socket().getSoTimeout();
+            while (position < length) {
+                ScheduledFuture<?> deadline = timeoutMs > 0
+                        ? WATCHDOG.schedule(this::abort, timeoutMs, TimeUnit.MILLISECONDS) : null;
+                long transferred;
+                try {
+                    transferred = target.transferFrom(channel, position,
+                            throttle.chunk(Math.min(RECEIVE_CHUNK, length - position)));
+                } finally {
+                    if (deadline != null) {
+                        deadline.cancel(false);
+                    }
+                }
+                if (transferred <= 0) {
+                    break;
+                }
+                throttle.acquire(transferred);
+                position += transferred;
+            }
+            return position;
+        }
+
+        private void abort() {
+            LOGGER.warn("File receive timed out, closing connection");
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.info("Exception occurred during socket closing", e);
+            }
+        }
+    }
+
+    /** Буфер потока, из которого можно забрать уже прочитанные байты */
+    private static final class Buffer extends BufferedInputStream {
+        private Buffer(InputStream source) {
+            super(source, BUFFER_SIZE);
+        }
+
+        /**Записывает в начало файла байты, уже прочитанные в буфер, но не больше length
+         * @return количество записанных байт
+         */
+        private synchronized long drainTo(FileChannel target, long length) throws IOException {
+            int buffered = (int) Math.min(count - pos, length);
+            ByteBuffer bytes = ByteBuffer.wrap(buf, pos, buffered);
+            long position = 0;
+            while (bytes.hasRemaining()) {
+                position += target.write(bytes, position);
+            }
+            pos += buffered;
+            return position;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.pavel.shareddirectories;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Счетчики сжатия содержимого файлов при отправке */
+public class CompressionStats implements CompressionStatsMBean {
+    /** файлы, содержимое которых отправлено сжатым */
+    private final AtomicLong compressedFiles = new AtomicLong();
+    /** файлы, отправленные без сжатия по расширению, размеру или результату пробного сжатия */
+    private final AtomicLong rawFiles = new AtomicLong();
+    /** размер содержимого до сжатия, в байтах */
+    private final AtomicLong contentBytes = new AtomicLong();
+    /** размер переданного содержимого, в байтах */
+    private final AtomicLong sentBytes = new AtomicLong();
+    /** процессорное время, затраченное на сжатие, в наносекундах */
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    void recordFile(boolean compressed, long content, long sent) {
+        (compressed ? compressedFiles : rawFiles).incrementAndGet();
+        contentBytes.addAndGet(content);
+        sentBytes.addAndGet(sent);
+    }
+
+    void recordCpuTime(long nanos) {
+        cpuNanos.addAndGet(nanos);
+    }
+
+    public long getCompressedFiles() {
+        return compressedFiles.get();
+    }
+
+    public long getRawFiles() {
+        return rawFiles.get();
+    }
+
+    public long getContentBytes() {
+        return contentBytes.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos.get();
+    }
+
+    /** @return отношение размера содержимого к размеру переданных данных, 1 если ничего не передавалось */
+    public double getRatio() {
+        long sent = sentBytes.get();
+        return sent == 0 ? 1 : (double) contentBytes.get() / sent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d compressed, %d raw files, %d -> %d bytes (ratio %.2f), cpu %d ms",
+                getCompressedFiles(), getRawFiles(), getContentBytes(), getSentBytes(), getRatio(),
+                getCpuNanos() / 1_000_000);
+    }
+}
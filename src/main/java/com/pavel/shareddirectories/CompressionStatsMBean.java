@@ -0,0 +1,16 @@
+package com.pavel.shareddirectories;
+
+/** Атрибуты {@link CompressionStats}, доступные через JMX */
+public interface CompressionStatsMBean {
+    long getCompressedFiles();
+
+    long getRawFiles();
+
+    long getContentBytes();
+
+    long getSentBytes();
+
+    long getCpuNanos();
+
+    double getRatio();
+}
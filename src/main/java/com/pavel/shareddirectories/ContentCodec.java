@@ -0,0 +1,238 @@
+package com.pavel.shareddirectories;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Кодирование содержимого файлов в сессиях, в которых согласовано сжатие ({@link #FEATURE_DEFLATE}). После размера
+ * файла передается способ кодирования: {@link #ENCODING_RAW} - содержимое как есть, {@link #ENCODING_CHUNKED} -
+ * последовательность частей по {@link #CHUNK_SIZE} байт исходного содержимого (последняя короче), каждая из которых
+ * передается как тип части, размер и данные: сжатые независимо от других частей или без сжатия, если сжатие не дало
+ * выигрыша.
+ * <p>Файлы с расширениями уже сжатых форматов и маленькие файлы не сжимаются. Для остальных сначала сжимается первая
+ * часть, и если она сжимается плохо, файл целиком отправляется без сжатия, не тратя время процессора на остальные части.
+ */
+final class ContentCodec {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentCodec.class);
+    /** возможность сессии: содержимое файлов передается в формате {@link ContentCodec} со сжатием deflate */
+    static final int FEATURE_DEFLATE = 1;
+    /** содержимое передается как есть */
+    static final byte ENCODING_RAW = 0;
+    /** содержимое передается частями */
+    static final byte ENCODING_CHUNKED = 1;
+    /** часть передается без сжатия */
+    private static final byte CHUNK_STORED = 0;
+    /** часть сжата deflate */
+    private static final byte CHUNK_DEFLATED = 1;
+    /** размер части исходного содержимого, в байтах */
+    static final int CHUNK_SIZE = 1 << 17;
+    /** минимальный размер файла, который имеет смысл сжимать, в байтах */
+    private static final long MIN_COMPRESSED_LENGTH = 512;
+    /** максимальная доля размера сжатой первой части от исходной, при которой файл сжимается */
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    /** расширения файлов, содержимое которых уже сжато */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList("7z", "avi", "br",
+            "bz2", "docx", "gif", "gz", "jar", "jpeg", "jpg", "lz4", "mkv", "mov", "mp3", "mp4", "odt", "ogg", "png",
+            "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst"));
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] raw = new byte[CHUNK_SIZE];
+    private final byte[] packed = new byte[CHUNK_SIZE];
+    private final CompressionStats stats;
+
+    /** @param stats счетчики, в которые записываются результаты сжатия */
+    ContentCodec(CompressionStats stats) {
+        this.stats = stats;
+    }
+
+    /**Отправляет способ кодирования и содержимое файла после уже записанного размера
+     * @param out поток соединения
+     * @param channel канал соединения для передачи несжатого содержимого напрямую из файла
+     * @param file канал отправляемого файла
+     * @param length размер файла, указанный в заголовке
+     * @param name имя файла, по расширению которого принимается решение о сжатии
+     * @param digest контрольная сумма, которая обновляется исходным содержимым до сжатия, null - без нее
+     * @return количество байт, записанных в соединение, вместе со способом кодирования
+     * @throws IOException если файл был укорочен во время отправки или соединение было прервано
+     */
+    long write(DataOutputStream out, SocketChannel channel, FileChannel file, long length, String name,
+               MessageDigest digest) throws IOException {
+        if (length < MIN_COMPRESSED_LENGTH || hasCompressedExtension(name)) {
+            return writeRaw(out, channel, file, length, digest);
+        }
+        int sampleLength = readChunk(file, 0, (int) Math.min(CHUNK_SIZE, length));
+        int sampleCompressed = compress(sampleLength);
+        if (sampleCompressed < 0 || sampleCompressed > sampleLength * MAX_SAMPLE_RATIO) {
+            LOGGER.debug("file {} does not compress well, sending raw", name);
+            return writeRaw(out, channel, file, length, digest);
+        }
+        out.writeByte(ENCODING_CHUNKED);
+        if (digest != null) {
+            digest.update(raw, 0, sampleLength);
+        }
+        long sent = 1 + writeChunk(out, sampleLength, sampleCompressed);
+        for (long position = sampleLength; position < length; ) {
+            int chunkLength = readChunk(file, position, (int) Math.min(CHUNK_SIZE, length - position));
+            if (digest != null) {
+                digest.update(raw, 0, chunkLength);
+            }
+            sent += writeChunk(out, chunkLength, compress(chunkLength));
+            position += chunkLength;
+        }
+        stats.recordFile(true, length, sent);
+        return sent;
+    }
+
+    /** освобождает ресурсы сжатия */
+    void end() {
+        deflater.end();
+    }
+
+    /** @return количество байт, записанных в соединение */
+    private long writeRaw(DataOutputStream out, SocketChannel channel, FileChannel file, long length,
+                          MessageDigest digest) throws IOException {
+        out.writeByte(ENCODING_RAW);
+        ChannelTransfer.sendFile(out, channel, file, length, digest);
+        stats.recordFile(false, length, length + 1);
+        return length + 1;
+    }
+
+    /** читает часть файла в {@link #raw} */
+    private int readChunk(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(raw, 0, length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File was truncated during sending");
+            }
+        }
+        return length;
+    }
+
+    /**Сжимает часть из {@link #raw} в {@link #packed}
+     * @return размер сжатой части, или -1 если сжатая часть не меньше исходной
+     */
+    private int compress(int length) {
+        long started = cpuTime();
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished() && compressed < length) {
+            compressed += deflater.deflate(packed, compressed, length - compressed);
+        }
+        stats.recordCpuTime(cpuTime() - started);
+        return deflater.finished() && compressed < length ? compressed : -1;
+    }
+
+    /** @return количество переданных байт */
+    private int writeChunk(DataOutputStream out, int length, int compressed) throws IOException {
+        if (compressed < 0) {
+            out.writeByte(CHUNK_STORED);
+            out.writeInt(length);
+            out.write(raw, 0, length);
+            return 5 + length;
+        }
+        out.writeByte(CHUNK_DEFLATED);
+        out.writeInt(compressed);
+        out.write(packed, 0, compressed);
+        return 5 + compressed;
+    }
+
+    /**Читает способ кодирования содержимого, переданный после размера файла
+     * @param in поток соединения
+     * @return true если содержимое передается частями ({@link #ENCODING_CHUNKED}), false если как есть
+     * @throws IOException если способ кодирования неизвестен или соединение было прервано
+     */
+    static boolean readEncoding(DataInputStream in) throws IOException {
+        byte encoding = in.readByte();
+        if (encoding != ENCODING_RAW && encoding != ENCODING_CHUNKED) {
+            throw new IOException("Unknown content encoding " + encoding);
+        }
+        return encoding == ENCODING_CHUNKED;
+    }
+
+    /**Получает содержимое файла, переданное частями
+     * @param in поток соединения
+     * @param target поток, в который записывается исходное содержимое
+     * @param length размер файла, указанный отправителем
+     * @throws IOException если содержимое повреждено или соединение было прервано
+     */
+    static void readChunks(DataInputStream in, OutputStream target, long length) throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] packed = new byte[CHUNK_SIZE];
+        byte[] raw = new byte[CHUNK_SIZE];
+        try {
+            for (long remaining = length; remaining > 0; ) {
+                int expected = (int) Math.min(CHUNK_SIZE, remaining);
+                byte type = in.readByte();
+                int chunkLength = in.readInt();
+                if (chunkLength < 0 || chunkLength > CHUNK_SIZE) {
+                    throw new IOException("Wrong content chunk length " + chunkLength);
+                }
+                in.readFully(packed, 0, chunkLength);
+                if (type == CHUNK_STORED && chunkLength == expected) {
+                    target.write(packed, 0, chunkLength);
+                } else if (type == CHUNK_DEFLATED) {
+                    inflater.reset();
+                    inflater.setInput(packed, 0, chunkLength);
+                    int inflated = 0;
+                    while (!inflater.finished() && inflated < expected) {
+                        int read = inflater.inflate(raw, inflated, expected - inflated);
+                        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        inflated += read;
+                    }
+                    if (!inflater.finished() || inflated != expected) {
+                        throw new IOException("Compressed content chunk does not match its length");
+                    }
+                    target.write(raw, 0, inflated);
+                } else {
+                    throw new IOException("Wrong content chunk type " + type);
+                }
+                remaining -= expected;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed content is damaged", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**Пропускает содержимое файла, переданное частями
+     * @param in поток соединения
+     * @param length размер файла, указанный отправителем
+     * @throws IOException если соединение было прервано
+     */
+    static void skipChunks(DataInputStream in, long length) throws IOException {
+        for (long remaining = length; remaining > 0; remaining -= Math.min(CHUNK_SIZE, remaining)) {
+            in.readByte();
+            IOUtils.skipFully(in, in.readInt());
+        }
+    }
+
+    private static boolean hasCompressedExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /** @return процессорное время текущего потока, или время по часам если оно не поддерживается */
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
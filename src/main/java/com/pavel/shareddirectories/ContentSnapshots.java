@@ -0,0 +1,243 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Снимки содержимого файлов, которые {@link FanOutChangesSender} отправляет нескольким удаленным пользователям.
+ * Файл читается с диска один раз, а отправители всех пользователей передают его содержимое из общего буфера, каждый
+ * через свой канал {@link #open(File)} со своей позицией. Снимок существует, пока операцию не выполнят все
+ * пользователи. Снимки делаются только для файлов не больше {@link #MAX_SNAPSHOT_LENGTH} и только пока их общий размер
+ * не превышает заданный объем; остальные файлы отправители читают с диска сами.
+ */
+final class ContentSnapshots {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentSnapshots.class);
+    /** максимальный размер файла, для которого делается снимок, в байтах */
+    static final long MAX_SNAPSHOT_LENGTH = 4 * 1024 * 1024;
+    /** максимальный общий размер снимков, в байтах */
+    private final long capacity;
+    /** размер существующих снимков, в байтах */
+    private final AtomicLong used = new AtomicLong();
+    /** последний снимок каждого файла */
+    private final ConcurrentHashMap<File, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    /** @param capacity максимальный общий размер снимков, в байтах, 0 отключает снимки */
+    ContentSnapshots(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**Читает содержимое файла в общий буфер. Пока снимок не освобожден, {@link #open(File)} возвращает канал чтения
+     * из него.
+     * @param file отправляемый файл
+     * @return снимок, null если файл слишком большой, объем снимков исчерпан или файл не удалось прочитать
+     */
+    Snapshot take(File file) {
+        long length = file.length();
+        if (length > MAX_SNAPSHOT_LENGTH || !file.isFile()) {
+            return null;
+        }
+        if (used.addAndGet(length) > capacity) {
+            used.addAndGet(-length);
+            return null;
+        }
+        ByteBuffer content = ByteBuffer.allocate((int) length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // читается до заполнения буфера или конца файла
+            }
+        } catch (IOException e) {
+            used.addAndGet(-length);
+            LOGGER.debug("cannot take snapshot of {}", file.getName(), e);
+            return null;
+        }
+        content.flip();
+        Snapshot snapshot = new Snapshot(file, content.asReadOnlyBuffer(), length);
+        snapshots.put(file, snapshot);
+        return snapshot;
+    }
+
+    /** освобождает снимок, когда операцию выполнили все пользователи */
+    void release(Snapshot snapshot) {
+        if (snapshot != null) {
+            snapshots.remove(snapshot.file, snapshot);
+            used.addAndGet(-snapshot.reserved);
+        }
+    }
+
+    /**Открывает содержимое отправляемого файла
+     * @param file отправляемый файл
+     * @return канал чтения из снимка файла, если он есть, иначе канал чтения файла с диска
+     * @throws IOException если снимка нет и файл не удалось открыть
+     */
+    FileChannel open(File file) throws IOException {
+        Snapshot snapshot = snapshots.get(file);
+        if (snapshot == null) {
+            return new FileInputStream(file).getChannel();
+        }
+        return new SnapshotChannel(snapshot.content.duplicate());
+    }
+
+    /** Содержимое файла, прочитанное для отправки нескольким пользователям */
+    static final class Snapshot {
+        private final File file;
+        private final ByteBuffer content;
+        /** размер, учтенный в {@link #used} */
+        private final long reserved;
+
+        private Snapshot(File file, ByteBuffer content, long reserved) {
+            this.file = file;
+            this.content = content;
+            this.reserved = reserved;
+        }
+    }
+
+    /** Канал только для чтения из общего буфера снимка, у каждого отправителя своя позиция */
+    private static final class SnapshotChannel extends FileChannel {
+        private final ByteBuffer content;
+        private long position;
+
+        private SnapshotChannel(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) {
+            int read = read(dst, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized long read(ByteBuffer[] dsts, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int read = read(dsts[i]);
+                if (read < 0) {
+                    return total == 0 ? -1 : total;
+                }
+                total += read;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            if (position >= content.limit()) {
+                return -1;
+            }
+            ByteBuffer source = slice(position, dst.remaining());
+            int read = source.remaining();
+            dst.put(source);
+            return read;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position >= content.limit()) {
+                return 0;
+            }
+            ByteBuffer source = slice(position, count);
+            long transferred = 0;
+            while (source.hasRemaining()) {
+                int written = target.write(source);
+                if (written <= 0) {
+                    break;
+                }
+                transferred += written;
+            }
+            return transferred;
+        }
+
+        @Override
+        public synchronized long position() {
+            return position;
+        }
+
+        @Override
+        public synchronized FileChannel position(long newPosition) {
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return content.limit();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            // снимок не записывается
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException("Snapshot cannot be mapped");
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Snapshot cannot be locked");
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException("Snapshot cannot be locked");
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            // буфер освобождается вместе со снимком
+        }
+
+        /** @return часть общего буфера начиная с позиции, не длиннее count */
+        private ByteBuffer slice(long position, long count) {
+            ByteBuffer source = content.duplicate();
+            source.position((int) position);
+            source.limit((int) Math.min(content.limit(), position + count));
+            return source;
+        }
+    }
+}
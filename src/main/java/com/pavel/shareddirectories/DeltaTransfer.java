@@ -0,0 +1,386 @@
+package com.pavel.shareddirectories;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Передача измененного файла в виде разницы с копией получателя по алгоритму rsync. Получатель описывает свою копию
+ * сигнатурами блоков (слабая скользящая контрольная сумма и MD5), отправитель проходит по новой версии файла окном
+ * размером в блок и передает ссылки на совпавшие блоки и байты, для которых совпадений не нашлось. Получатель собирает
+ * из них новую версию файла и сверяет ее с контрольной суммой всего файла, вычисленной отправителем.
+ */
+public class DeltaTransfer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeltaTransfer.class);
+    /** минимальный размер блока, в байтах */
+    private static final int MIN_BLOCK_SIZE = 2048;
+    /** максимальный размер блока, в байтах */
+    private static final int MAX_BLOCK_SIZE = 1 << 17;
+    /** максимальная длина одного фрагмента новых байтов */
+    private static final int MAX_LITERAL = 1 << 16;
+    /** длина MD5 в байтах */
+    private static final int STRONG_HASH_LENGTH = 16;
+    /** команда завершения разницы, за ней следует MD5 всего файла */
+    private static final byte END = 0;
+    /** команда передачи новых байтов: длина и сами байты */
+    private static final byte LITERAL = 1;
+    /** команда копирования последовательных блоков из копии получателя: номер первого блока и количество */
+    private static final byte COPY = 2;
+
+    private DeltaTransfer() {
+    }
+
+    /**Вычисляет сигнатуры блоков файла получателя. Размер блока выбирается около корня из размера файла, неполный
+     * последний блок не описывается и при необходимости передается отправителем целиком.
+     * @param base текущая копия файла, может не существовать
+     * @return сигнатуры блоков
+     * @throws IOException if I/O errors occurred
+     */
+    public static Signatures computeSignatures(File base) throws IOException {
+        long length = base.isFile() ? base.length() : 0;
+        int blockSize = (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt(length)));
+        int count = (int) (length / blockSize);
+        Signatures signatures = new Signatures(blockSize, count);
+        if (count > 0) {
+            MessageDigest digest = md5();
+            byte[] block = new byte[blockSize];
+            try (InputStream in = new BufferedInputStream(new FileInputStream(base))) {
+                for (int i = 0; i < count; i++) {
+                    IOUtils.readFully(in, block);
+                    signatures.set(i, weakChecksum(block, 0, blockSize), digest.digest(block));
+                }
+            }
+        }
+        return signatures;
+    }
+
+    /**Передает разницу между файлом и копией получателя, описанной сигнатурами
+     * @param file новая версия файла
+     * @param length размер файла, объявленный получателю; передается ровно столько байтов
+     * @param signatures сигнатуры блоков копии получателя
+     * @param out поток, в который записывается разница
+     * @return количество байт разницы, записанных в поток
+     * @throws IOException if I/O errors occurred
+     */
+    public static long writeDelta(File file, long length, Signatures signatures, DataOutputStream out)
+            throws IOException {
+        MessageDigest fileDigest = md5();
+        MessageDigest blockDigest = md5();
+        int blockSize = signatures.blockSize;
+        DeltaWriter writer = new DeltaWriter(out);
+        byte[] buf = new byte[Math.max(4 * blockSize, 1 << 18)];
+        try (InputStream in = new DigestInputStream(new BoundedInputStream(new FileInputStream(file), length),
+                fileDigest)) {
+            int limit = fill(in, buf, 0);
+            boolean eof = limit < buf.length;
+            int start = 0;
+            int literalStart = 0;
+            if (signatures.count > 0) {
+                boolean haveWeak = false;
+                int a = 0;
+                int b = 0;
+                while (true) {
+                    if (start + blockSize >= limit && !eof) {
+                        writer.literal(buf, literalStart, start - literalStart);
+                        int remaining = limit - start;
+                        System.arraycopy(buf, start, buf, 0, remaining);
+                        limit = fill(in, buf, remaining);
+                        eof = limit < buf.length;
+                        start = 0;
+                        literalStart = 0;
+                        continue;
+                    }
+                    if (start + blockSize > limit) {
+                        break;
+                    }
+                    if (!haveWeak) {
+                        a = 0;
+                        b = 0;
+                        for (int i = 0; i < blockSize; i++) {
+                            int x = buf[start + i] & 0xff;
+                            a += x;
+                            b += (blockSize - i) * x;
+                        }
+                        a &= 0xffff;
+                        b &= 0xffff;
+                        haveWeak = true;
+                    }
+                    int match = signatures.find(a | (b << 16), buf, start, blockDigest);
+                    if (match >= 0) {
+                        writer.literal(buf, literalStart, start - literalStart);
+                        writer.copy(match);
+                        start += blockSize;
+                        literalStart = start;
+                        haveWeak = false;
+                        continue;
+                    }
+                    if (start + blockSize == limit) {
+                        break;
+                    }
+                    int removed = buf[start] & 0xff;
+                    int added = buf[start + blockSize] & 0xff;
+                    a = (a - removed + added) & 0xffff;
+                    b = (b - blockSize * removed + a) & 0xffff;
+                    start++;
+                    if (start - literalStart >= MAX_LITERAL) {
+                        writer.literal(buf, literalStart, start - literalStart);
+                        literalStart = start;
+                    }
+                }
+            }
+            writer.literal(buf, literalStart, limit - literalStart);
+            while (!eof) {
+                limit = fill(in, buf, 0);
+                eof = limit < buf.length;
+                writer.literal(buf, 0, limit);
+            }
+        }
+        writer.end(fileDigest.digest());
+        LOGGER.debug("delta of {}: {} literal bytes, {} blocks copied", file.getName(), writer.literalBytes,
+                writer.copiedBlocks);
+        return writer.written;
+    }
+
+    /**Собирает новую версию файла из разницы и копии получателя
+     * @param in поток, из которого читается разница
+     * @param base текущая копия файла, по которой вычислены сигнатуры
+     * @param signatures сигнатуры, отправленные отправителю
+     * @param target файл, в который записывается новая версия
+     * @param length размер новой версии, объявленный отправителем
+     * @return MD5 собранного файла
+     * @throws IOException если разница некорректна или собранный файл не совпадает с файлом отправителя
+     */
+    public static byte[] applyDelta(DataInputStream in, File base, Signatures signatures, File target, long length)
+            throws IOException {
+        MessageDigest digest = md5();
+        int blockSize = signatures.blockSize;
+        byte[] buf = new byte[Math.max(blockSize, MAX_LITERAL)];
+        long written = 0;
+        byte[] expected = new byte[STRONG_HASH_LENGTH];
+        try (RandomAccessFile baseFile = signatures.count > 0 ? new RandomAccessFile(base, "r") : null;
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            while (true) {
+                byte command = in.readByte();
+                if (command == END) {
+                    in.readFully(expected);
+                    break;
+                } else if (command == LITERAL) {
+                    int literalLength = in.readInt();
+                    if (literalLength < 0 || written + literalLength > length) {
+                        throw new IOException("Delta literal exceeds announced file length");
+                    }
+                    for (int remaining = literalLength; remaining > 0; ) {
+                        int chunk = Math.min(remaining, buf.length);
+                        in.readFully(buf, 0, chunk);
+                        out.write(buf, 0, chunk);
+                        digest.update(buf, 0, chunk);
+                        remaining -= chunk;
+                    }
+                    written += literalLength;
+                } else if (command == COPY) {
+                    int first = in.readInt();
+                    int count = in.readInt();
+                    if (first < 0 || count <= 0 || (long) first + count > signatures.count
+                            || written + (long) count * blockSize > length) {
+                        throw new IOException("Delta refers to missing blocks");
+                    }
+                    baseFile.seek((long) first * blockSize);
+                    for (int i = 0; i < count; i++) {
+                        baseFile.readFully(buf, 0, blockSize);
+                        out.write(buf, 0, blockSize);
+                        digest.update(buf, 0, blockSize);
+                    }
+                    written += (long) count * blockSize;
+                } else {
+                    throw new IOException("Unknown delta command " + command);
+                }
+            }
+        }
+        if (written != length) {
+            throw new IOException("File was not received full");
+        }
+        if (!MessageDigest.isEqual(expected, digest.digest())) {
+            throw new IOException("Rebuilt file does not match the sender's checksum");
+        }
+        return expected;
+    }
+
+    /** слабая контрольная сумма блока, совпадающая со скользящей суммой в {@link #writeDelta} */
+    static int weakChecksum(byte[] buf, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = buf[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    /** читает поток, пока буфер не заполнится или поток не закончится, и возвращает новую границу данных в буфере */
+    private static int fill(InputStream in, byte[] buf, int offset) throws IOException {
+        int read;
+        while (offset < buf.length && (read = in.read(buf, offset, buf.length - offset)) != -1) {
+            offset += read;
+        }
+        return offset;
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /** Сигнатуры блоков копии файла у получателя */
+    public static final class Signatures {
+        /** размер блока, в байтах */
+        private final int blockSize;
+        /** количество полных блоков */
+        private final int count;
+        private final int[] weak;
+        private final byte[][] strong;
+        /** номера блоков по слабой контрольной сумме, строится при чтении на стороне отправителя */
+        private Map<Integer, List<Integer>> blocksByWeak;
+
+        private Signatures(int blockSize, int count) {
+            this.blockSize = blockSize;
+            this.count = count;
+            this.weak = new int[count];
+            this.strong = new byte[count][];
+        }
+
+        private void set(int block, int weakChecksum, byte[] strongHash) {
+            weak[block] = weakChecksum;
+            strong[block] = strongHash;
+        }
+
+        /**записывает сигнатуры в поток
+         * @param out поток, в который записываются сигнатуры
+         * @throws IOException if I/O errors occurred
+         */
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(blockSize);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(weak[i]);
+                out.write(strong[i]);
+            }
+        }
+
+        /**читает сигнатуры из потока
+         * @param in поток, из которого читаются сигнатуры
+         * @return сигнатуры блоков
+         * @throws IOException если данные некорректны
+         */
+        public static Signatures read(DataInputStream in) throws IOException {
+            int blockSize = in.readInt();
+            int count = in.readInt();
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || count < 0) {
+                throw new IOException("Wrong block signatures header");
+            }
+            Signatures signatures = new Signatures(blockSize, count);
+            signatures.blocksByWeak = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                byte[] strongHash = new byte[STRONG_HASH_LENGTH];
+                int weakChecksum = in.readInt();
+                in.readFully(strongHash);
+                signatures.set(i, weakChecksum, strongHash);
+                signatures.blocksByWeak.computeIfAbsent(weakChecksum, k -> new ArrayList<>(1)).add(i);
+            }
+            return signatures;
+        }
+
+        /**ищет блок копии получателя, совпадающий с окном
+         * @return номер блока, или -1 если совпадения нет
+         */
+        private int find(int weakChecksum, byte[] buf, int offset, MessageDigest digest) {
+            List<Integer> candidates = blocksByWeak.get(weakChecksum);
+            if (candidates == null) {
+                return -1;
+            }
+            digest.update(buf, offset, blockSize);
+            byte[] strongHash = digest.digest();
+            for (int block : candidates) {
+                if (MessageDigest.isEqual(strongHash, strong[block])) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /** Записывает команды разницы, объединяя ссылки на последовательные блоки в одну команду */
+    private static final class DeltaWriter {
+        private final DataOutputStream out;
+        private int copyFirst;
+        private int copyCount;
+        private long literalBytes;
+        private long copiedBlocks;
+        /** количество записанных в поток байт */
+        private long written;
+
+        private DeltaWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void literal(byte[] buf, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            flushCopy();
+            out.writeByte(LITERAL);
+            out.writeInt(length);
+            out.write(buf, offset, length);
+            literalBytes += length;
+            written += 5 + length;
+        }
+
+        private void copy(int block) throws IOException {
+            if (copyCount > 0 && block == copyFirst + copyCount) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyFirst = block;
+                copyCount = 1;
+            }
+            copiedBlocks++;
+        }
+
+        private void end(byte[] fileHash) throws IOException {
+            flushCopy();
+            out.writeByte(END);
+            out.write(fileHash);
+            written += 1 + fileHash.length;
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount > 0) {
+                out.writeByte(COPY);
+                out.writeInt(copyFirst);
+                out.writeInt(copyCount);
+                copyCount = 0;
+                written += 9;
+            }
+        }
+    }
+}
@@ -0,0 +1,597 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/** Подтвержденное состояние директории: размер, время изменения и контрольная сумма содержимого каждого
+ * синхронизированного файла, а также синхронизированные поддиректории. Состояние хранится на диске в виде снимка и журнала изменений, дописываемого после каждого
+ * изменения индекса, поэтому после перезапуска сервиса индекс восстанавливается без повторной передачи файлов, а
+ * изменения, сделанные пока сервис был остановлен, находятся сравнением индекса с директорией.
+ * <p>Записи индекса неизменяемы и заменяются целиком, поэтому читаются без синхронизации. Каждое изменение индекса
+ * получает следующий номер версии, а запись помнит версию, которой она создана, что позволяет записать результат
+ * отправки только если файл не был заменен полученным от удаленного пользователя. Для пути, исключенного из индекса,
+ * помнится версия исключения, поэтому путь, который за время отправки был создан и снова удален, не считается
+ * неизменным. Версии не сохраняются на диск.
+ */
+public class DirectoryIndex implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryIndex.class);
+    /** признак файла снимка индекса */
+    private static final int SNAPSHOT_MAGIC = 0x53444958;
+    /** версия формата снимка и журнала */
+    private static final int FORMAT_VERSION = 1;
+    /** запись журнала о добавлении или изменении файла */
+    private static final byte JOURNAL_PUT = 1;
+    /** запись журнала об удалении файла */
+    private static final byte JOURNAL_REMOVE = 2;
+    /** минимальное количество записей журнала, после которого он сворачивается в новый снимок */
+    private static final int MIN_COMPACT_RECORDS = 10000;
+    /** размер, с которым в индекс записываются директории */
+    public static final long DIRECTORY_LENGTH = -1;
+    private final ConcurrentHashMap<File, Entry> entries = new ConcurrentHashMap<>();
+    /** версии удаления путей, которых нет в индексе, изменяются под journalLock */
+    private final ConcurrentHashMap<File, Long> tombstones = new ConcurrentHashMap<>();
+    /** файлы с вычисленной контрольной суммой по размеру, для поиска файлов с одинаковым содержимым */
+    private final ConcurrentHashMap<Long, Set<File>> hashedByLength = new ConcurrentHashMap<>();
+    /** суммы листьев {@link ReconcileTree}, изменяются под journalLock */
+    private final long[] leafDigests = new long[ReconcileTree.LEAF_COUNT];
+    /** путь до синхронизируемой директории, относительно нее в файлах индекса хранятся имена */
+    private final File sharedDirPath;
+    /** файл снимка индекса */
+    private final File snapshotFile;
+    /** файл журнала изменений индекса */
+    private final File journalFile;
+    /** объект для синхронизации изменения индекса и записи журнала */
+    private final Object journalLock = new Object();
+    /** поток записи в журнал, null если индекс не сохраняется на диск */
+    private DataOutputStream journal;
+    /** количество записей в журнале после последнего снимка */
+    private int journalRecords;
+    /** версия последнего изменения индекса, увеличивается под journalLock */
+    private volatile long version;
+    /** флаг, указывающий что индекс был восстановлен с диска */
+    private final boolean restored;
+
+    private DirectoryIndex(File sharedDirPath, File indexDirPath, boolean restored) {
+        this.sharedDirPath = sharedDirPath;
+        this.snapshotFile = indexDirPath == null ? null : new File(indexDirPath, "snapshot");
+        this.journalFile = indexDirPath == null ? null : new File(indexDirPath, "journal");
+        this.restored = restored;
+    }
+
+    /**Создает индекс, который не сохраняется на диск
+     * @param sharedDirPath путь до синхронизируемой директории
+     * @return пустой индекс
+     */
+    public static DirectoryIndex inMemory(File sharedDirPath) {
+        return new DirectoryIndex(sharedDirPath, null, false);
+    }
+
+    /**Открывает индекс, сохраненный в указанной директории: читает снимок и применяет к нему журнал. Неполная
+     * последняя запись журнала (например, после аварийного завершения) отбрасывается.
+     * @param sharedDirPath путь до синхронизируемой директории
+     * @param indexDirPath путь до директории с файлами индекса
+     * @return индекс, {@link #isRestored()} которого равен false если сохраненного индекса не было или он поврежден
+     * @throws IOException если файлы индекса не удалось создать
+     */
+    public static DirectoryIndex open(File sharedDirPath, File indexDirPath) throws IOException {
+        File snapshot = new File(indexDirPath, "snapshot");
+        DirectoryIndex index = new DirectoryIndex(sharedDirPath, indexDirPath, snapshot.isFile());
+        if (index.restored) {
+            try {
+                index.readSnapshot();
+                index.replayJournal();
+                LOGGER.info("Directory index restored with {} files", index.entries.size());
+            } catch (IOException e) {
+                LOGGER.warn("Directory index is damaged and will be rebuilt", e);
+                index = new DirectoryIndex(sharedDirPath, indexDirPath, false);
+            }
+        }
+        index.writeSnapshot();
+        return index;
+    }
+
+    /** @return true если индекс был восстановлен с диска и отражает состояние на момент остановки сервиса */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /** @return запись о файле или null, если файл отсутствует в индексе */
+    public Entry get(File file) {
+        return entries.get(file);
+    }
+
+    public boolean contains(File file) {
+        return entries.containsKey(file);
+    }
+
+    /** @return файлы, присутствующие в индексе */
+    public Set<File> files() {
+        return entries.keySet();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** @return версия записи о файле; для отсутствующего в индексе файла - версия его удаления, или 0 если он не
+     * удалялся после {@link #forgetRemoved()} */
+    public long versionOf(File file) {
+        Entry entry = entries.get(file);
+        if (entry != null) {
+            return entry.version;
+        }
+        Long removed = tombstones.get(file);
+        return removed == null ? 0 : removed;
+    }
+
+    /** Забывает версии удаления путей. Вызывается только когда ни одна операция не хранит версию, полученную
+     * {@link #versionOf(File)}, иначе удаленный и заново созданный путь может быть принят за неизменный */
+    public void forgetRemoved() {
+        synchronized (journalLock) {
+            tombstones.clear();
+        }
+    }
+
+    /**Находит записи индекса внутри директории
+     * @param directory путь к директории
+     * @return файлы и директории индекса на любой глубине внутри нее
+     */
+    public Set<File> filesUnder(File directory) {
+        Set<File> found = new HashSet<>();
+        for (File file : entries.keySet()) {
+            if (RelativePaths.isInside(directory, file)) {
+                found.add(file);
+            }
+        }
+        return found;
+    }
+
+    /** @return true если в индексе есть файл указанного размера с вычисленной контрольной суммой */
+    public boolean hasHashedLength(long length) {
+        return hashedByLength.containsKey(length);
+    }
+
+    /**Ищет файлы с указанным содержимым
+     * @param length размер содержимого
+     * @param hash MD5 содержимого
+     * @return файлы индекса, записанные с тем же размером и MD5
+     */
+    public Set<File> findByContent(long length, byte[] hash) {
+        Set<File> found = new HashSet<>();
+        Set<File> sameLength = hashedByLength.get(length);
+        if (sameLength != null) {
+            for (File file : sameLength) {
+                Entry entry = entries.get(file);
+                if (entry != null && entry.length == length && Arrays.equals(entry.hash, hash)) {
+                    found.add(file);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**Записывает подтвержденное состояние файла
+     * @param file путь к файлу
+     * @param length размер файла
+     * @param lastModified время изменения файла
+     * @param hash MD5 содержимого, или null если он не вычислялся
+     */
+    public void put(File file, long length, long lastModified, byte[] hash) {
+        Entry entry = new Entry(length, lastModified, hash);
+        synchronized (journalLock) {
+            putEntry(file, entry);
+            appendJournal(JOURNAL_PUT, file, entry);
+        }
+    }
+
+    /**Записывает состояние локального файла, если запись о нем не менялась с указанной версии
+     * @param file путь к файлу
+     * @param expectedVersion версия записи ({@link #versionOf(File)}), на основе которой получено новое состояние
+     * @param length размер файла
+     * @param lastModified время изменения файла
+     * @param hash MD5 содержимого, или null если он не вычислялся
+     * @return false если запись успела измениться, например файл был получен от удаленного пользователя
+     */
+    public boolean putIfVersion(File file, long expectedVersion, long length, long lastModified, byte[] hash) {
+        Entry entry = new Entry(length, lastModified, hash);
+        synchronized (journalLock) {
+            if (versionOf(file) != expectedVersion) {
+                return false;
+            }
+            putEntry(file, entry);
+            appendJournal(JOURNAL_PUT, file, entry);
+            return true;
+        }
+    }
+
+    /**Удаляет файл из индекса, запоминая версию удаления
+     * @param file путь к файлу
+     */
+    public void remove(File file) {
+        synchronized (journalLock) {
+            if (removeEntry(file)) {
+                tombstones.put(file, ++version);
+                appendJournal(JOURNAL_REMOVE, file, null);
+            }
+        }
+    }
+
+    /**Удаляет файл из индекса, если запись о нем не менялась с указанной версии
+     * @param file путь к файлу
+     * @param expectedVersion версия записи ({@link #versionOf(File)}), удаление которой подтверждено
+     * @return false если запись успела измениться
+     */
+    public boolean removeIfVersion(File file, long expectedVersion) {
+        synchronized (journalLock) {
+            if (versionOf(file) != expectedVersion) {
+                return false;
+            }
+            remove(file);
+            return true;
+        }
+    }
+
+    /**Удаляет из индекса директорию вместе со всеми записями внутри нее
+     * @param directory путь к директории
+     */
+    public void removeTree(File directory) {
+        synchronized (journalLock) {
+            for (File nested : filesUnder(directory)) {
+                remove(nested);
+            }
+            remove(directory);
+        }
+    }
+
+    /**Удаляет из индекса директорию вместе со всеми записями внутри нее, если запись о директории не менялась с указанной
+     * версии. Файл, полученный внутрь удаленной директории, заново создает запись о ней, поэтому проверки версии
+     * директории достаточно.
+     * @param directory путь к директории
+     * @param expectedVersion версия записи ({@link #versionOf(File)}), удаление которой подтверждено
+     * @return false если запись о директории успела измениться
+     */
+    public boolean removeTreeIfVersion(File directory, long expectedVersion) {
+        synchronized (journalLock) {
+            if (versionOf(directory) != expectedVersion) {
+                return false;
+            }
+            removeTree(directory);
+            return true;
+        }
+    }
+
+    /**Вычисляет контрольные суммы файлов, записанных в индекс без них, например при первом запуске. Файл, который
+     * изменился после записи в индекс или во время вычисления, пропускается.
+     * @return количество файлов, для которых вычислена контрольная сумма
+     */
+    public int completeHashes() {
+        int completed = 0;
+        for (Map.Entry<File, Entry> element : entries.entrySet()) {
+            File file = element.getKey();
+            Entry entry = element.getValue();
+            if (entry.hash != null || entry.isDirectory() || !entry.matches(file)) {
+                continue;
+            }
+            try {
+                byte[] hash = computeHash(file);
+                Entry hashed = new Entry(entry.length, entry.lastModified, hash);
+                synchronized (journalLock) {
+                    if (entries.get(file) == entry && entry.matches(file)) {
+                        putEntry(file, hashed);
+                        appendJournal(JOURNAL_PUT, file, hashed);
+                        completed++;
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.debug("cannot compute hash of {}", file.getName(), e);
+            }
+        }
+        return completed;
+    }
+
+    /** @return копия сумм листьев {@link ReconcileTree} */
+    long[] leafDigests() {
+        synchronized (journalLock) {
+            return leafDigests.clone();
+        }
+    }
+
+    /**Находит файлы, попадающие в указанные листья {@link ReconcileTree}
+     * @param leaves номера листьев
+     * @return файлы по номерам листьев, листья без файлов отсутствуют
+     */
+    Map<Integer, List<File>> filesOfLeaves(int[] leaves) {
+        Set<Integer> wanted = new HashSet<>();
+        for (int leaf : leaves) {
+            wanted.add(leaf);
+        }
+        Map<Integer, List<File>> files = new HashMap<>();
+        for (Map.Entry<File, Entry> element : entries.entrySet()) {
+            if (wanted.contains(element.getValue().leaf)) {
+                files.computeIfAbsent(element.getValue().leaf, leaf -> new ArrayList<>()).add(element.getKey());
+            }
+        }
+        return files;
+    }
+
+    /** заменяет запись о файле, присваивая ей следующую версию и поддерживая {@link #hashedByLength} и
+     * {@link #leafDigests}; вызывается под journalLock или при открытии */
+    private void putEntry(File file, Entry entry) {
+        removeEntry(file);
+        tombstones.remove(file);
+        String name = relativeName(file);
+        entry.version = ++version;
+        entry.leaf = ReconcileTree.leafOf(name);
+        entry.fingerprint = ReconcileTree.fingerprint(name, entry.length, entry.hash);
+        leafDigests[entry.leaf] += entry.fingerprint;
+        entries.put(file, entry);
+        if (entry.hash != null) {
+            hashedByLength.computeIfAbsent(entry.length, length -> ConcurrentHashMap.newKeySet()).add(file);
+        }
+    }
+
+    /** @return true если запись о файле была удалена */
+    private boolean removeEntry(File file) {
+        Entry removed = entries.remove(file);
+        if (removed != null) {
+            leafDigests[removed.leaf] -= removed.fingerprint;
+        }
+        if (removed != null && removed.hash != null) {
+            Set<File> sameLength = hashedByLength.get(removed.length);
+            if (sameLength != null) {
+                sameLength.remove(file);
+                if (sameLength.isEmpty()) {
+                    hashedByLength.remove(removed.length);
+                }
+            }
+        }
+        return removed != null;
+    }
+
+    /**Вычисляет MD5 содержимого файла
+     * @param file путь к файлу
+     * @return MD5 содержимого
+     * @throws IOException if I/O errors occurred
+     */
+    public static byte[] computeHash(File file) throws IOException {
+        MessageDigest digest = DeltaTransfer.md5();
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                digest.update(buf, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    /** сворачивает журнал в новый снимок и закрывает файлы индекса */
+    @Override
+    public void close() throws IOException {
+        synchronized (journalLock) {
+            if (snapshotFile == null) {
+                return;
+            }
+            writeSnapshot();
+            closeJournal();
+        }
+    }
+
+    /** дописывает запись в журнал и при его разрастании сворачивает журнал в снимок; вызывается под journalLock */
+    private void appendJournal(byte operation, File file, Entry entry) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+            DataOutputStream recordOut = new DataOutputStream(record);
+            recordOut.writeByte(operation);
+            recordOut.writeUTF(relativeName(file));
+            if (entry != null) {
+                entry.write(recordOut);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record.toByteArray());
+            journal.writeInt(record.size());
+            record.writeTo(journal);
+            journal.writeInt((int) crc.getValue());
+            journal.flush();
+            journalRecords++;
+            if (journalRecords >= Math.max(MIN_COMPACT_RECORDS, entries.size())) {
+                writeSnapshot();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Directory index journal write failed, index will be rebuilt on next start", e);
+            closeJournal();
+            if (!snapshotFile.delete() && snapshotFile.exists()) {
+                LOGGER.error("Directory index snapshot delete issue");
+            }
+        }
+    }
+
+    /**Записывает текущее состояние индекса в новый снимок и начинает пустой журнал. Снимок сначала записывается во
+     * временный файл и затем атомарно заменяет предыдущий.
+     * @throws IOException if I/O errors occurred
+     */
+    private void writeSnapshot() throws IOException {
+        synchronized (journalLock) {
+            closeJournal();
+            File temporarySnapshot = new File(snapshotFile.getPath() + ".tmp");
+            CRC32 crc = new CRC32();
+            try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temporarySnapshot)), crc))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<File, Entry> element : entries.entrySet()) {
+                    out.writeUTF(relativeName(element.getKey()));
+                    element.getValue().write(out);
+                }
+                out.flush();
+                out.writeInt((int) crc.getValue());
+            }
+            Files.move(temporarySnapshot.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile)));
+            journalRecords = 0;
+            LOGGER.debug("directory index snapshot written with {} files", entries.size());
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile)), crc))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown directory index format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File file = new File(sharedDirPath, in.readUTF());
+                putEntry(file, Entry.read(in));
+            }
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Directory index snapshot checksum mismatch");
+            }
+        }
+    }
+
+    /** применяет записи журнала к прочитанному снимку, останавливаясь на первой неполной или поврежденной записи */
+    private void replayJournal() throws IOException {
+        if (!journalFile.isFile()) {
+            return;
+        }
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > 1 << 20) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                byte operation = recordIn.readByte();
+                File file = new File(sharedDirPath, recordIn.readUTF());
+                if (operation == JOURNAL_PUT) {
+                    putEntry(file, Entry.read(recordIn));
+                } else if (operation == JOURNAL_REMOVE) {
+                    removeEntry(file);
+                } else {
+                    break;
+                }
+                replayed++;
+            }
+        }
+        LOGGER.debug("replayed {} directory index journal records", replayed);
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOGGER.info("Exception occurred during index journal closing", e);
+            }
+            journal = null;
+        }
+    }
+
+    /** @return имя файла относительно синхронизируемой директории с разделителем '/' */
+    String relativeName(File file) {
+        return RelativePaths.of(sharedDirPath, file);
+    }
+
+    /** Подтвержденное состояние одного файла или директории */
+    public static final class Entry {
+        private final long length;
+        private final long lastModified;
+        /** MD5 содержимого, null если не вычислялся */
+        private final byte[] hash;
+        /** версия индекса, лист {@link ReconcileTree} и отпечаток файла, задаются при записи в индекс до того, как
+         * запись становится видна другим потокам */
+        private long version;
+        private int leaf;
+        private long fingerprint;
+
+        Entry(long length, long lastModified, byte[] hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /** @return true если запись относится к директории ({@link #DIRECTORY_LENGTH}) */
+        public boolean isDirectory() {
+            return length == DIRECTORY_LENGTH;
+        }
+
+        /** @return true если размер и время изменения файла совпадают с записанными, для директории - если она
+         * существует */
+        public boolean matches(File file) {
+            if (isDirectory()) {
+                return file.isDirectory();
+            }
+            return lastModified == file.lastModified() && length == file.length();
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            if (hash == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(hash.length);
+                out.write(hash);
+            }
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            int hashLength = in.readUnsignedByte();
+            byte[] hash = null;
+            if (hashLength > 0) {
+                hash = new byte[hashLength];
+                in.readFully(hash);
+            }
+            return new Entry(length, lastModified, hash);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.pavel.shareddirectories;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/** Параллельный обход дерева директории. Каждая поддиректория обходится отдельной задачей {@link ForkJoinPool}, а
+ * содержимое больших директорий делится на части, поэтому обращения к файловой системе за атрибутами файлов
+ * распределяются по всем ядрам. Файлы и директории, которые не участвуют в синхронизации ({@link Monitor#isIgnored}),
+ * пропускаются вместе с содержимым.
+ */
+final class DirectoryScan extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    /** максимальное количество элементов директории, которые обрабатываются одной задачей */
+    private static final int SLICE_SIZE = 256;
+    /** потоки обхода, общие для всех сервисов процесса */
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    /** директория, содержимое которой читается при запуске задачи, null для части уже прочитанного содержимого */
+    private final File directory;
+    private File[] children;
+    private int from;
+    private int to;
+    /** вызывается для каждого найденного файла и директории, из нескольких потоков одновременно */
+    private final Consumer<File> visitor;
+
+    private DirectoryScan(File directory, Consumer<File> visitor) {
+        this.directory = directory;
+        this.visitor = visitor;
+    }
+
+    private DirectoryScan(File[] children, int from, int to, Consumer<File> visitor) {
+        this.directory = null;
+        this.children = children;
+        this.from = from;
+        this.to = to;
+        this.visitor = visitor;
+    }
+
+    /**Обходит дерево директории и дожидается окончания обхода
+     * @param directory директория, сама она посетителю не передается
+     * @param visitor вызывается для каждого файла и поддиректории на любой глубине, из нескольких потоков
+     */
+    static void scan(File directory, Consumer<File> visitor) {
+        POOL.invoke(new DirectoryScan(directory, visitor));
+    }
+
+    @Override
+    protected void compute() {
+        if (directory != null) {
+            children = directory.listFiles();
+            if (children == null) {
+                return;
+            }
+            to = children.length;
+        }
+        if (to - from > SLICE_SIZE) {
+            int middle = (from + to) >>> 1;
+            invokeAll(new DirectoryScan(children, from, middle, visitor),
+                    new DirectoryScan(children, middle, to, visitor));
+            return;
+        }
+        List<DirectoryScan> nested = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            File child = children[i];
+            if (Monitor.isIgnored(child)) {
+                continue;
+            }
+            visitor.accept(child);
+            if (child.isDirectory()) {
+                nested.add(new DirectoryScan(child, visitor));
+            }
+        }
+        invokeAll(nested);
+    }
+}
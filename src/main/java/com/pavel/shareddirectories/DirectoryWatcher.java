@@ -0,0 +1,146 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Источник изменений директории на основе {@link WatchService}. Собирает события создания, изменения и удаления
+ * файлов, чтобы {@link Monitor} проверял только затронутые файлы вместо полного обхода директории. {@link WatchService}
+ * не отслеживает поддиректории, поэтому каждая из них регистрируется отдельно, в том числе появившиеся позже.
+ */
+public class DirectoryWatcher implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryWatcher.class);
+    /** время ожидания следующих событий из той же серии изменений, в милисекундах */
+    private static final long SETTLE_MS = 50;
+    /** максимальное время сбора одной серии событий, в милисекундах */
+    private static final long MAX_BATCH_MS = 500;
+    /** путь до отслеживаемой директории */
+    private final File sharedDirPath;
+    private final WatchService watchService;
+    /** ключ корня директории, его потеря означает переход на опрос */
+    private final WatchKey rootKey;
+    /** флаг, указывающий что директория больше не отслеживается и нужно перейти на опрос */
+    private volatile boolean valid = true;
+
+    /**
+     * @param sharedDirPath путь до отслеживаемой директории
+     * @throws IOException если файловая система не поддерживает отслеживание событий
+     */
+    public DirectoryWatcher(File sharedDirPath) throws IOException {
+        this.sharedDirPath = sharedDirPath;
+        Path dir = sharedDirPath.toPath();
+        this.watchService = dir.getFileSystem().newWatchService();
+        try {
+            rootKey = register(dir);
+            registerTree(dir);
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    private WatchKey register(Path dir) throws IOException {
+        return dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**Регистрирует все поддиректории, кроме не участвующих в синхронизации
+     * @param dir директория, сама она должна быть уже зарегистрирована
+     * @throws IOException если превышен лимит отслеживаемых директорий или директорию не удалось прочитать
+     */
+    private void registerTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path nested, BasicFileAttributes attributes)
+                    throws IOException {
+                if (nested.equals(dir)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (Monitor.isIgnored(nested.toFile())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                try {
+                    register(nested);
+                } catch (NoSuchFileException e) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**Ожидает события файловой системы и собирает их в одну серию, пока они продолжают поступать
+     * @param timeoutMs максимальное время ожидания первого события, в милисекундах
+     * @return множество затронутых файлов (пустое, если событий не было), или null если очередь событий переполнилась
+     * и необходимо полное сканирование директории
+     * @throws InterruptedException если ожидание было прервано
+     * @throws ClosedWatchServiceException если отслеживание было закрыто
+     */
+    public Set<File> awaitChanges(long timeoutMs) throws InterruptedException {
+        Set<File> changed = new HashSet<>();
+        boolean overflow = false;
+        long batchEnd = 0;
+        WatchKey key = watchService.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        while (key != null) {
+            if (batchEnd == 0) {
+                batchEnd = System.currentTimeMillis() + MAX_BATCH_MS;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    LOGGER.debug("watch events overflow");
+                    overflow = true;
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                changed.add(path.toFile());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) && !Monitor.isIgnored(path.toFile())) {
+                    try {
+                        register(path);
+                        registerTree(path);
+                    } catch (NoSuchFileException e) {
+                        LOGGER.debug("directory {} disappeared before registration", path);
+                    } catch (IOException e) {
+                        LOGGER.warn("Cannot watch directory {}, falling back to polling", path, e);
+                        valid = false;
+                        return null;
+                    }
+                }
+            }
+            if (!key.reset() && key == rootKey) {
+                LOGGER.warn("Directory {} is no longer watched", sharedDirPath);
+                valid = false;
+                return null;
+            }
+            if (System.currentTimeMillis() >= batchEnd) {
+                break;
+            }
+            key = watchService.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+        }
+        return overflow ? null : changed;
+    }
+
+    /** @return false если директория перестала отслеживаться (например, была удалена или перемонтирована) */
+    public boolean isValid() {
+        return valid;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,398 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/** Отправляет изменения одной директории нескольким удаленным пользователям. Директория сканируется один раз, каждая
+ * операция ставится в очереди отправителей всех пользователей одновременно, а содержимое маленьких файлов читается с
+ * диска один раз в общий снимок ({@link ContentSnapshots}), из которого его передают все отправители. Большие файлы
+ * каждый отправитель читает сам, но так как операция начинается у всех пользователей одновременно, повторное чтение
+ * обычно попадает в кеш файловой системы.
+ * <p>У каждого пользователя своя очередь: отправитель пользователя - {@link LaneChangesSender}, постановка в очередь
+ * которого не ждет окна неподтвержденных операций. Результат операции для {@link Monitor} завершается успехом при
+ * первом подтверждении, поэтому медленный пользователь не задерживает итерации монитора и остальных пользователей;
+ * количество байт в таком результате - байты, записанные в соединение подтвердившего пользователя.
+ * Операции, которые не удалось выполнить у отдельного пользователя, запоминаются для него и повторяются по таймеру
+ * после проверочной операции; после обрыва соединения пользователь сначала сверяется по {@link ReconcileTree}.
+ * Неудачей для монитора операция завершается только если ее не выполнил ни один пользователь, такую операцию
+ * повторяет сам монитор.
+ */
+public class FanOutChangesSender implements PipelinedChangesSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FanOutChangesSender.class);
+    /** удаленные пользователи в порядке настройки */
+    private final List<Peer> peers = new ArrayList<>();
+    /** общие снимки содержимого отправляемых файлов */
+    private final ContentSnapshots snapshots;
+    /** потоки повторов для отставших пользователей, по одному на пользователя */
+    private final ScheduledExecutorService catchUpTimer;
+    /** индекс директории для сверки отставших пользователей, известен после первой сверки монитора */
+    private volatile DirectoryIndex index;
+
+    /**
+     * @param senders отправители по именам удаленных пользователей, постановка операции в очередь отправителя не
+     *                должна ждать ответа сервера
+     * @param snapshots снимки содержимого, общие с отправителями пользователей
+     * @param retryIntervalMs интервал повтора операций для отставших пользователей, в милисекундах
+     */
+    FanOutChangesSender(Map<String, PipelinedChangesSender> senders, ContentSnapshots snapshots,
+                        long retryIntervalMs) {
+        if (senders.isEmpty()) {
+            throw new IllegalArgumentException("No peers to send changes to");
+        }
+        this.snapshots = snapshots;
+        for (Map.Entry<String, PipelinedChangesSender> sender : senders.entrySet()) {
+            peers.add(new Peer(sender.getKey(), sender.getValue()));
+        }
+        this.catchUpTimer = Executors.newScheduledThreadPool(peers.size(), r -> {
+            Thread thread = new Thread(r, "sender catch-up thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Peer peer : peers) {
+            catchUpTimer.scheduleWithFixedDelay(() -> catchUp(peer), retryIntervalMs, retryIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public boolean sendNew(File fnew) {
+        return LaneChangesSender.await(submit(fnew, SharedDirService.NEW_FILE));
+    }
+
+    @Override
+    public boolean sendModify(File fmod) {
+        return LaneChangesSender.await(submit(fmod, SharedDirService.MODIFY_FILE));
+    }
+
+    @Override
+    public boolean sendDelete(File fdel) {
+        return LaneChangesSender.await(submit(fdel, SharedDirService.DELETE_FILE));
+    }
+
+    @Override
+    public boolean sendDirectory(File directory, int receiverInstruction) {
+        return LaneChangesSender.await(submit(directory, receiverInstruction));
+    }
+
+    @Override
+    public boolean sendCopy(File source, File target, byte[] hash, int receiverInstruction) {
+        return LaneChangesSender.await(submitCopy(source, target, hash, receiverInstruction));
+    }
+
+    /** Каждый пользователь сверяется отдельно, найденные расхождения отправляются только ему. Пользователи, сверка с
+     * которыми не удалась, сверяются повторно по таймеру, поэтому монитору сверку повторять не нужно.
+     */
+    @Override
+    public boolean reconcile(DirectoryIndex index, Set<File> filesToCreate, Set<File> filesToModify) {
+        this.index = index;
+        for (Peer peer : peers) {
+            reconcile(peer, index);
+        }
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> submit(File file, int receiverInstruction) {
+        ContentSnapshots.Snapshot snapshot = SharedDirService.carriesContent(receiverInstruction)
+                ? snapshots.take(file) : null;
+        Fan fan = new Fan(snapshot);
+        for (Peer peer : peers) {
+            peer.supersede(file);
+            fan.add(peer, peer.sender.submit(file, receiverInstruction),
+                    failed -> peer.retry(file, receiverInstruction, failed));
+        }
+        return fan.result;
+    }
+
+    /** Пользователю, который не выполнил копирование, файл отправляется целиком при повторе */
+    @Override
+    public CompletableFuture<TransferResult> submitCopy(File source, File target, byte[] hash,
+                                                        int receiverInstruction) {
+        Fan fan = new Fan(null);
+        for (Peer peer : peers) {
+            peer.supersede(target);
+            fan.add(peer, peer.sender.submitCopy(source, target, hash, receiverInstruction), failed -> {
+                peer.retry(target, SharedDirService.NEW_FILE, failed);
+                if (receiverInstruction == SharedDirService.RENAME) {
+                    peer.retry(source, SharedDirService.DELETE_FILE, failed);
+                }
+            });
+        }
+        return fan.result;
+    }
+
+    @Override
+    public Map<File, CompletableFuture<TransferResult>> submitBatch(Map<File, Integer> changes) {
+        Map<File, Fan> fans = new LinkedHashMap<>();
+        for (Map.Entry<File, Integer> change : changes.entrySet()) {
+            fans.put(change.getKey(), new Fan(SharedDirService.carriesContent(change.getValue())
+                    ? snapshots.take(change.getKey()) : null));
+        }
+        for (Peer peer : peers) {
+            changes.keySet().forEach(peer::supersede);
+            Map<File, CompletableFuture<TransferResult>> answers = peer.sender.submitBatch(changes);
+            for (Map.Entry<File, Integer> change : changes.entrySet()) {
+                fans.get(change.getKey()).add(peer, answers.get(change.getKey()),
+                        failed -> peer.retry(change.getKey(), change.getValue(), failed));
+            }
+        }
+        Map<File, CompletableFuture<TransferResult>> results = new LinkedHashMap<>();
+        for (Map.Entry<File, Fan> fan : fans.entrySet()) {
+            results.put(fan.getKey(), fan.getValue().result);
+        }
+        return results;
+    }
+
+    @Override
+    public void close() throws IOException {
+        catchUpTimer.shutdownNow();
+        IOException failure = null;
+        for (Peer peer : peers) {
+            try {
+                peer.sender.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**Сверяет состояние директории с пользователем, файлы, которых у него нет или копия которых устарела,
+     * запоминаются для повтора
+     * @return false если сверка не удалась
+     */
+    private boolean reconcile(Peer peer, DirectoryIndex index) {
+        Set<File> missing = new HashSet<>();
+        Set<File> outdated = new HashSet<>();
+        if (!peer.sender.reconcile(index, missing, outdated)) {
+            LOGGER.debug("client could not reconcile directory with peer {}, will retry", peer.name);
+            peer.reconcilePending = true;
+            return false;
+        }
+        peer.reconcilePending = false;
+        if (!missing.isEmpty() || !outdated.isEmpty()) {
+            LOGGER.info("Reconciliation found {} files missing and {} outdated on peer {}", missing.size(),
+                    outdated.size(), peer.name);
+        }
+        for (File file : missing) {
+            peer.retry(file, SharedDirService.NEW_FILE, null);
+        }
+        for (File file : outdated) {
+            peer.retry(file, SharedDirService.MODIFY_FILE, null);
+        }
+        return true;
+    }
+
+    /**Повторяет для отставшего пользователя сверку и запомненные операции. Сначала повторяется одна операция, и только
+     * если пользователь ее подтвердил, отправляются остальные, поэтому недоступный пользователь не получает лишних
+     * попыток соединения. Выполняется в потоке повторов пользователя.
+     */
+    private void catchUp(Peer peer) {
+        if (!peer.catchingUp.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            DirectoryIndex current = index;
+            if (peer.reconcilePending && current != null) {
+                current.completeHashes();
+                if (!reconcile(peer, current)) {
+                    peer.catchingUp.set(false);
+                    return;
+                }
+            }
+            List<Map.Entry<File, Integer>> due = peer.takeRetries();
+            if (due.isEmpty()) {
+                peer.catchingUp.set(false);
+                return;
+            }
+            LOGGER.debug("client retries {} operations for peer {}", due.size(), peer.name);
+            Map.Entry<File, Integer> probe = due.get(0);
+            resend(peer, probe).thenAccept(result -> {
+                if (!result.isSuccess()) {
+                    peer.requeue(due);
+                    peer.catchingUp.set(false);
+                    return;
+                }
+                List<CompletableFuture<TransferResult>> rest = new ArrayList<>();
+                for (Map.Entry<File, Integer> retry : due.subList(1, due.size())) {
+                    rest.add(resend(peer, retry));
+                }
+                CompletableFuture.allOf(rest.toArray(new CompletableFuture<?>[0]))
+                        .whenComplete((done, e) -> peer.catchingUp.set(false));
+            });
+        } catch (RuntimeException e) {
+            peer.catchingUp.set(false);
+            LOGGER.warn("Catch-up of peer {} failed", peer.name, e);
+        }
+    }
+
+    /**Повторяет операцию для пользователя, если она еще соответствует состоянию директории; неудавшаяся операция
+     * снова запоминается для повтора
+     * @return результат повтора, успешный для операции, которая больше не нужна
+     */
+    private static CompletableFuture<TransferResult> resend(Peer peer, Map.Entry<File, Integer> retry) {
+        File file = retry.getKey();
+        int instruction = retry.getValue();
+        if (!isCurrent(file, instruction)) {
+            return CompletableFuture.completedFuture(TransferResult.success(0, 0));
+        }
+        return peer.sender.submit(file, instruction).thenApply(result -> {
+            if (!result.isSuccess()) {
+                peer.retry(file, instruction, result);
+            }
+            return result;
+        });
+    }
+
+    /** @return true если операция соответствует текущему состоянию файла: удаление отсутствующего, отправка
+     * существующего */
+    private static boolean isCurrent(File file, int instruction) {
+        switch (instruction) {
+            case SharedDirService.NEW_FILE:
+            case SharedDirService.MODIFY_FILE:
+                return file.isFile();
+            case SharedDirService.CREATE_DIRECTORY:
+                return file.isDirectory();
+            case SharedDirService.DELETE_FILE:
+            case SharedDirService.DELETE_DIRECTORY:
+                return !file.exists();
+            default:
+                return false;
+        }
+    }
+
+    /** Удаленный пользователь: его отправитель и операции, которые ему нужно повторить */
+    private static final class Peer {
+        private final String name;
+        private final PipelinedChangesSender sender;
+        /** операции, которые не удалось выполнить у пользователя, по путям файлов; изменяется под собственным
+         * монитором */
+        private final Map<File, Integer> retries = new LinkedHashMap<>();
+        /** true если соединение с пользователем обрывалось и его нужно сверить перед повтором операций */
+        private volatile boolean reconcilePending;
+        /** true пока выполняется повтор для пользователя */
+        private final AtomicBoolean catchingUp = new AtomicBoolean();
+
+        private Peer(String name, PipelinedChangesSender sender) {
+            this.name = name;
+            this.sender = sender;
+        }
+
+        /** запоминает неудавшуюся операцию; после обрыва соединения пользователь будет сверен */
+        private void retry(File file, int instruction, TransferResult failed) {
+            synchronized (retries) {
+                retries.put(file, instruction);
+            }
+            if (failed != null && failed.getCause() != null) {
+                reconcilePending = true;
+            }
+            LOGGER.debug("client keeps {} of {} for peer {}", instruction, file.getName(), name);
+        }
+
+        /** забывает повтор операции над файлом, по которому отправляется новая операция */
+        private void supersede(File file) {
+            synchronized (retries) {
+                retries.remove(file);
+            }
+        }
+
+        private List<Map.Entry<File, Integer>> takeRetries() {
+            synchronized (retries) {
+                List<Map.Entry<File, Integer>> due = new ArrayList<>(retries.entrySet().size());
+                for (Map.Entry<File, Integer> retry : retries.entrySet()) {
+                    due.add(new AbstractMap.SimpleImmutableEntry<>(retry));
+                }
+                retries.clear();
+                return due;
+            }
+        }
+
+        /** возвращает операции, повтор которых отложен; операции, запомненные за это время, не заменяются */
+        private void requeue(List<Map.Entry<File, Integer>> due) {
+            synchronized (retries) {
+                for (Map.Entry<File, Integer> retry : due) {
+                    retries.putIfAbsent(retry.getKey(), retry.getValue());
+                }
+            }
+        }
+    }
+
+    /** Результат операции, отправленной всем пользователям */
+    private final class Fan {
+        private final CompletableFuture<TransferResult> result = new CompletableFuture<>();
+        /** снимок содержимого операции, освобождается после ответов всех пользователей */
+        private final ContentSnapshots.Snapshot snapshot;
+        /** количество пользователей, от которых еще нет ответа */
+        private int remaining = peers.size();
+        /** true если операцию подтвердил хотя бы один пользователь */
+        private boolean delivered;
+        /** первая неудача, ею завершается результат, если операцию не выполнил никто */
+        private TransferResult failure;
+        /** повторы для пользователей, не выполнивших операцию, до первого подтверждения */
+        private final List<Runnable> undecided = new ArrayList<>();
+
+        private Fan(ContentSnapshots.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**@param peer пользователь
+         * @param answer результат операции у пользователя
+         * @param retry запоминает операцию для повтора у пользователя
+         */
+        private void add(Peer peer, CompletableFuture<TransferResult> answer,
+                         Consumer<TransferResult> retry) {
+            answer.whenComplete((peerResult, e) -> {
+                TransferResult answered = peerResult != null ? peerResult : TransferResult.failed(e, 0);
+                if (!answered.isSuccess()) {
+                    LOGGER.debug("peer {} failed operation: {}", peer.name, answered.getFailure());
+                }
+                answered(answered, () -> retry.accept(answered));
+            });
+        }
+
+        private void answered(TransferResult answered, Runnable retry) {
+            List<Runnable> retries = Collections.emptyList();
+            TransferResult completed = null;
+            boolean done;
+            synchronized (this) {
+                remaining--;
+                if (answered.isSuccess()) {
+                    if (!delivered) {
+                        delivered = true;
+                        completed = answered;
+                        retries = new ArrayList<>(undecided);
+                        undecided.clear();
+                    }
+                } else if (delivered) {
+                    retries = Collections.singletonList(retry);
+                } else {
+                    undecided.add(retry);
+                    if (failure == null) {
+                        failure = answered;
+                    }
+                }
+                done = remaining == 0;
+                if (done && !delivered) {
+                    completed = failure;
+                    undecided.clear();
+                }
+            }
+            retries.forEach(Runnable::run);
+            if (completed != null) {
+                result.complete(completed);
+            }
+            if (done) {
+                snapshots.release(snapshot);
+            }
+        }
+    }
+}
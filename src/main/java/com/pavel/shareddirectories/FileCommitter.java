@@ -0,0 +1,312 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Размещение полученных файлов в директории с выбранной надежностью. Полученный файл заменяет прежний атомарным
+ * переименованием временного файла, поэтому после сбоя на месте файла остается либо прежняя, либо новая версия. Чтобы
+ * новая версия пережила сбой питания, содержимое временного файла сбрасывается на диск до переименования, а после
+ * переименования на диск сбрасывается директория:
+ * <ul>
+ * <li>{@link #NONE} - ничего не сбрасывается на диск, как раньше;</li>
+ * <li>{@link #PER_FILE} - каждый файл и его директория сбрасываются сразу после получения файла;</li>
+ * <li>{@link #BATCHED} - групповая фиксация: размещения файлов, полученных одновременно (в том числе кадром
+ * {@link SharedDirService#BATCH}), собираются в группу. Поток, пришедший первым, сбрасывает содержимое всех файлов
+ * группы, переименовывает их и сбрасывает их директории по одному разу, остальные потоки ждут завершения группы.</li>
+ * </ul>
+ * {@link #place(List)} возвращается только после того, как файлы размещены и сброшены на диск, поэтому подтверждение
+ * операции отправляется после фиксации ее группы.
+ */
+final class FileCommitter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileCommitter.class);
+    /** полученные файлы не сбрасываются на диск */
+    static final String NONE = "none";
+    /** сброс содержимого, переименование и сброс директорий объединяются для одновременно полученных файлов */
+    static final String BATCHED = "batched";
+    /** каждый полученный файл и его директория сбрасываются на диск отдельно */
+    static final String PER_FILE = "per-file";
+    private final String policy;
+    /** объект для синхронизации групп */
+    private final Object groupLock = new Object();
+    /** размещения, ожидающие фиксации в открытой группе */
+    private List<Placement> queued = new ArrayList<>();
+    /** номер группы, в которую попадают новые размещения */
+    private long openGroup = 1;
+    /** номер последней зафиксированной группы */
+    private long committedGroup;
+    /** флаг фиксации группы, которая уже закрыта для новых размещений */
+    private boolean committing;
+    /** флаг успешного сброса хотя бы одной директории, после него ошибки сброса не отключают его */
+    private volatile boolean directorySyncVerified;
+    /** флаг, указывающий что файловая система не позволяет сбрасывать директории (например, Windows) */
+    private volatile boolean directorySyncUnsupported;
+
+    /** @param policy {@link #NONE}, {@link #BATCHED} или {@link #PER_FILE} */
+    FileCommitter(String policy) {
+        if (!NONE.equals(policy) && !BATCHED.equals(policy) && !PER_FILE.equals(policy)) {
+            throw new IllegalArgumentException("Unknown durability " + policy);
+        }
+        this.policy = policy;
+    }
+
+    /**Открывает временный файл для записи содержимого заявленного размера. Если на диске не хватает места, файл не
+     * создается. Размер файла устанавливается заранее записью последнего байта, поэтому размер в метаданных не
+     * изменяется при каждой записи. Это только подсказка размера: файл остается разреженным, и блоки на диске не
+     * резервируются, так как Java не позволяет выделить место под файл без записи всего содержимого.
+     * @param temporaryFile путь к временному файлу
+     * @param sizeHint заявленный размер содержимого
+     * @return канал записи, установленный на начало файла
+     * @throws IOException если на диске не хватает места или файл не удалось создать
+     */
+    static FileChannel openTemporary(File temporaryFile, long sizeHint) throws IOException {
+        File directory = temporaryFile.getParentFile();
+        if (sizeHint > 0 && directory != null && directory.getUsableSpace() < sizeHint) {
+            throw new IOException("Not enough disk space for " + sizeHint + " bytes");
+        }
+        FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            if (sizeHint > 0) {
+                channel.write(ByteBuffer.allocate(1), sizeHint - 1);
+                channel.position(0);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**Сбрасывает содержимое уже закрытого файла на диск, если этого требует политика. Используется для файлов,
+     * которые заменяются под объектом синхронизации файла, а не через {@link #place(List)}.
+     * @param file путь к файлу
+     * @throws IOException if I/O errors occurred
+     */
+    void syncContent(File file) throws IOException {
+        if (!NONE.equals(policy)) {
+            force(file);
+        }
+    }
+
+    /**Атомарно заменяет файл другим файлом. Если файловая система не поддерживает атомарное переименование, файл
+     * заменяется обычным переименованием.
+     * @param source временный или переименовываемый файл
+     * @param target путь, по которому размещается файл
+     * @throws IOException если файл не удалось заменить
+     */
+    static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**Размещает полученные файлы: сбрасывает на диск их содержимое, выполняет их размещение и сбрасывает на диск
+     * директории размещенных файлов. При политике {@link #BATCHED} размещения могут быть выполнены другим потоком
+     * вместе с размещениями его группы. Вызывается без объектов синхронизации файлов, так как размещение берет их само.
+     * Результат каждого размещения - {@link Placement#isPlaced()}, временный файл неразмещенного файла удаляет
+     * вызывающий метод.
+     * @param placements размещения полученных файлов
+     */
+    void place(List<Placement> placements) {
+        if (placements.isEmpty()) {
+            return;
+        }
+        if (NONE.equals(policy)) {
+            for (Placement placement : placements) {
+                placement.placed = perform(placement, false);
+            }
+            return;
+        }
+        if (PER_FILE.equals(policy)) {
+            for (Placement placement : placements) {
+                placement.placed = perform(placement, true);
+                if (placement.placed) {
+                    syncDirectories(Collections.singleton(placement.directory));
+                }
+            }
+            return;
+        }
+        long group;
+        List<Placement> leading;
+        boolean interrupted = false;
+        synchronized (groupLock) {
+            queued.addAll(placements);
+            group = openGroup;
+            while (committing && committedGroup < group) {
+                try {
+                    groupLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (committedGroup >= group) {
+                leading = null;
+            } else {
+                committing = true;
+                leading = queued;
+                queued = new ArrayList<>();
+                openGroup++;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (leading == null) {
+            return;
+        }
+        try {
+            commitGroup(leading);
+        } finally {
+            synchronized (groupLock) {
+                committedGroup = group;
+                committing = false;
+                groupLock.notifyAll();
+            }
+        }
+    }
+
+    /**Сбрасывает на диск директории файлов, которые были размещены без {@link #place(List)}, например
+     * переименованных из другого файла директории, тоже группами при политике {@link #BATCHED}
+     * @param directories директории размещенных файлов
+     */
+    void commitDirectories(Collection<File> directories) {
+        List<Placement> placements = new ArrayList<>(directories.size());
+        for (File directory : directories) {
+            placements.add(new Placement(null, directory, () -> { }));
+        }
+        place(placements);
+    }
+
+    /** @param directory директория размещенного файла */
+    void commitDirectory(File directory) {
+        commitDirectories(Collections.singletonList(directory));
+    }
+
+    /** фиксирует группу: сначала содержимое всех файлов, затем переименования, затем директории по одному разу */
+    private void commitGroup(List<Placement> group) {
+        List<Placement> synced = new ArrayList<>(group.size());
+        for (Placement placement : group) {
+            try {
+                if (placement.temporaryFile != null) {
+                    force(placement.temporaryFile);
+                }
+                synced.add(placement);
+            } catch (IOException e) {
+                LOGGER.debug("cannot sync {}", placement.temporaryFile.getName(), e);
+                placement.failure = e;
+            }
+        }
+        Set<File> directories = new LinkedHashSet<>();
+        for (Placement placement : synced) {
+            placement.placed = perform(placement, false);
+            if (placement.placed) {
+                directories.add(placement.directory);
+            }
+        }
+        syncDirectories(directories);
+    }
+
+    /**@param syncContent true если содержимое нужно сбросить на диск перед размещением
+     * @return true если файл размещен */
+    private boolean perform(Placement placement, boolean syncContent) {
+        try {
+            if (syncContent && placement.temporaryFile != null) {
+                force(placement.temporaryFile);
+            }
+            placement.action.place();
+            return true;
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            placement.failure = e;
+            return false;
+        }
+    }
+
+    private static void force(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /** Сбрасывает директории на диск. Удаленная за это время директория пропускается. Сброс отключается, только если
+     * файловая система не позволила сбросить первую же директорию; последующие ошибки записываются в журнал, а
+     * остальные директории все равно сбрасываются. */
+    private void syncDirectories(Set<File> directories) {
+        if (directorySyncUnsupported) {
+            return;
+        }
+        for (File directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+                directorySyncVerified = true;
+            } catch (NoSuchFileException e) {
+                LOGGER.debug("directory {} was deleted before sync", directory);
+            } catch (IOException e) {
+                if (!directorySyncVerified) {
+                    LOGGER.info("Directory {} cannot be synced, only file contents will be synced", directory, e);
+                    directorySyncUnsupported = true;
+                    return;
+                }
+                LOGGER.warn("Directory {} was not synced", directory, e);
+            }
+        }
+    }
+
+    /** Действие, размещающее полученный файл: переименование и обновление индекса под объектом синхронизации файла */
+    @FunctionalInterface
+    interface Action {
+        void place() throws IOException;
+    }
+
+    /** Размещение одного полученного файла и его результат */
+    static final class Placement {
+        /** временный файл, содержимое которого сбрасывается на диск перед размещением, null если его нет */
+        private final File temporaryFile;
+        /** директория, которая сбрасывается на диск после размещения */
+        private final File directory;
+        private final Action action;
+        /** результат размещения, записывается до возвращения из {@link #place(List)} */
+        private volatile boolean placed;
+        /** исключение, из-за которого файл не размещен, null если он размещен */
+        private volatile IOException failure;
+
+        /**@param temporaryFile временный файл с полученным содержимым, null если содержимое не сбрасывается
+         * @param directory директория, в которой размещается файл
+         * @param action размещение файла
+         */
+        Placement(File temporaryFile, File directory, Action action) {
+            this.temporaryFile = temporaryFile;
+            this.directory = directory;
+            this.action = action;
+        }
+
+        /** @return true если файл размещен */
+        boolean isPlaced() {
+            return placed;
+        }
+
+        /** @return исключение, из-за которого файл не размещен, null если он размещен */
+        IOException getFailure() {
+            return failure;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/** Отправляет изменения по нескольким параллельным соединениям (полосам). Каждая полоса - отдельный отправитель со своим
+ * соединением и своим потоком. Операции над маленькими файлами, удаления и операции над директориями идут по
+ * приоритетным полосам, а содержимое больших файлов - по выделенным, поэтому передача больших файлов не задерживает
+ * маленькие. Полоса выбирается по пути файла, а операция над путем, по которому еще выполняется предыдущая операция,
+ * начинается только после ее завершения, поэтому операции над одним файлом выполняются в порядке отправки.
+ * <p>Отправитель полосы может и не поддерживать конвейерную отправку: его операции выполняются в потоке полосы по
+ * одной, поэтому с одной полосой этот класс служит переходником от {@link ChangesSender} к
+ * {@link PipelinedChangesSender}. Полосы могут и разделять один отправитель с конвейерной отправкой: он передает
+ * содержимое в потоке, поставившем операцию, поэтому большой файл занимает поток своей полосы, а не поток монитора.
+ */
+public class LaneChangesSender implements PipelinedChangesSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LaneChangesSender.class);
+    /** полосы для маленьких файлов и операций без содержимого */
+    private final Lane[] smallLanes;
+    /** полосы для больших файлов, пустой массив если они не выделены */
+    private final Lane[] largeLanes;
+    /** минимальный размер файла, содержимое которого отправляется по полосе для больших файлов, в байтах */
+    private final long largeFileLength;
+    /** результат последней поставленной в очередь операции по каждому пути, изменяется под собственным монитором */
+    private final Map<File, CompletableFuture<?>> tails = new HashMap<>();
+
+    /**
+     * @param senders создает отправитель для каждой полосы
+     * @param smallLanes количество полос для маленьких файлов
+     * @param largeLanes количество полос для больших файлов, 0 если все операции идут по общим полосам
+     * @param largeFileLength минимальный размер файла, содержимое которого отправляется по полосе для больших файлов
+     */
+    public LaneChangesSender(Supplier<ChangesSender> senders, int smallLanes, int largeLanes, long largeFileLength) {
+        if (smallLanes < 1 || largeLanes < 0) {
+            throw new IllegalArgumentException("Wrong lane count " + smallLanes + "/" + largeLanes);
+        }
+        this.smallLanes = new Lane[smallLanes];
+        for (int i = 0; i < smallLanes; i++) {
+            this.smallLanes[i] = new Lane(senders.get(), "sender small lane " + i);
+        }
+        this.largeLanes = new Lane[largeLanes];
+        for (int i = 0; i < largeLanes; i++) {
+            this.largeLanes[i] = new Lane(senders.get(), "sender large lane " + i);
+        }
+        this.largeFileLength = largeFileLength;
+    }
+
+    @Override
+    public boolean sendNew(File fnew) {
+        return await(submit(fnew, SharedDirService.NEW_FILE));
+    }
+
+    @Override
+    public boolean sendModify(File fmod) {
+        return await(submit(fmod, SharedDirService.MODIFY_FILE));
+    }
+
+    @Override
+    public boolean sendDelete(File fdel) {
+        return await(submit(fdel, SharedDirService.DELETE_FILE));
+    }
+
+    @Override
+    public boolean sendDirectory(File directory, int receiverInstruction) {
+        return await(submit(directory, receiverInstruction));
+    }
+
+    @Override
+    public boolean sendCopy(File source, File target, byte[] hash, int receiverInstruction) {
+        return await(submitCopy(source, target, hash, receiverInstruction));
+    }
+
+    /** Сверка выполняется через первую полосу */
+    @Override
+    public boolean reconcile(DirectoryIndex index, Set<File> filesToCreate, Set<File> filesToModify) {
+        return smallLanes[0].sender.reconcile(index, filesToCreate, filesToModify);
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> submit(File file, int receiverInstruction) {
+        long length = SharedDirService.carriesContent(receiverInstruction) ? file.length() : 0;
+        return schedule(laneFor(file, length), Collections.singletonList(file),
+                sender -> submit(sender, file, receiverInstruction));
+    }
+
+    @Override
+    public CompletableFuture<TransferResult> submitCopy(File source, File target, byte[] hash,
+                                                        int receiverInstruction) {
+        return schedule(laneFor(target, 0), Arrays.asList(source, target), sender -> {
+            if (sender instanceof PipelinedChangesSender) {
+                return ((PipelinedChangesSender) sender).submitCopy(source, target, hash, receiverInstruction);
+            }
+            long start = System.nanoTime();
+            boolean success = sender.sendCopy(source, target, hash, receiverInstruction);
+            return CompletableFuture.completedFuture(complete(success, 0, start));
+        });
+    }
+
+    /** Операции делятся по полосам для маленьких файлов, каждая часть отправляется своим кадром */
+    @Override
+    public Map<File, CompletableFuture<TransferResult>> submitBatch(Map<File, Integer> changes) {
+        Map<Lane, Map<File, Integer>> parts = new LinkedHashMap<>();
+        for (Map.Entry<File, Integer> change : changes.entrySet()) {
+            parts.computeIfAbsent(laneOf(smallLanes, change.getKey()), lane -> new LinkedHashMap<>())
+                    .put(change.getKey(), change.getValue());
+        }
+        Map<File, CompletableFuture<TransferResult>> answers = new LinkedHashMap<>();
+        for (Map.Entry<Lane, Map<File, Integer>> part : parts.entrySet()) {
+            answers.putAll(scheduleBatch(part.getKey(), part.getValue()));
+        }
+        return answers;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        Set<ChangesSender> closed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Lane lane : allLanes()) {
+            lane.executor.shutdownNow();
+            if (!closed.add(lane.sender)) {
+                continue;
+            }
+            try {
+                lane.sender.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** @return полоса для операции над файлом: по размеру содержимого и пути */
+    private Lane laneFor(File file, long length) {
+        return length >= largeFileLength && largeLanes.length > 0 ? laneOf(largeLanes, file) : laneOf(smallLanes, file);
+    }
+
+    private static Lane laneOf(Lane[] lanes, File file) {
+        return lanes[Math.floorMod(file.hashCode(), lanes.length)];
+    }
+
+    private List<Lane> allLanes() {
+        List<Lane> lanes = new ArrayList<>(Arrays.asList(smallLanes));
+        lanes.addAll(Arrays.asList(largeLanes));
+        return lanes;
+    }
+
+    /**Ставит операцию в очередь полосы
+     * @param lane полоса
+     * @param paths пути, над которыми выполняется операция
+     * @param operation отправка операции через отправитель полосы
+     * @return результат операции, длительность которой отсчитывается от постановки в очередь полосы
+     */
+    private CompletableFuture<TransferResult> schedule(Lane lane, Collection<File> paths,
+                                                       Function<ChangesSender, CompletableFuture<TransferResult>>
+                                                               operation) {
+        long start = System.nanoTime();
+        CompletableFuture<TransferResult> answer = new CompletableFuture<>();
+        after(paths, answer).thenRunAsync(() -> operation.apply(lane.sender).whenComplete((result, e) ->
+                answer.complete(queued(result, e, start))), lane.executor).exceptionally(e -> {
+            answer.complete(TransferResult.failed(e, System.nanoTime() - start));
+            return null;
+        });
+        return answer;
+    }
+
+    /**Ставит операции в очередь полосы одним кадром
+     * @param lane полоса
+     * @param batch сигналы для сервера по путям к отправляемым файлам
+     * @return результаты операций по путям к файлам
+     */
+    private Map<File, CompletableFuture<TransferResult>> scheduleBatch(Lane lane, Map<File, Integer> batch) {
+        long start = System.nanoTime();
+        Map<File, CompletableFuture<TransferResult>> answers = new LinkedHashMap<>();
+        for (File file : batch.keySet()) {
+            answers.put(file, new CompletableFuture<>());
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(answers.values().toArray(new CompletableFuture<?>[0]));
+        after(batch.keySet(), all).thenRunAsync(() -> {
+            if (lane.sender instanceof PipelinedChangesSender) {
+                Map<File, CompletableFuture<TransferResult>> sent =
+                        ((PipelinedChangesSender) lane.sender).submitBatch(batch);
+                for (Map.Entry<File, CompletableFuture<TransferResult>> answer : answers.entrySet()) {
+                    sent.get(answer.getKey()).whenComplete((result, e) ->
+                            answer.getValue().complete(queued(result, e, start)));
+                }
+            } else {
+                for (Map.Entry<File, Integer> change : batch.entrySet()) {
+                    answers.get(change.getKey()).complete(
+                            queued(submit(lane.sender, change.getKey(), change.getValue()).join(), null, start));
+                }
+            }
+        }, lane.executor).exceptionally(e -> {
+            answers.values().forEach(answer -> answer.complete(TransferResult.failed(e, System.nanoTime() - start)));
+            return null;
+        });
+        return answers;
+    }
+
+    /**Записывает операцию последней по ее путям
+     * @param paths пути, над которыми выполняется операция
+     * @param operation результат операции
+     * @return результат, который завершается после завершения предыдущих операций над этими путями
+     */
+    private CompletableFuture<Void> after(Collection<File> paths, CompletableFuture<?> operation) {
+        List<CompletableFuture<?>> previous = new ArrayList<>();
+        synchronized (tails) {
+            for (File path : paths) {
+                CompletableFuture<?> tail = tails.put(path, operation);
+                if (tail != null) {
+                    previous.add(tail);
+                }
+            }
+        }
+        operation.whenComplete((success, e) -> {
+            synchronized (tails) {
+                for (File path : paths) {
+                    tails.remove(path, operation);
+                }
+            }
+        });
+        return CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[0])).handle((success, e) -> null);
+    }
+
+    /** отправляет операцию через отправитель полосы, вызывается в потоке полосы. Количество отправленных байт
+     * известно только от {@link PipelinedChangesSender} и {@link SocketChangesSender}, для остальных отправителей в
+     * результате указывается 0 */
+    private static CompletableFuture<TransferResult> submit(ChangesSender sender, File file,
+                                                            int receiverInstruction) {
+        if (sender instanceof PipelinedChangesSender) {
+            return ((PipelinedChangesSender) sender).submit(file, receiverInstruction);
+        }
+        long start = System.nanoTime();
+        if (sender instanceof SocketChangesSender) {
+            TransferResult.Sent sent = new TransferResult.Sent();
+            boolean success = ((SocketChangesSender) sender).sendChange(file, receiverInstruction, sent);
+            return CompletableFuture.completedFuture(complete(success, sent.getBytes(), start));
+        }
+        boolean success;
+        switch (receiverInstruction) {
+            case SharedDirService.NEW_FILE:
+                success = sender.sendNew(file);
+                break;
+            case SharedDirService.MODIFY_FILE:
+                success = sender.sendModify(file);
+                break;
+            case SharedDirService.DELETE_FILE:
+                success = sender.sendDelete(file);
+                break;
+            default:
+                success = sender.sendDirectory(file, receiverInstruction);
+                break;
+        }
+        return CompletableFuture.completedFuture(complete(success, 0, start));
+    }
+
+    /**@param bytes количество байт содержимого, записанных отправителем в соединение
+     * @return результат операции отправителя без конвейерной отправки, начатой в момент start */
+    private static TransferResult complete(boolean success, long bytes, long start) {
+        long duration = System.nanoTime() - start;
+        return success ? TransferResult.success(bytes, duration) : TransferResult.notConfirmed(duration);
+    }
+
+    /**@param result результат операции отправителя полосы
+     * @param e исключение, которым завершилась операция, если результата нет
+     * @param start время постановки операции в очередь полосы
+     * @return результат с длительностью, отсчитанной от постановки в очередь полосы
+     */
+    private static TransferResult queued(TransferResult result, Throwable e, long start) {
+        long duration = System.nanoTime() - start;
+        if (result == null) {
+            return TransferResult.failed(e, duration);
+        }
+        return result.withDuration(duration);
+    }
+
+    /** @return true если операция подтверждена сервером, ожидает ее результата */
+    static boolean await(CompletableFuture<TransferResult> answer) {
+        try {
+            TransferResult result = answer.get();
+            if (!result.isSuccess() && result.getCause() != null) {
+                LOGGER.warn("IO exception during file sending", result.getCause());
+            }
+            return result.isSuccess();
+        } catch (ExecutionException e) {
+            LOGGER.warn("IO exception during file sending", e.getCause());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Полоса: отправитель со своим соединением и поток, в котором операции передаются ему по очереди */
+    private static final class Lane {
+        private final ChangesSender sender;
+        private final ExecutorService executor;
+
+        private Lane(ChangesSender sender, String name) {
+            this.sender = sender;
+            this.executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.pavel.shareddirectories;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Гистограмма длительностей с интервалами по степеням двойки: интервал i содержит значения от 2^(i-1) до 2^i - 1
+ * микросекунд. Запись не выделяет память и не блокирует, поэтому вызывается прямо в потоках передачи. Процентили
+ * оцениваются сверху границей интервала, в который они попадают.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+    /** количество интервалов, последний содержит все значения от 2^38 микросекунд */
+    private static final int BUCKETS = 40;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /** @param nanos длительность в наносекундах */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getMeanMicros() {
+        long recorded = count.sum();
+        return recorded == 0 ? 0 : totalMicros.sum() / recorded;
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    @Override
+    public long getP50Micros() {
+        return percentileMicros(0.5);
+    }
+
+    @Override
+    public long getP90Micros() {
+        return percentileMicros(0.9);
+    }
+
+    @Override
+    public long getP99Micros() {
+        return percentileMicros(0.99);
+    }
+
+    /**
+     * @param fraction доля значений, от 0 до 1
+     * @return верхняя граница значения, не больше которого доля fraction записанных значений, 0 если значений нет
+     */
+    long percentileMicros(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += buckets.get(i);
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && total > 0; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min((1L << i) - 1, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /** @return значения гистограммы в виде объекта JSON */
+    String toJson() {
+        return String.format("{\"count\":%d,\"meanMicros\":%d,\"p50Micros\":%d,\"p90Micros\":%d,\"p99Micros\":%d,"
+                        + "\"maxMicros\":%d}", getCount(), getMeanMicros(), getP50Micros(), getP90Micros(),
+                getP99Micros(), getMaxMicros());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count %d, mean %d us, p50 %d us, p90 %d us, p99 %d us, max %d us", getCount(),
+                getMeanMicros(), getP50Micros(), getP90Micros(), getP99Micros(), getMaxMicros());
+    }
+}
@@ -0,0 +1,16 @@
+package com.pavel.shareddirectories;
+
+/** Атрибуты {@link LatencyHistogram}, доступные через JMX */
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    long getMeanMicros();
+
+    long getMaxMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+}
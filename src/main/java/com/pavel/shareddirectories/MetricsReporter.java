@@ -0,0 +1,61 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Периодически записывает снимок {@link SyncMetrics}: в журнал текстом или, если задан файл, в этот файл в виде JSON.
+ * Файл заменяется целиком, поэтому читатель всегда видит последний полный снимок.
+ */
+final class MetricsReporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsReporter.class);
+    private final SyncMetrics metrics;
+    /** файл снимка, null если снимок записывается в журнал */
+    private final File file;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param metrics счетчики сервиса
+     * @param intervalMs интервал между снимками, в милисекундах
+     * @param file файл снимка в формате JSON, null если снимок записывается в журнал
+     */
+    MetricsReporter(SyncMetrics metrics, long intervalMs, File file) {
+        this.metrics = metrics;
+        this.file = file;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics reporter thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** записывает последний снимок и останавливает поток */
+    void close() {
+        timer.shutdownNow();
+        report();
+    }
+
+    private void report() {
+        if (file == null) {
+            LOGGER.info("Metrics: {}", metrics);
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(temporary.toPath(), Collections.singletonList(metrics.toJson()), StandardCharsets.UTF_8);
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Metrics snapshot was not written to {}", file, e);
+        }
+    }
+}
@@ -4,29 +4,86 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class Monitor{
     private static final Logger LOGGER = LoggerFactory.getLogger(Monitor.class);
+    /** количество попыток отправки операции в одной итерации при конвейерной отправке */
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    /** максимальный размер файла, операции над которым объединяются в кадр {@link SharedDirService#BATCH}, в байтах */
+    private static final long BATCH_FILE_LENGTH = 64 * 1024;
+    /** максимальное количество операций в одном кадре {@link SharedDirService#BATCH} */
+    private static final int BATCH_MAX_FILES = 256;
+    /** максимальный суммарный размер файлов одного кадра {@link SharedDirService#BATCH}, в байтах */
+    private static final long BATCH_MAX_BYTES = 1024 * 1024;
+    /** минимальный размер файла, для которого ищется файл с тем же содержимым */
+    private static final long COPY_MIN_LENGTH = 1024 * 1024;
+    /** минимальный размер файла, завершения передачи которого итерация не дожидается, в байтах */
+    private static final long DETACH_LENGTH = 1024 * 1024;
+    /** интервал проверки завершения передачи больших файлов во время ожидания событий, в милисекундах */
+    private static final long IN_FLIGHT_CHECK_MS = 100;
+    /** служебные директории сервиса в корне используемой директории */
+    static final Set<String> SERVICE_DIRECTORIES = new HashSet<>(Arrays.asList(".download", ".index"));
     /** коллекция, в которой хранится подтвержденное состояние директории */
-    private final ConcurrentHashMap<File, Long> sharedDirIndex;
-    private final ChangesSender changesSender;
+    private final DirectoryIndex sharedDirIndex;
+    private final PipelinedChangesSender changesSender;
     /** путь до используемой директории */
     private final File sharedDirPath;
-    /** объект для синхронизации монитора и сервера */
-    private final Object locker;
+    /** объекты для синхронизации проверки файла с его получением от удаленного пользователя */
+    private final PathLocks pathLocks;
     /** поток в котором запускается проверка директории */
     private volatile Thread client;
     /** флаг для остановки проверки директории */
     private volatile boolean clientClosed;
+    /** true если изменения отслеживаются через события файловой системы, false для периодического опроса */
+    private final boolean watchEvents;
+    /** интервал опроса директории, в милисекундах */
+    private final long pollIntervalMs;
+    /** источник событий директории, null в режиме опроса */
+    private volatile DirectoryWatcher watcher;
+    /** файлы, которые не удалось отправить на последней итерации */
+    private final Set<File> failedFiles = new HashSet<>();
+    /** время, после которого файлы из {@link Monitor#failedFiles} отправляются повторно */
+    private long retryTime;
+    /** true пока не выполнено первое сканирование восстановленного с диска индекса, в нем файлы, у которых изменилось
+     * только время изменения, сверяются по контрольной сумме */
+    private boolean verifyRestored;
+    /** новые файлы, которые сервер отказался получить из файла с тем же содержимым, они отправляются целиком */
+    private final Set<File> copyRefused = new HashSet<>();
+    /** true пока состояние директории не сверено с удаленным пользователем: после запуска и после неудачных отправок,
+     * которые обычно означают потерю соединения */
+    private boolean reconcilePending = true;
+    /** завершившиеся операции конвейерной отправки */
+    private final BlockingQueue<Operation> completed = new LinkedBlockingQueue<>();
+    /** незавершенные операции конвейерной отправки по путям файлов, в том числе передача больших файлов, начатая на
+     * предыдущих итерациях */
+    private final Map<File, Operation> inFlight = new HashMap<>();
+    /** файлы, изменения которых отложены до завершения операции из {@link Monitor#inFlight}, по путям этих операций */
+    private final Map<File, Set<File>> deferredFiles = new HashMap<>();
+    /** файлы с отложенными изменениями, операция над которыми завершилась; проверяются на следующей итерации */
+    private final Set<File> recheckFiles = new HashSet<>();
+    /** задерживает отправку файлов, запись которых еще продолжается */
+    private final ChangeDebouncer debouncer;
+    /** счетчики сервиса */
+    private final SyncMetrics metrics;
 
-    public Monitor(ConcurrentHashMap <File, Long> sharedDirIndex, ChangesSender changesSender, File sharedDirPath,
-                   Object locker) {
+    public Monitor(DirectoryIndex sharedDirIndex, PipelinedChangesSender changesSender, File sharedDirPath,
+                   PathLocks pathLocks, SharedDirSettings settings, SyncMetrics metrics) {
         this.changesSender = changesSender;
         this.sharedDirPath = sharedDirPath;
         this.sharedDirIndex = sharedDirIndex;
-        this.locker = locker;
+        this.pathLocks = pathLocks;
+        this.watchEvents = settings.isWatchMode();
+        this.pollIntervalMs = settings.getPollIntervalMs();
+        this.verifyRestored = sharedDirIndex.isRestored();
+        this.debouncer = new ChangeDebouncer(settings.getQuietPeriodMs(), settings.getMaxHoldMs());
+        this.metrics = metrics;
     }
     /** запускает {@link Monitor#check()} в отдельном демон-потоке */
     public synchronized void start() {
@@ -41,70 +98,653 @@ public class Monitor{
            }
     }
 
-    /**Проверяет произошедшие изменения в указанной директории {@link Monitor#sharedDirPath}(создание, изменение или
-     * удаление файла) и отправляет их на сервер с помощью {@link ChangesSender}. после подтверждения записывает изменения
-     * в {@link Monitor#sharedDirIndex}.
+    /**Проверяет произошедшие изменения в указанной директории {@link Monitor#sharedDirPath} и ее поддиректориях
+     * (создание, изменение или удаление файла, создание или удаление директории) и отправляет их на сервер с помощью
+     * {@link PipelinedChangesSender}. после подтверждения записывает изменения в {@link Monitor#sharedDirIndex}. Первая
+     * проверка и проверка после переполнения очереди событий выполняются полным параллельным обходом дерева
+     * ({@link DirectoryScan}),
+     * остальные - только по файлам, о которых сообщил {@link DirectoryWatcher}, и содержимому новых и удаленных
+     * директорий. Если индекс был
+     * восстановлен с диска, первая проверка отправляет изменения, сделанные пока сервис был остановлен. После запуска и
+     * после неудачных отправок к изменениям добавляются расхождения, найденные сверкой с удаленным пользователем.
      * @see SharedDirService
-     * @see ChangesSender
+     * @see PipelinedChangesSender
      */
     private void check() {
+        startWatcher();
+        /* файлы для проверки на текущей итерации, null означает полное сканирование директории */
+        Set<File> changedFiles = null;
         while (!clientClosed) {
             LOGGER.debug("client start new iteration");
-            Set<File> filesToCreate = new HashSet<>();
-            Set<File> filesToModify = new HashSet<>();
-            Set<File> filesToDelete = new HashSet<>();
-            HashSet<File> currentFilesInPath = new HashSet<>();
-            synchronized (locker) {
-                LOGGER.debug("client entered synchronized block");
-                for (File element : Objects.requireNonNull(sharedDirPath.listFiles())) {
-                    if (element.isHidden() || element.isDirectory()){
-                        continue;
-                    }
-                    currentFilesInPath.add(element);
-                    if (!sharedDirIndex.containsKey(element)) {
-                        LOGGER.debug("client found new file {}", element.getName());
-                        filesToCreate.add(element);
-                    } else if (sharedDirIndex.get(element) != element.lastModified()) {
-                        LOGGER.debug("client found mod file {}", element.getName());
-                        filesToModify.add(element);
-                    }
+            if (inFlight.isEmpty()) {
+                /* ни одна операция не хранит версию индекса, прочитанную до этой итерации */
+                sharedDirIndex.forgetRemoved();
+            }
+            Set<File> filesToCreate = ConcurrentHashMap.newKeySet();
+            Set<File> filesToModify = ConcurrentHashMap.newKeySet();
+            Set<File> filesToDelete = ConcurrentHashMap.newKeySet();
+            long scanStart = System.nanoTime();
+            int scanned;
+            if (changedFiles == null) {
+                scanned = classifyAll(filesToCreate, filesToModify, filesToDelete);
+                verifyRestored = false;
+                copyRefused.clear();
+            } else {
+                scanned = changedFiles.size();
+                for (File element : changedFiles) {
+                    classify(element, filesToCreate, filesToModify, filesToDelete);
+                    classifyNested(element, filesToCreate, filesToModify, filesToDelete);
                 }
-                for (File element : sharedDirIndex.keySet())
-                    if (!currentFilesInPath.contains(element)) {
-                        LOGGER.debug("client found del file {}", element.getName());
-                        filesToDelete.add(element);
-                    }
-                LOGGER.debug("client end of synchronized block");
             }
+            if (reconcilePending) {
+                reconcile(filesToCreate, filesToModify, filesToDelete);
+            }
+            debouncer.retainStable(filesToCreate);
+            debouncer.retainStable(filesToModify);
+            filesToDelete.forEach(debouncer::forget);
+            metrics.recordScan(System.nanoTime() - scanStart, scanned);
             LOGGER.debug("client start send block");
-            for (File element : filesToCreate) {
-                if (changesSender.sendNew(element)) {
-                    sharedDirIndex.put(element, element.lastModified());
+            int failedBefore = failedFiles.size();
+            defer(filesToCreate);
+            defer(filesToModify);
+            defer(filesToDelete);
+            List<Operation> operations = plan(filesToCreate, filesToModify, filesToDelete);
+            sendPipelined(changesSender, operations);
+            if (failedFiles.size() > failedBefore) {
+                reconcilePending = true;
+            }
+            if (failedFiles.size() > failedBefore || reconcilePending) {
+                retryTime = System.currentTimeMillis() + pollIntervalMs;
+            }
+            metrics.recordQueues(inFlight.size(), failedFiles.size(), debouncer.size());
+            LOGGER.debug("client end send block and iteration");
+            changedFiles = awaitChanges();
+        }
+        stopWatcher();
+    }
+
+    /** откладывает изменения файлов, передача которых еще продолжается, до ее завершения */
+    private void defer(Set<File> files) {
+        if (inFlight.isEmpty()) {
+            return;
+        }
+        for (Iterator<File> iterator = files.iterator(); iterator.hasNext(); ) {
+            File file = iterator.next();
+            if (inFlight.containsKey(file)) {
+                LOGGER.debug("client defers {} until its transfer completes", file.getName());
+                deferredFiles.computeIfAbsent(file, path -> new HashSet<>()).add(file);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**Сверяет подтвержденное состояние директории с удаленным пользователем и добавляет к изменениям файлы, которых у
+     * него нет или копия которых у него устарела. Если сверка не удалась, она повторяется на следующей итерации.
+     * @param filesToCreate новые файлы
+     * @param filesToModify измененные файлы
+     * @param filesToDelete удаленные файлы, они не отправляются повторно
+     */
+    private void reconcile(Set<File> filesToCreate, Set<File> filesToModify, Set<File> filesToDelete) {
+        int completed = sharedDirIndex.completeHashes();
+        if (completed > 0) {
+            LOGGER.debug("client computed hashes of {} files before reconciliation", completed);
+        }
+        Set<File> missing = new HashSet<>();
+        Set<File> outdated = new HashSet<>();
+        if (!changesSender.reconcile(sharedDirIndex, missing, outdated)) {
+            LOGGER.debug("client could not reconcile directory, will retry");
+            return;
+        }
+        reconcilePending = false;
+        missing.removeAll(filesToDelete);
+        outdated.removeAll(filesToDelete);
+        if (!missing.isEmpty() || !outdated.isEmpty()) {
+            LOGGER.info("Reconciliation found {} files missing and {} outdated on remote side", missing.size(),
+                    outdated.size());
+        }
+        filesToModify.removeAll(missing);
+        filesToCreate.addAll(missing);
+        outdated.removeAll(filesToCreate);
+        filesToModify.addAll(outdated);
+    }
+
+    /**Составляет операции отправки. Для больших новых файлов, размер которых совпадает с размером файла индекса с
+     * вычисленной контрольной суммой, вычисляется контрольная сумма, и файл, содержимое которого уже есть в индексе,
+     * отправляется как переименование удаленного файла
+     * ({@link SharedDirService#RENAME}) или копия неизмененного файла ({@link SharedDirService#COPY_FROM}). Из
+     * удаленных директорий отправляются только верхние, вложенные удаляются вместе с ними.
+     * @param filesToCreate новые файлы и директории
+     * @param filesToModify измененные файлы
+     * @param filesToDelete удаленные файлы и директории
+     * @return операции в порядке отправки: создания директорий, переименования и копии, создания, изменения,
+     * удаления файлов, удаления директорий
+     */
+    private List<Operation> plan(Set<File> filesToCreate, Set<File> filesToModify, Set<File> filesToDelete) {
+        List<Operation> operations = new ArrayList<>();
+        List<Operation> creates = new ArrayList<>();
+        Set<File> deleted = new HashSet<>(filesToDelete);
+        Set<File> directories = new TreeSet<>();
+        for (File element : filesToCreate) {
+            if (element.isDirectory()) {
+                directories.add(element);
+            }
+        }
+        for (File directory : directories) {
+            operations.add(newOperation(directory, SharedDirService.CREATE_DIRECTORY));
+        }
+        for (File element : filesToCreate) {
+            if (directories.contains(element)) {
+                continue;
+            }
+            Operation operation = newOperation(element, SharedDirService.NEW_FILE);
+            long length = element.length();
+            if (length >= COPY_MIN_LENGTH && !copyRefused.contains(element) && sharedDirIndex.hasHashedLength(length)) {
+                /* содержимое читается заранее, только если в индексе есть файл того же размера с контрольной суммой */
+                operation.computeHash();
+            }
+            File source = operation.hash == null || operation.hashedLength < COPY_MIN_LENGTH
+                    || copyRefused.contains(element) ? null : findSource(operation, deleted, filesToModify);
+            if (source == null) {
+                creates.add(operation);
+                continue;
+            }
+            LOGGER.debug("client found {} with content of {}", element.getName(), source.getName());
+            operation.source = source;
+            operation.instruction = deleted.remove(source) ? SharedDirService.RENAME : SharedDirService.COPY_FROM;
+            operations.add(operation);
+        }
+        operations.addAll(creates);
+        for (File element : filesToModify) {
+            operations.add(newOperation(element, SharedDirService.MODIFY_FILE));
+        }
+        Set<File> deletedDirectories = new TreeSet<>();
+        for (File element : deleted) {
+            DirectoryIndex.Entry indexed = sharedDirIndex.get(element);
+            if (indexed == null || !indexed.isDirectory()) {
+                operations.add(newOperation(element, SharedDirService.DELETE_FILE));
+            } else {
+                deletedDirectories.add(element);
+            }
+        }
+        List<File> topDirectories = new ArrayList<>();
+        for (File directory : deletedDirectories) {
+            if (!isInsideAny(topDirectories, directory)) {
+                topDirectories.add(directory);
+                operations.add(newOperation(directory, SharedDirService.DELETE_DIRECTORY));
+            }
+        }
+        return operations;
+    }
+
+    /** @return операция над файлом, запоминающая текущую версию записи о нем в индексе */
+    private Operation newOperation(File file, int instruction) {
+        return new Operation(file, instruction, sharedDirIndex.versionOf(file));
+    }
+
+    /** @return true если файл находится внутри одной из директорий */
+    private static boolean isInsideAny(List<File> directories, File file) {
+        for (File directory : directories) {
+            if (RelativePaths.isInside(directory, file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**Ищет в индексе файл с содержимым нового файла, который есть у удаленного пользователя
+     * @param operation операция создания с вычисленной контрольной суммой
+     * @param deleted удаленные файлы, еще не использованные для переименования
+     * @param filesToModify измененные файлы, их содержимое у удаленного пользователя устарело
+     * @return удаленный файл, если такой есть, иначе неизмененный существующий файл, или null
+     */
+    private File findSource(Operation operation, Set<File> deleted, Set<File> filesToModify) {
+        File copySource = null;
+        for (File candidate : sharedDirIndex.findByContent(operation.hashedLength, operation.hash)) {
+            if (deleted.contains(candidate)) {
+                return candidate;
+            }
+            DirectoryIndex.Entry indexed = sharedDirIndex.get(candidate);
+            if (copySource == null && !filesToModify.contains(candidate) && indexed != null
+                    && indexed.matches(candidate)) {
+                copySource = candidate;
+            }
+        }
+        return copySource;
+    }
+
+    /** запоминает состояние файла перед отправкой; если файл изменился после поиска файла с тем же содержимым,
+     * он отправляется целиком */
+    private void prepare(Operation operation) {
+        operation.prepare();
+        if (operation.attempts > 1) {
+            metrics.recordRetries(1);
+        }
+        if (operation.source != null && operation.hash == null) {
+            fallBackToWhole(operation);
+        }
+    }
+
+    /**Заменяет переименование или копию отправкой нового файла целиком. Удаление прежнего файла при переименовании
+     * отправляется при повторной проверке неудавшихся файлов.
+     * @param operation операция {@link SharedDirService#RENAME} или {@link SharedDirService#COPY_FROM}
+     */
+    private void fallBackToWhole(Operation operation) {
+        LOGGER.debug("client sends whole {} instead of {}", operation.file.getName(), operation.source.getName());
+        copyRefused.add(operation.file);
+        if (operation.instruction == SharedDirService.RENAME) {
+            failedFiles.add(operation.source);
+        }
+        operation.instruction = SharedDirService.NEW_FILE;
+        operation.source = null;
+    }
+
+    /** записывает в {@link Monitor#sharedDirIndex} результат подтвержденной операции вместе с контрольной суммой
+     * отправленного содержимого. Если на месте удаленного файла
+     * уже появилась директория или наоборот, она отправляется при повторной проверке неудавшихся файлов. Если за время
+     * отправки файл был получен от удаленного пользователя, запись индекса о полученном файле не заменяется */
+    private void applySuccess(Operation operation) {
+        switch (operation.instruction) {
+            case SharedDirService.DELETE_DIRECTORY:
+                if (!sharedDirIndex.removeTreeIfVersion(operation.file, operation.indexVersion)) {
+                    LOGGER.debug("client keeps directory {} received during delete", operation.file.getName());
+                } else if (operation.file.exists()) {
+                    failedFiles.add(operation.file);
                 }
+                return;
+            case SharedDirService.DELETE_FILE:
+                if (!sharedDirIndex.removeIfVersion(operation.file, operation.indexVersion)) {
+                    LOGGER.debug("client keeps {} received during delete", operation.file.getName());
+                } else if (operation.file.exists()) {
+                    failedFiles.add(operation.file);
+                }
+                return;
+            case SharedDirService.CREATE_DIRECTORY:
+                if (!sharedDirIndex.putIfVersion(operation.file, operation.indexVersion, DirectoryIndex.DIRECTORY_LENGTH,
+                        0, null)) {
+                    LOGGER.debug("client keeps {} received during directory create", operation.file.getName());
+                }
+                return;
+            default:
+                break;
+        }
+        if (operation.instruction == SharedDirService.RENAME) {
+            sharedDirIndex.remove(operation.source);
+        }
+        if (!sharedDirIndex.putIfVersion(operation.file, operation.indexVersion, operation.length,
+                operation.lastModified, operation.sentHash())) {
+            LOGGER.debug("client keeps {} received during send", operation.file.getName());
+        }
+    }
+
+    /**Отправляет изменения, не дожидаясь подтверждения предыдущих. Операции над маленькими файлами, удаления и
+     * операции над директориями объединяются в кадры {@link SharedDirService#BATCH}. {@link Monitor#sharedDirIndex}
+     * обновляется по мере получения подтверждений, неудавшиеся операции повторяются по отдельности до
+     * {@link #MAX_SEND_ATTEMPTS} раз, после чего откладываются до следующей итерации. Удаления директорий отправляются
+     * только после подтверждения всех предыдущих операций, иначе директория может оказаться еще не пустой. Метод
+     * возвращается, когда завершены все операции, кроме передачи больших файлов ({@link #DETACH_LENGTH}): она
+     * продолжается во время следующих итераций, а изменения файлов, по которым еще идет передача, откладываются до ее
+     * завершения.
+     * @param sender отправитель с окном неподтвержденных операций
+     * @param operations операции отправки
+     */
+    private void sendPipelined(PipelinedChangesSender sender, List<Operation> operations) {
+        applyCompleted(sender, false);
+        List<Operation> batch = new ArrayList<>();
+        long batchBytes = 0;
+        boolean drained = false;
+        for (Operation operation : operations) {
+            if (operation.source != null && inFlight.containsKey(operation.source)) {
+                LOGGER.debug("client defers {} until transfer of {} completes", operation.file.getName(),
+                        operation.source.getName());
+                deferredFiles.computeIfAbsent(operation.source, path -> new HashSet<>()).add(operation.file);
+                continue;
             }
-            for (File element : filesToModify){
-                if (changesSender.sendModify(element)){
-                    sharedDirIndex.put(element,element.lastModified());
+            if (operation.instruction == SharedDirService.DELETE_DIRECTORY && !drained) {
+                if (!batch.isEmpty()) {
+                    submitBatch(sender, batch);
+                    batch.clear();
+                    batchBytes = 0;
                 }
+                if (!drain(sender, true)) {
+                    return;
+                }
+                drained = true;
             }
-            for (File element : filesToDelete) {
-                if (changesSender.sendDelete(element)) {
-                    sharedDirIndex.remove(element);
+            long length = SharedDirService.carriesContent(operation.instruction) ? operation.file.length() : 0;
+            if (length > BATCH_FILE_LENGTH || operation.source != null) {
+                submit(sender, operation);
+            } else {
+                if (batch.size() == BATCH_MAX_FILES || batchBytes + length > BATCH_MAX_BYTES) {
+                    submitBatch(sender, batch);
+                    batch.clear();
+                    batchBytes = 0;
                 }
+                batch.add(operation);
+                batchBytes += length;
             }
-            LOGGER.debug("client end send block and iteration");
-            try {
+            applyCompleted(sender, false);
+        }
+        if (!batch.isEmpty()) {
+            submitBatch(sender, batch);
+        }
+        drain(sender, false);
+    }
+
+    /**Дожидается завершения отправленных операций
+     * @param sender отправитель, через который повторяются операции
+     * @param all true если нужно дождаться и передачи больших файлов
+     * @return false если ожидание было прервано
+     */
+    private boolean drain(PipelinedChangesSender sender, boolean all) {
+        while (hasAwaited(all)) {
+            if (!applyCompleted(sender, true)) {
+                LOGGER.debug("client interrupted while waiting for answers");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return true если есть незавершенные операции, которых нужно дождаться */
+    private boolean hasAwaited(boolean all) {
+        for (Operation operation : inFlight.values()) {
+            if (all || !operation.detached) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void submit(PipelinedChangesSender sender, Operation operation) {
+        prepare(operation);
+        track(operation);
+        operation.complete(operation.source == null ? sender.submit(operation.file, operation.instruction)
+                : sender.submitCopy(operation.source, operation.file, operation.hash, operation.instruction),
+                completed);
+    }
+
+    /**Отправляет операции одним кадром, результат каждой из них обрабатывается отдельно
+     * @param sender отправитель
+     * @param batch операции над маленькими файлами
+     */
+    private void submitBatch(PipelinedChangesSender sender, List<Operation> batch) {
+        Map<File, Integer> changes = new LinkedHashMap<>();
+        for (Operation operation : batch) {
+            prepare(operation);
+            track(operation);
+            changes.put(operation.file, operation.instruction);
+        }
+        Map<File, CompletableFuture<TransferResult>> answers = sender.submitBatch(changes);
+        for (Operation operation : batch) {
+            operation.complete(answers.get(operation.file), completed);
+        }
+    }
+
+    /** записывает операцию в {@link Monitor#inFlight} по всем ее путям */
+    private void track(Operation operation) {
+        inFlight.put(operation.file, operation);
+        if (operation.source != null) {
+            inFlight.put(operation.source, operation);
+        }
+    }
+
+    /** удаляет операцию из {@link Monitor#inFlight} по пути; отложенные до ее завершения изменения проверяются
+     * повторно */
+    private void untrack(File path, Operation operation) {
+        if (inFlight.remove(path, operation)) {
+            Set<File> waiting = deferredFiles.remove(path);
+            if (waiting != null) {
+                recheckFiles.addAll(waiting);
+            }
+        }
+    }
+
+    /**Применяет к {@link Monitor#sharedDirIndex} результаты завершившихся операций, неудавшиеся отправляет повторно
+     * @param sender отправитель, через который повторяются операции
+     * @param wait true если нужно дождаться хотя бы одной завершившейся операции
+     * @return false если ожидание было прервано
+     */
+    private boolean applyCompleted(PipelinedChangesSender sender, boolean wait) {
+        Operation operation;
+        try {
+            operation = wait ? completed.take() : completed.poll();
+        } catch (InterruptedException e) {
+            return false;
+        }
+        while (operation != null) {
+            if (operation.success) {
+                metrics.recordOperation(System.nanoTime() - operation.startNanos);
+                untrack(operation.file, operation);
+                if (operation.source != null) {
+                    untrack(operation.source, operation);
+                }
+                applySuccess(operation);
+            } else if (operation.source != null && !clientClosed) {
+                untrack(operation.source, operation);
+                fallBackToWhole(operation);
+                submit(sender, operation);
+            } else if (operation.attempts < MAX_SEND_ATTEMPTS && !clientClosed) {
+                LOGGER.debug("client retries {} of file {}: {}", operation.instruction, operation.file.getName(),
+                        operation.result.getFailure());
+                submit(sender, operation);
+            } else {
+                LOGGER.debug("client failed {} of file {}: {}", operation.instruction, operation.file.getName(),
+                        operation.result.getFailure());
+                metrics.recordFailure();
+                untrack(operation.file, operation);
+                failedFiles.add(operation.file);
+            }
+            operation = completed.poll();
+        }
+        return true;
+    }
+
+    /**Полная проверка: сравнивает с {@link Monitor#sharedDirIndex} все файлы и директории, найденные параллельным
+     * обходом {@link DirectoryScan}, и записи индекса о путях, которых в директории больше нет
+     * @param filesToCreate потокобезопасное множество новых файлов
+     * @param filesToModify потокобезопасное множество измененных файлов
+     * @param filesToDelete потокобезопасное множество удаленных файлов
+     * @return количество найденных обходом файлов и директорий
+     */
+    int classifyAll(Set<File> filesToCreate, Set<File> filesToModify, Set<File> filesToDelete) {
+        Set<File> currentFilesInPath = ConcurrentHashMap.newKeySet();
+        DirectoryScan.scan(sharedDirPath, element -> {
+            currentFilesInPath.add(element);
+            classify(element, filesToCreate, filesToModify, filesToDelete);
+        });
+        for (File element : sharedDirIndex.files()) {
+            if (!currentFilesInPath.contains(element)) {
+                classify(element, filesToCreate, filesToModify, filesToDelete);
+            }
+        }
+        return currentFilesInPath.size();
+    }
+
+    /**Сравнивает файл с его состоянием в {@link Monitor#sharedDirIndex} и добавляет его в соответствующее множество.
+     * Файл, совпадающий с записью индекса, пропускается без объекта синхронизации, поэтому полное сканирование
+     * неизмененной директории не ждет получения файлов от удаленного пользователя. Расхождение перепроверяется под
+     * объектом синхронизации файла, поэтому файл, который в этот момент принимается от удаленного пользователя, не
+     * считается локальным изменением.
+     * @param element проверяемый файл
+     * @param filesToCreate новые файлы
+     * @param filesToModify измененные файлы
+     * @param filesToDelete удаленные файлы
+     */
+    private void classify(File element, Set<File> filesToCreate, Set<File> filesToModify, Set<File> filesToDelete) {
+        DirectoryIndex.Entry indexed = sharedDirIndex.get(element);
+        if (indexed != null && indexed.matches(element) && (indexed.isDirectory() || !element.isDirectory())) {
+            return;
+        }
+        synchronized (pathLocks.lockFor(element)) {
+            classifyLocked(element, filesToCreate, filesToModify, filesToDelete);
+        }
+    }
+
+    private void classifyLocked(File element, Set<File> filesToCreate, Set<File> filesToModify,
+                                Set<File> filesToDelete) {
+        if (element.exists()) {
+            if (isIgnored(element)) {
+                return;
+            }
+            DirectoryIndex.Entry indexed = sharedDirIndex.get(element);
+            if (indexed == null) {
+                LOGGER.debug("client found new file {}", element.getName());
+                filesToCreate.add(element);
+            } else if (indexed.isDirectory() != element.isDirectory()) {
+                LOGGER.debug("client found replaced file {}", element.getName());
+                filesToDelete.add(element);
+            } else if (!indexed.matches(element) && !isContentUnchanged(element, indexed)) {
+                LOGGER.debug("client found mod file {}", element.getName());
+                filesToModify.add(element);
+            }
+        } else if (sharedDirIndex.contains(element)) {
+            LOGGER.debug("client found del file {}", element.getName());
+            filesToDelete.add(element);
+        }
+    }
+
+    /**При первой проверке восстановленного индекса сверяет содержимое файла того же размера с записанной контрольной
+     * суммой. Если содержимое не изменилось, обновляет время изменения в индексе без отправки файла.
+     * @param element проверяемый файл
+     * @param indexed запись о файле в индексе
+     * @return true если изменилось только время изменения файла
+     */
+    private boolean isContentUnchanged(File element, DirectoryIndex.Entry indexed) {
+        if (!verifyRestored || indexed.getHash() == null || indexed.getLength() != element.length()) {
+            return false;
+        }
+        try {
+            long lastModified = element.lastModified();
+            byte[] hash = DirectoryIndex.computeHash(element);
+            if (!Arrays.equals(hash, indexed.getHash())) {
+                return false;
+            }
+            LOGGER.debug("client found touched file {}", element.getName());
+            return sharedDirIndex.putIfVersion(element, indexed.getVersion(), element.length(), lastModified, hash);
+        } catch (IOException e) {
+            LOGGER.debug("client cannot verify file {}", element.getName(), e);
+            return false;
+        }
+    }
+
+    /**Дополняет изменения содержимым директории, о которой сообщил {@link DirectoryWatcher}: новая директория
+     * обходится целиком, а для удаленной или замененной файлом удаляются все вложенные записи индекса
+     * @param element измененный файл или директория
+     * @param filesToCreate новые файлы
+     * @param filesToModify измененные файлы
+     * @param filesToDelete удаленные файлы
+     */
+    private void classifyNested(File element, Set<File> filesToCreate, Set<File> filesToModify,
+                                Set<File> filesToDelete) {
+        DirectoryIndex.Entry indexed = sharedDirIndex.get(element);
+        if (indexed != null && indexed.isDirectory() && !element.isDirectory()) {
+            for (File nested : sharedDirIndex.filesUnder(element)) {
+                classify(nested, filesToCreate, filesToModify, filesToDelete);
+            }
+        } else if (indexed == null && element.isDirectory() && !isIgnored(element)) {
+            DirectoryScan.scan(element, nested -> classify(nested, filesToCreate, filesToModify, filesToDelete));
+        }
+    }
+
+    /** @return true если файл не участвует в синхронизации: скрытые файлы и директории, служебные директории сервиса
+     * и символические ссылки на директории, которые могли бы зациклить обход */
+    static boolean isIgnored(File element) {
+        return element.isHidden() || element.isDirectory() && (SERVICE_DIRECTORIES.contains(element.getName())
+                || Files.isSymbolicLink(element.toPath()));
+    }
+
+    /** Ожидает следующую порцию изменений. В режиме опроса просто выжидает интервал и запрашивает полное сканирование,
+     * в режиме событий ждет их от {@link Monitor#watcher}. Файлы, которые не удалось отправить, проверяются повторно не
+     * позже чем через интервал опроса, файлы с отложенными изменениями - сразу после завершения передачи, а файлы,
+     * задержанные до окончания записи, - по окончании периода тишины.
+     * @return файлы для проверки, или null если нужно полное сканирование директории
+     */
+    private Set<File> awaitChanges() {
+        DirectoryWatcher current = watcher;
+        if (current != null && !current.isValid()) {
+            LOGGER.warn("Watch service lost the directory, falling back to polling");
+            stopWatcher();
+            current = null;
+        }
+        try {
+            if (current == null) {
+                failedFiles.clear();
+                recheckFiles.clear();
                 //noinspection BusyWait
-                Thread.sleep(2000);
-            } catch (InterruptedException ignore) { }
+                Thread.sleep(pollIntervalMs);
+                return null;
+            }
+            if (!recheckFiles.isEmpty()) {
+                Set<File> changed = new HashSet<>(recheckFiles);
+                recheckFiles.clear();
+                return changed;
+            }
+            Set<File> changed;
+            do {
+                long timeoutMs = failedFiles.isEmpty() && !reconcilePending ? pollIntervalMs
+                        : Math.max(1, retryTime - System.currentTimeMillis());
+                if (!inFlight.isEmpty()) {
+                    timeoutMs = Math.min(timeoutMs, IN_FLIGHT_CHECK_MS);
+                }
+                timeoutMs = Math.max(1, Math.min(timeoutMs,
+                        debouncer.nextRecheckTime() - System.currentTimeMillis()));
+                changed = current.awaitChanges(timeoutMs);
+            } while (changed != null && changed.isEmpty() && !isRetryDue() && completed.isEmpty()
+                    && debouncer.nextRecheckTime() > System.currentTimeMillis() && !clientClosed);
+            if (changed == null) {
+                failedFiles.clear();
+                return null;
+            }
+            if (isRetryDue()) {
+                metrics.recordRetries(failedFiles.size());
+                changed.addAll(failedFiles);
+                failedFiles.clear();
+            }
+            changed.addAll(debouncer.due());
+            return changed;
+        } catch (InterruptedException | ClosedWatchServiceException ignore) {
+            return Collections.emptySet();
+        }
+    }
+
+    /** @return true если пришло время повторно отправить файлы, которые не удалось отправить ранее, или повторить
+     * сверку */
+    private boolean isRetryDue() {
+        return (!failedFiles.isEmpty() || reconcilePending) && System.currentTimeMillis() >= retryTime;
+    }
+
+    /** пытается запустить отслеживание событий директории, при неудаче остается режим опроса */
+    private void startWatcher() {
+        if (!watchEvents) {
+            return;
+        }
+        try {
+            watcher = new DirectoryWatcher(sharedDirPath);
+            LOGGER.debug("watch service registered for {}", sharedDirPath);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warn("Watch service is not available, falling back to polling", e);
+        }
+    }
+
+    private void stopWatcher() {
+        DirectoryWatcher current = watcher;
+        watcher = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                LOGGER.info("Exception occurred during watch service closing", e);
+            }
         }
     }
+
     /** Пытается корректно завершить метод {@link Monitor#check()} за выделенное время, иначе обрывает все
      * соединения
      * @param timeoutMs время, выделяемое для штатного завершения цикла, в милисекундах
      */
     public synchronized void close(long timeoutMs) {
         clientClosed = true;
+        stopWatcher();
         try {
             try {
                 client.join(timeoutMs);
@@ -118,4 +758,95 @@ public class Monitor{
 
     }
 
+    /** Операция отправки и ее состояние */
+    private static final class Operation {
+        private final File file;
+        private int instruction;
+        /** версия записи о файле в индексе, на основе которой найдено изменение */
+        private final long indexVersion;
+        /** файл с тем же содержимым для {@link SharedDirService#RENAME} и {@link SharedDirService#COPY_FROM} */
+        private File source;
+        /** MD5 содержимого, null для удалений и если файл не удалось прочитать */
+        private byte[] hash;
+        /** размер и время изменения файла, для которых вычислен {@link #hash} */
+        private long hashedLength;
+        private long hashedModified;
+        /** размер и время изменения файла на момент отправки, записываются в индекс после подтверждения */
+        private long length;
+        private long lastModified;
+        private int attempts;
+        /** время {@link System#nanoTime()} начала очередной попытки отправки */
+        private long startNanos;
+        /** true если итерация не дожидается завершения операции, см. {@link #DETACH_LENGTH} */
+        private boolean detached;
+        private volatile boolean success;
+        /** результат последней попытки отправки */
+        private volatile TransferResult result;
+
+        private Operation(File file, int instruction, long indexVersion) {
+            this.file = file;
+            this.instruction = instruction;
+            this.indexVersion = indexVersion;
+        }
+
+        /** вычисляет контрольную сумму файла до отправки для поиска файла с тем же содержимым */
+        private void computeHash() {
+            if (file.isDirectory()) {
+                return;
+            }
+            long fileLength = file.length();
+            long fileModified = file.lastModified();
+            try {
+                hash = DirectoryIndex.computeHash(file);
+                hashedLength = fileLength;
+                hashedModified = fileModified;
+            } catch (IOException e) {
+                LOGGER.debug("client cannot compute hash of {}", file.getName(), e);
+            }
+        }
+
+        /** запоминает состояние файла перед очередной попыткой отправки, контрольная сумма изменившегося файла
+         * отбрасывается */
+        private void prepare() {
+            attempts++;
+            startNanos = System.nanoTime();
+            length = file.length();
+            lastModified = file.lastModified();
+            detached = SharedDirService.carriesContent(instruction) && length >= DETACH_LENGTH;
+            if (length != hashedLength || lastModified != hashedModified) {
+                hash = null;
+            }
+        }
+
+        /**Возвращает контрольную сумму подтвержденной операции для записи в индекс. Обычно она вычислена при передаче
+         * содержимого и сверена сервером, поэтому файл не читается повторно. Если сервер не сверяет суммы (отдельные
+         * соединения, передача разницы или частями), сумма вычисляется по файлу, пока он не изменился после отправки.
+         * @return MD5 отправленного содержимого, null для операций без содержимого и если файл изменился
+         */
+        private byte[] sentHash() {
+            if (hash != null) {
+                return hash;
+            }
+            if (result.getHash() != null || !SharedDirService.carriesContent(instruction)) {
+                return result.getHash();
+            }
+            try {
+                byte[] computed = file.length() == length && file.lastModified() == lastModified
+                        ? DirectoryIndex.computeHash(file) : null;
+                return computed != null && file.lastModified() == lastModified ? computed : null;
+            } catch (IOException e) {
+                LOGGER.debug("client cannot compute hash of {}", file.getName(), e);
+                return null;
+            }
+        }
+
+        /** по завершении результата отправки помещает операцию в очередь завершившихся */
+        private void complete(CompletableFuture<TransferResult> answer, BlockingQueue<Operation> completed) {
+            answer.whenComplete((transferred, e) -> {
+                result = transferred != null ? transferred : TransferResult.failed(e, 0);
+                success = result.isSuccess();
+                completed.add(this);
+            });
+        }
+    }
 }
@@ -0,0 +1,63 @@
+package com.pavel.shareddirectories;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/** Набор объектов для синхронизации операций над файлами директории. Каждый файл по хешу пути отображается на один из
+ * фиксированного числа объектов, поэтому операции над одним файлом выполняются по очереди, а операции над разными
+ * файлами, как правило, параллельно.
+ */
+public class PathLocks {
+    private final Object[] stripes;
+
+    /** @param stripes количество объектов синхронизации, округляется вверх до степени двойки */
+    public PathLocks(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        int size = Integer.highestOneBit(stripes);
+        this.stripes = new Object[size < stripes ? size << 1 : size];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * @param file путь к файлу
+     * @return объект, на котором синхронизируются операции над файлом
+     */
+    public Object lockFor(File file) {
+        return stripes[stripeOf(file)];
+    }
+
+    /**Выполняет действие, удерживая объекты синхронизации всех указанных файлов. Объекты берутся в порядке возрастания
+     * номеров, а остальные операции удерживают не больше одного объекта, поэтому взаимная блокировка невозможна.
+     * @param files пути к файлам
+     * @param action действие над файлами
+     * @return результат действия
+     */
+    public <T> T withLocks(Collection<File> files, Supplier<T> action) {
+        BitSet used = new BitSet(stripes.length);
+        for (File file : files) {
+            used.set(stripeOf(file));
+        }
+        return withLocks(used, used.nextSetBit(0), action);
+    }
+
+    private <T> T withLocks(BitSet used, int stripe, Supplier<T> action) {
+        if (stripe < 0) {
+            return action.get();
+        }
+        synchronized (stripes[stripe]) {
+            return withLocks(used, used.nextSetBit(stripe + 1), action);
+        }
+    }
+
+    private int stripeOf(File file) {
+        int hash = file.hashCode();
+        hash ^= hash >>> 16;
+        return hash & (stripes.length - 1);
+    }
+}
@@ -0,0 +1,32 @@
+package com.pavel.shareddirectories;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/** Отправитель, который позволяет передавать следующие операции, не дожидаясь подтверждения предыдущих. Количество
+ * неподтвержденных операций ограничено окном, при его заполнении {@link #submit(File, int)} блокируется.
+ */
+public interface PipelinedChangesSender extends ChangesSender {
+
+    /**Ставит операцию в очередь отправки
+     * @param file путь к отправляемому файлу
+     * @param receiverInstruction сигнал для сервера с инструкциями
+     * @return результат, который завершается при ответе сервера или обрыве соединения и описывает размер переданного
+     * содержимого, длительность операции и причину неудачи; исключением он не завершается
+     */
+    CompletableFuture<TransferResult> submit(File file, int receiverInstruction);
+
+    /**Ставит в очередь отправки операции над маленькими файлами одним кадром {@link SharedDirService#BATCH}, который
+     * занимает одно место в окне. Если сервер не поддерживает такие кадры, операции отправляются по отдельности.
+     * @param changes сигналы для сервера по путям к отправляемым файлам
+     * @return результаты операций по путям к файлам, завершаются так же, как результат {@link #submit(File, int)}
+     */
+    Map<File, CompletableFuture<TransferResult>> submitBatch(Map<File, Integer> changes);
+
+    /**Ставит в очередь отправки сообщение о файле с содержимым, которое уже есть у сервера
+     * @see ChangesSender#sendCopy(File, File, byte[], int)
+     * @return результат, который завершается так же, как результат {@link #submit(File, int)}
+     */
+    CompletableFuture<TransferResult> submitCopy(File source, File target, byte[] hash, int receiverInstruction);
+}
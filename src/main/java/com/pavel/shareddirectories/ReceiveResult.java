@@ -0,0 +1,72 @@
+package com.pavel.shareddirectories;
+
+import java.io.File;
+
+/** Результат операции получения: выполнена ли она, над каким файлом и, для невыполненной операции, причина неудачи и
+ * исключение, которым она завершилась. Сервер отвечает отправителю по {@link #isSuccess()}, а причину записывает в
+ * журнал, поэтому получатель не теряет ее, как при возврате null.
+ * @see TransferResult
+ */
+public final class ReceiveResult {
+    /** причина неудачи, если имя файла отклонено {@link RelativePaths#resolve(File, String)} */
+    static final String REFUSED_NAME = "file name refused";
+    /** причина неудачи, если на месте файла находится директория */
+    static final String DIRECTORY_EXISTS = "directory with same name already exists";
+    /** причина неудачи, если на месте директории находится файл */
+    static final String FILE_EXISTS = "file with same name already exists";
+    private final boolean success;
+    /** путь к полученному, удаленному файлу или директории, null если имя не удалось прочитать или оно отклонено */
+    private final File file;
+    /** причина неудачи, null для успешной операции */
+    private final String failure;
+    /** исключение, которым завершилась операция, null если она завершилась без исключения */
+    private final Throwable cause;
+
+    private ReceiveResult(boolean success, File file, String failure, Throwable cause) {
+        this.success = success;
+        this.file = file;
+        this.failure = failure;
+        this.cause = cause;
+    }
+
+    /** @return результат выполненной операции */
+    static ReceiveResult received(File file) {
+        return new ReceiveResult(true, file, null, null);
+    }
+
+    /** @return результат операции, которую получатель отказался выполнить */
+    static ReceiveResult failed(File file, String failure) {
+        return new ReceiveResult(false, file, failure, null);
+    }
+
+    /** @return результат операции, прерванной исключением, например обрывом соединения */
+    static ReceiveResult failed(File file, Throwable cause) {
+        return new ReceiveResult(false, file, String.valueOf(cause), cause);
+    }
+
+    /** @return true если операция выполнена и индекс обновлен */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /** @return путь к файлу операции, null если имя не удалось прочитать или оно отклонено */
+    public File getFile() {
+        return file;
+    }
+
+    /** @return причина неудачи, null для успешной операции */
+    public String getFailure() {
+        return failure;
+    }
+
+    /** @return исключение, которым завершилась операция, null если она завершилась без исключения */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    @Override
+    public String toString() {
+        String name = file == null ? "unknown file" : file.getName();
+        return success ? name + " received" : name + " failed: " + failure;
+    }
+}
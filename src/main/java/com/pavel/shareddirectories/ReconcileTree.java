@@ -0,0 +1,246 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/** Дерево контрольных сумм подтвержденного состояния директории для сверки с удаленным пользователем. Каждый файл
+ * индекса попадает в один из {@link #LEAF_COUNT} листьев по MD5 своего имени, сумма листа - сумма отпечатков его файлов
+ * (имя, размер и MD5 содержимого), сумма узла - сумма сумм его {@link #FANOUT} потомков. Суммы листьев поддерживает
+ * {@link DirectoryIndex} при каждом изменении, поэтому дерево строится без обхода файлов.
+ * <p>Сверка ({@link SharedDirService#RECONCILE}) идет по уровням: отправитель запрашивает у сервера суммы только тех
+ * узлов, родители которых отличаются, и на последнем шаге получает записи отличающихся листьев. Время изменения в отпечаток
+ * не входит, так как у полученной копии файла оно свое. Совпадающие деревья сверяются одним запросом суммы корня.
+ */
+final class ReconcileTree {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReconcileTree.class);
+    /** количество потомков узла дерева, степень двойки */
+    static final int FANOUT = 16;
+    /** количество уровней под корнем */
+    static final int LEVELS = 4;
+    /** количество листьев дерева */
+    static final int LEAF_COUNT = 1 << (4 * LEVELS);
+    /** суммы узлов по уровням, нулевой уровень - корень */
+    private final long[][] levels = new long[LEVELS + 1][];
+
+    /** @param leaves суммы листьев, см. {@link DirectoryIndex#leafDigests()} */
+    ReconcileTree(long[] leaves) {
+        levels[LEVELS] = leaves;
+        for (int level = LEVELS - 1; level >= 0; level--) {
+            long[] children = levels[level + 1];
+            long[] nodes = new long[children.length / FANOUT];
+            for (int i = 0; i < children.length; i++) {
+                nodes[i / FANOUT] += children[i];
+            }
+            levels[level] = nodes;
+        }
+    }
+
+    /** @return лист дерева, в который попадает файл с указанным именем относительно директории */
+    static int leafOf(String relativeName) {
+        byte[] digest = DeltaTransfer.md5().digest(relativeName.getBytes(StandardCharsets.UTF_8));
+        return ((digest[0] & 0xff) << 8 | (digest[1] & 0xff)) & (LEAF_COUNT - 1);
+    }
+
+    /** @return отпечаток файла: первые 8 байт MD5 имени, размера и контрольной суммы содержимого */
+    static long fingerprint(String relativeName, long length, byte[] hash) {
+        MessageDigest digest = DeltaTransfer.md5();
+        digest.update(relativeName.getBytes(StandardCharsets.UTF_8));
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (length >>> shift));
+        }
+        if (hash != null) {
+            digest.update(hash);
+        }
+        byte[] result = digest.digest();
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (result[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**Отвечает на сверку, начатую удаленным пользователем: по уровням отправляет суммы запрошенных узлов и затем записи
+     * запрошенных листьев
+     * @param in поток соединения
+     * @param out поток соединения
+     * @param index индекс директории
+     * @throws IOException если запрос поврежден или соединение было прервано
+     */
+    static void answer(DataInputStream in, DataOutputStream out, DirectoryIndex index) throws IOException {
+        ReconcileTree tree = new ReconcileTree(index.leafDigests());
+        for (int level = 0; level <= LEVELS; level++) {
+            int count = in.readInt();
+            if (count == 0) {
+                return;
+            }
+            for (int node : readNodes(in, count, tree.levels[level].length)) {
+                out.writeLong(tree.levels[level][node]);
+            }
+            out.flush();
+        }
+        int[] leaves = readNodes(in, in.readInt(), LEAF_COUNT);
+        Map<Integer, List<File>> files = index.filesOfLeaves(leaves);
+        for (int leaf : leaves) {
+            Map<String, DirectoryIndex.Entry> entries = new HashMap<>();
+            for (File file : files.getOrDefault(leaf, Collections.emptyList())) {
+                DirectoryIndex.Entry entry = index.get(file);
+                if (entry != null) {
+                    entries.put(index.relativeName(file), entry);
+                }
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<String, DirectoryIndex.Entry> element : entries.entrySet()) {
+                out.writeUTF(element.getKey());
+                out.writeLong(element.getValue().getLength());
+                out.writeLong(element.getValue().getLastModified());
+                writeHash(out, element.getValue().getHash());
+            }
+        }
+        out.flush();
+        LOGGER.debug("answered reconciliation with {} leaves", leaves.length);
+    }
+
+    /**Сверяет индекс с индексом сервера и находит файлы, которые нужно ему отправить: отсутствующие у сервера и
+     * отличающиеся, если локальная копия изменена позже. При одинаковом времени изменения файл отправляет сторона с
+     * большей контрольной суммой, поэтому обе стороны приходят к одному решению. Файлы, которые есть только у сервера,
+     * он отправляет сам при своей сверке.
+     * @param in поток соединения
+     * @param out поток соединения
+     * @param index индекс директории
+     * @param filesToCreate файлы, отсутствующие у сервера
+     * @param filesToModify файлы, копия которых у сервера устарела
+     * @throws IOException если ответ поврежден или соединение было прервано
+     */
+    static void request(DataInputStream in, DataOutputStream out, DirectoryIndex index, Set<File> filesToCreate,
+                        Set<File> filesToModify) throws IOException {
+        ReconcileTree tree = new ReconcileTree(index.leafDigests());
+        int[] nodes = {0};
+        long exchanged = 0;
+        for (int level = 0; level <= LEVELS && nodes.length > 0; level++) {
+            writeNodes(out, nodes);
+            List<Integer> differing = new ArrayList<>();
+            for (int node : nodes) {
+                if (in.readLong() != tree.levels[level][node]) {
+                    differing.add(node);
+                }
+            }
+            exchanged += nodes.length;
+            nodes = level == LEVELS ? toArray(differing, 1) : toArray(differing, FANOUT);
+        }
+        if (nodes.length == 0) {
+            out.writeInt(0);
+            out.flush();
+            LOGGER.debug("client reconciled directory, {} nodes compared", exchanged);
+            return;
+        }
+        writeNodes(out, nodes);
+        Map<Integer, List<File>> localFiles = index.filesOfLeaves(nodes);
+        for (int leaf : nodes) {
+            Map<String, DirectoryIndex.Entry> remote = new HashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                remote.put(name, new DirectoryIndex.Entry(length, lastModified, readHash(in)));
+            }
+            for (File file : localFiles.getOrDefault(leaf, Collections.emptyList())) {
+                DirectoryIndex.Entry local = index.get(file);
+                if (local == null || !file.isFile()) {
+                    continue;
+                }
+                DirectoryIndex.Entry other = remote.get(index.relativeName(file));
+                if (other == null) {
+                    filesToCreate.add(file);
+                } else if (isNewer(local, other)) {
+                    filesToModify.add(file);
+                }
+            }
+        }
+        LOGGER.debug("client reconciled directory, {} nodes and {} leaves compared, {} new and {} changed files",
+                exchanged, nodes.length, filesToCreate.size(), filesToModify.size());
+    }
+
+    /** @return true если содержимое отличается и локальная копия должна заменить копию сервера */
+    private static boolean isNewer(DirectoryIndex.Entry local, DirectoryIndex.Entry remote) {
+        if (local.getLength() == remote.getLength() && local.getHash() != null
+                && Arrays.equals(local.getHash(), remote.getHash())) {
+            return false;
+        }
+        if (local.getLastModified() != remote.getLastModified()) {
+            return local.getLastModified() > remote.getLastModified();
+        }
+        return compareHashes(local.getHash(), remote.getHash()) > 0;
+    }
+
+    private static int compareHashes(byte[] first, byte[] second) {
+        if (first == null || second == null) {
+            return first == null ? (second == null ? 0 : -1) : 1;
+        }
+        for (int i = 0; i < Math.min(first.length, second.length); i++) {
+            int difference = (first[i] & 0xff) - (second[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return first.length - second.length;
+    }
+
+    /** @return потомки узлов, по step на каждый узел, или сами узлы если step равен 1 */
+    private static int[] toArray(List<Integer> nodes, int step) {
+        int[] result = new int[nodes.size() * step];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = step == 1 ? nodes.get(i) : nodes.get(i / step) * step + i % step;
+        }
+        return result;
+    }
+
+    private static void writeNodes(DataOutputStream out, int[] nodes) throws IOException {
+        out.writeInt(nodes.length);
+        for (int node : nodes) {
+            out.writeInt(node);
+        }
+        out.flush();
+    }
+
+    private static int[] readNodes(DataInputStream in, int count, int limit) throws IOException {
+        if (count < 0 || count > limit) {
+            throw new IOException("Wrong reconciliation node count " + count);
+        }
+        int[] nodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = in.readInt();
+            if (nodes[i] < 0 || nodes[i] >= limit) {
+                throw new IOException("Wrong reconciliation node " + nodes[i]);
+            }
+        }
+        return nodes;
+    }
+
+    private static void writeHash(DataOutputStream out, byte[] hash) throws IOException {
+        if (hash == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(hash.length);
+            out.write(hash);
+        }
+    }
+
+    private static byte[] readHash(DataInputStream in) throws IOException {
+        int hashLength = in.readUnsignedByte();
+        if (hashLength == 0) {
+            return null;
+        }
+        byte[] hash = new byte[hashLength];
+        in.readFully(hash);
+        return hash;
+    }
+}
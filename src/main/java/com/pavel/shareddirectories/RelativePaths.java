@@ -0,0 +1,90 @@
+package com.pavel.shareddirectories;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/** Имена файлов в протоколе и в индексе: путь относительно синхронизируемой директории с разделителем '/'. Имя,
+ * полученное от удаленного пользователя, проверяется, чтобы оно не выводило за пределы директории и не затрагивало
+ * служебные директории сервиса.
+ */
+final class RelativePaths {
+
+    private RelativePaths() {
+    }
+
+    /**
+     * @param root синхронизируемая директория, null если передаются только файлы корня директории
+     * @param file файл внутри директории
+     * @return путь файла относительно директории с разделителем '/'
+     */
+    static String of(File root, File file) {
+        if (root == null) {
+            return file.getName();
+        }
+        return root.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**Преобразует полученное имя в путь внутри директории
+     * @param root синхронизируемая директория
+     * @param name путь относительно директории с разделителем '/'
+     * @return путь к файлу
+     * @throws IOException если имя пустое, абсолютное, содержит переходы '.' и '..', начинается со служебной
+     * директории ({@link Monitor#SERVICE_DIRECTORIES}) или проходит через символическую ссылку
+     */
+    static File resolve(File root, String name) throws IOException {
+        if (name.isEmpty() || name.startsWith("/")) {
+            throw new IOException("Wrong file name " + name);
+        }
+        String[] segments = name.split("/", -1);
+        if (Monitor.SERVICE_DIRECTORIES.contains(segments[0])) {
+            throw new IOException("Service directory in file name " + name);
+        }
+        for (String segment : segments) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")
+                    || File.separatorChar != '/' && (segment.indexOf(File.separatorChar) >= 0
+                    || segment.indexOf(':') >= 0)) {
+                throw new IOException("Wrong file name " + name);
+            }
+        }
+        checkNoLinks(root.toPath(), segments, name);
+        return new File(root, name.replace('/', File.separatorChar));
+    }
+
+    /**Проверяет, что ни одна существующая часть пути не является символической ссылкой, иначе операция затронула бы
+     * файл вне директории. Монитор такие ссылки не отправляет ({@link Monitor#isIgnored(File)}).
+     * @throws IOException если часть пути является символической ссылкой или ее атрибуты не удалось прочитать
+     */
+    private static void checkNoLinks(Path root, String[] segments, String name) throws IOException {
+        Path current = root;
+        for (String segment : segments) {
+            current = current.resolve(segment);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(current, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            if (attributes.isSymbolicLink()) {
+                throw new IOException("Symbolic link in file name " + name);
+            }
+            if (!attributes.isDirectory()) {
+                return;
+            }
+        }
+    }
+
+    /** @return имя для файла кеш-директории, однозначно соответствующее пути относительно директории */
+    static String flatten(String name) {
+        return name.replace("%", "%25").replace("/", "%2F");
+    }
+
+    /** @return true если файл находится внутри директории, но не совпадает с ней */
+    static boolean isInside(File directory, File file) {
+        return file.toPath().startsWith(directory.toPath()) && !file.equals(directory);
+    }
+}
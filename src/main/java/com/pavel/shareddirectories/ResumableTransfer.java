@@ -0,0 +1,184 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/** Передача большого файла частями с возможностью докачки. Каждая часть передается с контрольной суммой CRC32, получатель
+ * записывает проверенные части в частично полученный файл в кеш-директории и периодически сохраняет рядом с ним запись о
+ * ходе передачи: размер и время изменения файла отправителя и количество проверенных байт. При следующей передаче того
+ * же файла, в том числе после обрыва соединения или перезапуска любой из сторон, получатель сообщает отправителю это
+ * количество, и передача продолжается с него. Если размер или время изменения файла отправителя изменились, передача
+ * начинается сначала.
+ */
+final class ResumableTransfer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResumableTransfer.class);
+    /** размер части, в байтах */
+    static final int CHUNK_SIZE = 1 << 20;
+    /** количество частей, после получения которых сохраняется запись о ходе передачи */
+    private static final int PROGRESS_INTERVAL = 8;
+    /** суффикс частично полученного файла в кеш-директории */
+    private static final String PARTIAL_SUFFIX = ".partial";
+    /** суффикс записи о ходе передачи в кеш-директории */
+    private static final String PROGRESS_SUFFIX = ".progress";
+
+    private ResumableTransfer() {
+    }
+
+    /**Отправляет части файла, начиная с указанного смещения
+     * @param out поток соединения
+     * @param content канал отправляемого файла
+     * @param offset смещение, с которого продолжается передача
+     * @param length размер файла, указанный в заголовке
+     * @return количество байт, записанных в соединение, вместе с размерами и суммами частей
+     * @throws IOException если файл был укорочен во время отправки или соединение было прервано
+     */
+    static long sendChunks(DataOutputStream out, FileChannel content, long offset, long length) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(0, length - offset))];
+        CRC32 crc = new CRC32();
+        long sent = 0;
+        for (long position = offset; position < length; ) {
+            int chunkLength = (int) Math.min(CHUNK_SIZE, length - position);
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, chunkLength);
+            while (buffer.hasRemaining()) {
+                if (content.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("File was truncated during sending");
+                }
+            }
+            crc.reset();
+            crc.update(chunk, 0, chunkLength);
+            out.writeInt(chunkLength);
+            out.write(chunk, 0, chunkLength);
+            out.writeInt((int) crc.getValue());
+            position += chunkLength;
+            sent += chunkLength + 8;
+        }
+        return sent;
+    }
+
+    /**Определяет смещение, с которого продолжается передача файла. Устаревшие частично полученный файл и запись о ходе
+     * передачи удаляются.
+     * @param downloadDirPath кеш-директория
+     * @param name имя файла
+     * @param length размер файла отправителя
+     * @param sourceModified время изменения файла отправителя
+     * @return количество уже проверенных байт, 0 если передача начинается сначала
+     */
+    static long resumeOffset(File downloadDirPath, String name, long length, long sourceModified) {
+        File partial = new File(downloadDirPath, name + PARTIAL_SUFFIX);
+        File progress = new File(downloadDirPath, name + PROGRESS_SUFFIX);
+        if (partial.isFile() && progress.isFile()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(progress))) {
+                long recordedLength = in.readLong();
+                long recordedModified = in.readLong();
+                long offset = in.readLong();
+                if (recordedLength == length && recordedModified == sourceModified && offset <= length
+                        && offset <= partial.length()) {
+                    return offset;
+                }
+            } catch (IOException e) {
+                LOGGER.debug("cannot read transfer progress of {}", name, e);
+            }
+        }
+        discard(downloadDirPath, name);
+        return 0;
+    }
+
+    /**Получает части файла и записывает их в частично полученный файл. Если передача прерывается, сохраняет запись о
+     * ходе передачи по последней проверенной части.
+     * @param in поток соединения
+     * @param downloadDirPath кеш-директория
+     * @param name имя файла
+     * @param length размер файла отправителя
+     * @param sourceModified время изменения файла отправителя
+     * @param offset смещение, с которого продолжается передача
+     * @return полностью полученный файл
+     * @throws IOException если контрольная сумма части не совпала или соединение было прервано
+     */
+    static File receiveChunks(DataInputStream in, File downloadDirPath, String name, long length, long sourceModified,
+                              long offset) throws IOException {
+        File partial = new File(downloadDirPath, name + PARTIAL_SUFFIX);
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(0, length - offset))];
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            long position = offset;
+            long saved = offset;
+            try {
+                while (position < length) {
+                    int expected = (int) Math.min(CHUNK_SIZE, length - position);
+                    int chunkLength = in.readInt();
+                    if (chunkLength != expected) {
+                        throw new IOException("Wrong chunk length " + chunkLength + " at " + position);
+                    }
+                    in.readFully(chunk, 0, chunkLength);
+                    crc.reset();
+                    crc.update(chunk, 0, chunkLength);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        throw new IOException("Chunk checksum mismatch at " + position);
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, chunkLength);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, position + buffer.position());
+                    }
+                    position += chunkLength;
+                    if (position - saved >= (long) PROGRESS_INTERVAL * CHUNK_SIZE && position < length) {
+                        saveProgress(channel, downloadDirPath, name, length, sourceModified, position);
+                        saved = position;
+                    }
+                }
+                channel.truncate(length);
+            } finally {
+                if (position < length && position > saved) {
+                    try {
+                        saveProgress(channel, downloadDirPath, name, length, sourceModified, position);
+                        LOGGER.info("Transfer of {} interrupted, {} of {} bytes kept", name, position, length);
+                    } catch (IOException e) {
+                        LOGGER.warn("Cannot save transfer progress of {}", name, e);
+                    }
+                }
+            }
+        }
+        return partial;
+    }
+
+    /** записывает проверенные части на диск и затем атомарно заменяет запись о ходе передачи */
+    private static void saveProgress(FileChannel channel, File downloadDirPath, String name, long length,
+                                     long sourceModified, long offset) throws IOException {
+        channel.force(false);
+        File progress = new File(downloadDirPath, name + PROGRESS_SUFFIX);
+        File temporaryProgress = new File(downloadDirPath, name + PROGRESS_SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporaryProgress))) {
+            out.writeLong(length);
+            out.writeLong(sourceModified);
+            out.writeLong(offset);
+        }
+        Files.move(temporaryProgress.toPath(), progress.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**удаляет частично полученный файл и запись о ходе передачи
+     * @param downloadDirPath кеш-директория
+     * @param name имя файла
+     */
+    static void discard(File downloadDirPath, String name) {
+        for (String suffix : new String[]{PARTIAL_SUFFIX, PROGRESS_SUFFIX}) {
+            File state = new File(downloadDirPath, name + suffix);
+            if (!state.delete() && state.exists()) {
+                LOGGER.error("Transfer state file {} delete issue", state.getName());
+            }
+        }
+    }
+
+    /** @return true если файл кеш-директории хранит состояние прерванной передачи и не удаляется при запуске */
+    static boolean isResumeState(File element) {
+        return element.getName().endsWith(PARTIAL_SUFFIX) || element.getName().endsWith(PROGRESS_SUFFIX);
+    }
+}
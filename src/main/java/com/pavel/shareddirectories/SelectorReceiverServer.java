@@ -0,0 +1,547 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/** Сервер, обслуживающий все соединения одним потоком на {@link Selector}. Операции разбираются по мере поступления
+ * данных из буферов фиксированного размера, выделенных на каждое соединение, а действия с файлами выполняются
+ * небольшим пулом потоков записи на диск через {@link AsyncChangesReceiver}. Пока выполняется действие с файлом,
+ * чтение из соединения приостанавливается, поэтому объем памяти на соединение не зависит от размера файлов и скорости
+ * диска.
+ * <p>Передача разницы файлов и передача частями с докачкой требуют промежуточного обмена с отправителем и этим
+ * сервером не поддерживаются: на {@link SharedDirService#MODIFY_DELTA} и {@link SharedDirService#RESUMABLE_FILE} он
+ * отвечает отказом, после которого отправитель передает файл целиком. Также он отказывается от
+ * {@link SharedDirService#RENAME} и {@link SharedDirService#COPY_FROM}, а в сессии не объявляет их поддержку, и от
+ * сверки {@link SharedDirService#RECONCILE}. Из возможностей сессии он поддерживает только сверку контрольных сумм
+ * {@link SharedDirService#FEATURE_CHECKSUM}: MD5 содержимого вычисляется при записи частей и сверяется с переданным
+ * отправителем до замены файла.
+ */
+public class SelectorReceiverServer implements ChangesReceiverServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SelectorReceiverServer.class);
+    /** размер буфера чтения соединения, вмещает имя файла максимальной длины */
+    private static final int BUFFER_SIZE = 1 << 17;
+    /** размер буфера ответов соединения */
+    private static final int ANSWER_BUFFER_SIZE = 1 << 12;
+    /** время простоя, после которого соединение закрывается, в милисекундах */
+    private static final long IDLE_TIMEOUT_MS = 50000;
+    /** интервал проверки простаивающих соединений, в милисекундах */
+    private static final long IDLE_CHECK_MS = 1000;
+    /** размер MD5, который передается за содержимым файла в сессиях со сверкой контрольных сумм, в байтах */
+    private static final int CHECKSUM_LENGTH = 16;
+    private final AsyncChangesReceiver receiver;
+    /** порт сервера текущего пользователя */
+    private final int port;
+    /** потоки, выполняющие действия с файлами */
+    private final ExecutorService diskWriters;
+    /** учет переданных байт, скорость соединений этого сервера не ограничивается */
+    private final TrafficShaper shaper;
+    /** продолжения завершившихся действий с файлами, выполняются в потоке сервера */
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private volatile Selector selector;
+    /** поток, в котором работает {@link SelectorReceiverServer#selector} */
+    private volatile Thread server;
+    private volatile boolean serverClosed;
+
+    public SelectorReceiverServer(AsyncChangesReceiver receiver, int port, int diskThreads) {
+        this(receiver, port, diskThreads, new TrafficShaper());
+    }
+
+    /**
+     * @param receiver получатель изменений
+     * @param port порт сервера текущего пользователя
+     * @param diskThreads количество потоков, выполняющих действия с файлами
+     * @param shaper ограничение скорости передачи, в котором учитываются переданные байты
+     */
+    public SelectorReceiverServer(AsyncChangesReceiver receiver, int port, int diskThreads, TrafficShaper shaper) {
+        this.receiver = receiver;
+        this.port = port;
+        this.shaper = shaper;
+        this.diskWriters = Executors.newFixedThreadPool(diskThreads, r -> {
+            Thread thread = new Thread(r, "server disk writer thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public synchronized void start() {
+        if (server == null) {
+            serverClosed = false;
+            server = new Thread(this::check);
+            server.setName("server selector thread");
+            server.start();
+            LOGGER.debug("selector server started");
+        } else {
+            LOGGER.debug("Start denied. Server already started");
+        }
+    }
+
+    /** Принимает соединения и обслуживает готовые к чтению и записи соединения, пока сервер не будет закрыт */
+    private void check() {
+        try (Selector s = Selector.open(); ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = s;
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(s, SelectionKey.OP_ACCEPT);
+            long lastIdleCheck = System.currentTimeMillis();
+            while (!serverClosed) {
+                s.select(IDLE_CHECK_MS);
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = s.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                    } else {
+                        ((Connection) key.attachment()).handle(key);
+                    }
+                }
+                if (System.currentTimeMillis() - lastIdleCheck >= IDLE_CHECK_MS) {
+                    lastIdleCheck = System.currentTimeMillis();
+                    closeIdle(s);
+                }
+            }
+            for (SelectionKey key : s.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Problem with server socket", e);
+        }
+        LOGGER.debug("server end of check");
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            LOGGER.debug("server accepted connection");
+        } catch (IOException e) {
+            if (!serverClosed) {
+                LOGGER.warn("server IO exception ", e);
+            }
+        }
+    }
+
+    /** закрывает соединения, по которым не было обмена дольше {@link #IDLE_TIMEOUT_MS} */
+    private void closeIdle(Selector s) {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : s.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (!connection.busy && now - connection.lastActivity > IDLE_TIMEOUT_MS) {
+                    LOGGER.warn("Connection idle for {} ms, closing", IDLE_TIMEOUT_MS);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /** @return true если инструкция может передаваться внутри сессии (не требует промежуточных ответов) */
+    private static boolean isSessionInstruction(int instruction) {
+        return instruction == SharedDirService.NEW_FILE || instruction == SharedDirService.MODIFY_FILE
+                || instruction == SharedDirService.DELETE_FILE || instruction == SharedDirService.CREATE_DIRECTORY
+                || instruction == SharedDirService.DELETE_DIRECTORY;
+    }
+
+    @Override
+    public synchronized void close(long timeoutMs) {
+        serverClosed = true;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+        try {
+            if (server != null) {
+                server.join(timeoutMs);
+            }
+            diskWriters.shutdown();
+            if (!diskWriters.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Server disk writer threads did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Server join interrupted ", e);
+        }
+    }
+
+    /** Этап разбора операции в соединении */
+    private enum State {
+        /** первая инструкция соединения: операция отдельного соединения или открытие сессии */
+        INSTRUCTION,
+        /** возможности отправителя при открытии сессии */
+        FEATURES,
+        /** идентификатор запроса и инструкция очередной операции сессии */
+        REQUEST,
+        /** имя файла */
+        NAME,
+        /** размер файла */
+        LENGTH,
+        /** размер файла в запросе на передачу разницы, который отклоняется */
+        DELTA_LENGTH,
+        /** содержимое файла */
+        CONTENT,
+        /** MD5 содержимого, если в сессии согласована сверка контрольных сумм */
+        CHECKSUM,
+        /** операция отдельного соединения выполнена, соединение закрывается после отправки ответа */
+        DONE
+    }
+
+    /** Состояние одного соединения. Все методы, кроме действий с файлами, выполняются в потоке сервера */
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        /** буфер чтения, вне {@link #read()} находится в режиме чтения из него */
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /** буфер ответов, находится в режиме записи в него */
+        private final ByteBuffer out = ByteBuffer.allocateDirect(ANSWER_BUFFER_SIZE);
+        /** учет полученных и отправленных байт */
+        private final TrafficShaper.Throttle received = shaper.receiveThrottle();
+        private final TrafficShaper.Throttle sent = shaper.sendThrottle();
+        private State state = State.INSTRUCTION;
+        private boolean session;
+        /** флаг согласованной сверки контрольных сумм {@link SharedDirService#FEATURE_CHECKSUM} */
+        private boolean checksummed;
+        private int requestId;
+        private int instruction;
+        private String name;
+        /** оставшийся размер содержимого текущего файла */
+        private long remaining;
+        /** получаемый файл, null если содержимое пропускается */
+        private AsyncChangesReceiver.Upload upload;
+        /** флаг выполняющегося действия с файлом, во время которого соединение не читается */
+        private volatile boolean busy;
+        private boolean closed;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            in.flip();
+        }
+
+        private void handle(SelectionKey key) {
+            try {
+                if (key.isWritable()) {
+                    write();
+                }
+                if (key.isValid() && key.isReadable() && !busy) {
+                    read();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                if (!serverClosed) {
+                    LOGGER.warn("server IO exception ", e);
+                }
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            in.compact();
+            int read = channel.read(in);
+            in.flip();
+            if (read > 0) {
+                received.record(read);
+            }
+            if (read == -1) {
+                if (state == State.REQUEST && !in.hasRemaining()) {
+                    LOGGER.debug("session closed by client");
+                } else if (state != State.DONE) {
+                    LOGGER.warn("Connection closed by client in the middle of operation");
+                }
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            process();
+        }
+
+        private void write() throws IOException {
+            out.flip();
+            sent.record(channel.write(out));
+            out.compact();
+            lastActivity = System.currentTimeMillis();
+            if (out.position() == 0 && state == State.DONE) {
+                close();
+                return;
+            }
+            process();
+        }
+
+        /** разбирает данные буфера, пока их достаточно и не выполняется действие с файлом */
+        private void process() throws IOException {
+            boolean progressed = true;
+            while (progressed && !closed && !busy) {
+                progressed = step();
+            }
+            updateInterest();
+        }
+
+        /**Выполняет один шаг разбора
+         * @return false если для следующего шага недостаточно данных или места для ответа
+         * @throws IOException если получена неизвестная инструкция
+         */
+        private boolean step() throws IOException {
+            switch (state) {
+                case INSTRUCTION:
+                    if (in.remaining() < 4) {
+                        return false;
+                    }
+                    instruction = in.getInt();
+                    if (instruction == SharedDirService.SESSION_START) {
+                        state = State.FEATURES;
+                    } else if (isSessionInstruction(instruction) || instruction == SharedDirService.MODIFY_DELTA) {
+                        state = State.NAME;
+                    } else if (instruction == SharedDirService.RESUMABLE_FILE || instruction == SharedDirService.RENAME
+                            || instruction == SharedDirService.COPY_FROM || instruction == SharedDirService.RECONCILE) {
+                        LOGGER.debug("server refused instruction {}", instruction);
+                        answer(false);
+                    } else {
+                        LOGGER.warn("Unknown instruction {}", instruction);
+                        answer(false);
+                    }
+                    return true;
+                case FEATURES:
+                    if (in.remaining() < 4) {
+                        return false;
+                    }
+                    int features = in.getInt();
+                    LOGGER.debug("server opened session, client features {}", features);
+                    session = true;
+                    checksummed = (features & SharedDirService.FEATURE_CHECKSUM) != 0;
+                    channel.socket().setTcpNoDelay(true);
+                    out.putInt(SharedDirService.SUCCESS_SIGNAL);
+                    /* сжатие не поддерживается, содержимое принимается только как есть */
+                    out.putInt(features & SharedDirService.FEATURE_CHECKSUM);
+                    state = State.REQUEST;
+                    return true;
+                case REQUEST:
+                    if (in.remaining() < 8 || out.remaining() < 8) {
+                        return false;
+                    }
+                    requestId = in.getInt();
+                    instruction = in.getInt();
+                    if (instruction == SharedDirService.KEEP_ALIVE) {
+                        answer(true);
+                    } else if (isSessionInstruction(instruction)) {
+                        state = State.NAME;
+                    } else {
+                        throw new IOException("Unknown instruction " + instruction + " in session");
+                    }
+                    return true;
+                case NAME:
+                    if (in.remaining() < 2 || in.remaining() < 2 + (in.getShort(in.position()) & 0xffff)) {
+                        return false;
+                    }
+                    byte[] encoded = new byte[2 + (in.getShort(in.position()) & 0xffff)];
+                    in.get(encoded);
+                    name = new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+                    if (instruction == SharedDirService.DELETE_FILE) {
+                        String deleted = name;
+                        onDisk(() -> receiver.deleteFile(deleted), this::answerResult);
+                    } else if (instruction == SharedDirService.CREATE_DIRECTORY
+                            || instruction == SharedDirService.DELETE_DIRECTORY) {
+                        String directory = name;
+                        boolean create = instruction == SharedDirService.CREATE_DIRECTORY;
+                        onDisk(() -> receiver.changeDirectory(directory, create), this::answerResult);
+                    } else {
+                        state = instruction == SharedDirService.MODIFY_DELTA ? State.DELTA_LENGTH : State.LENGTH;
+                    }
+                    return true;
+                case LENGTH:
+                    if (in.remaining() < 8) {
+                        return false;
+                    }
+                    remaining = in.getLong();
+                    if (remaining < 0) {
+                        throw new IOException("Negative file length " + remaining);
+                    }
+                    String received = name;
+                    long length = remaining;
+                    state = State.CONTENT;
+                    onDisk(() -> {
+                        try {
+                            return receiver.startFile(received, length);
+                        } catch (IOException e) {
+                            LOGGER.debug("receiver IO exception", e);
+                            return null;
+                        }
+                    }, started -> upload = started);
+                    return true;
+                case DELTA_LENGTH:
+                    if (in.remaining() < 8) {
+                        return false;
+                    }
+                    in.getLong();
+                    LOGGER.debug("delta of {} refused, selector server receives whole files only", name);
+                    answer(false);
+                    return true;
+                case CONTENT:
+                    if (remaining == 0) {
+                        if (checksummed) {
+                            state = State.CHECKSUM;
+                        } else {
+                            finishUpload(null);
+                        }
+                        return true;
+                    }
+                    if (!in.hasRemaining()) {
+                        return false;
+                    }
+                    int chunk = (int) Math.min(remaining, in.remaining());
+                    ByteBuffer content = in.slice();
+                    content.limit(chunk);
+                    in.position(in.position() + chunk);
+                    remaining -= chunk;
+                    if (upload != null) {
+                        AsyncChangesReceiver.Upload current = upload;
+                        onDisk(() -> {
+                            try {
+                                receiver.writeContent(current, content);
+                                return true;
+                            } catch (IOException e) {
+                                LOGGER.debug("receiver IO exception", e);
+                                receiver.abortFile(current);
+                                return false;
+                            }
+                        }, written -> {
+                            if (!written) {
+                                upload = null;
+                            }
+                        });
+                    }
+                    return true;
+                case CHECKSUM:
+                    if (in.remaining() < CHECKSUM_LENGTH) {
+                        return false;
+                    }
+                    byte[] expectedHash = new byte[CHECKSUM_LENGTH];
+                    in.get(expectedHash);
+                    finishUpload(expectedHash);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /** @param expectedHash MD5 содержимого, переданный отправителем, null если он не передается */
+        private void finishUpload(byte[] expectedHash) {
+            AsyncChangesReceiver.Upload finished = upload;
+            upload = null;
+            onDisk(() -> finished != null ? receiver.finishFile(finished, expectedHash)
+                    : ReceiveResult.failed(null, "file was refused or its content was not written"),
+                    this::answerResult);
+        }
+
+        /** отвечает на операцию по ее результату, причина неудачи записывается в журнал */
+        private void answerResult(ReceiveResult result) {
+            answer(SocketReceiverServer.succeeded(result));
+        }
+
+        /** записывает ответ на операцию и переходит к следующей операции сессии или к закрытию соединения */
+        private void answer(boolean success) {
+            LOGGER.debug("server answers {} to instruction {}", success, instruction);
+            if (session) {
+                out.putInt(requestId);
+            }
+            out.putInt(success ? SharedDirService.SUCCESS_SIGNAL : SharedDirService.BAD_SIGNAL);
+            state = session ? State.REQUEST : State.DONE;
+        }
+
+        /**Выполняет действие с файлом в потоке записи на диск, приостанавливая разбор соединения до его завершения
+         * @param action действие с файлом
+         * @param then продолжение, выполняемое в потоке сервера с результатом действия
+         */
+        private <T> void onDisk(Supplier<T> action, Consumer<T> then) {
+            busy = true;
+            try {
+                diskWriters.execute(() -> {
+                    T result = action.get();
+                    selectorTasks.add(() -> {
+                        busy = false;
+                        lastActivity = System.currentTimeMillis();
+                        then.accept(result);
+                        if (closed) {
+                            abortUpload();
+                            return;
+                        }
+                        try {
+                            process();
+                        } catch (IOException | CancelledKeyException e) {
+                            LOGGER.warn("server IO exception ", e);
+                            close();
+                        }
+                    });
+                    selector.wakeup();
+                });
+            } catch (RejectedExecutionException e) {
+                busy = false;
+                close();
+            }
+        }
+
+        /** ставит чтение на паузу во время действия с файлом и подписывается на запись при наличии ответов */
+        private void updateInterest() {
+            if (closed) {
+                return;
+            }
+            int ops = 0;
+            if (!busy && state != State.DONE && in.limit() - in.position() < in.capacity()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (out.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void abortUpload() {
+            AsyncChangesReceiver.Upload aborted = upload;
+            upload = null;
+            if (aborted != null) {
+                try {
+                    diskWriters.execute(() -> receiver.abortFile(aborted));
+                } catch (RejectedExecutionException e) {
+                    receiver.abortFile(aborted);
+                }
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!busy) {
+                abortUpload();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.info("Exception occurred during socket closing", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,742 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Отправляет изменения по одному постоянному соединению. Каждая операция передается кадром с идентификатором
+ * запроса, ответ сервера содержит тот же идентификатор, поэтому следующие операции отправляются, не дожидаясь ответа на
+ * предыдущие: ответы читает отдельный поток и сопоставляет их с запросами по идентификатору. Количество
+ * неподтвержденных операций ограничено окном. В периоды простоя соединение поддерживается сигналом
+ * {@link SharedDirService#KEEP_ALIVE}, после обрыва соединение автоматически восстанавливается при следующей отправке.
+ * Если удаленный сервер не поддерживает постоянные соединения, отправка выполняется через {@link SocketChangesSender};
+ * через него же по отдельным соединениям передаются разница больших измененных файлов и очень большие файлы частями с
+ * возможностью докачки.
+ * <p>Если сервер поддерживает сжатие, при открытии сессии оно согласуется, и содержимое файлов передается в формате
+ * {@link ContentCodec}, а операции над маленькими файлами могут передаваться одним кадром
+ * {@link SharedDirService#BATCH}.
+ */
+public class SessionChangesSender implements PipelinedChangesSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionChangesSender.class);
+    /** время ожидания установки соединения, в милисекундах */
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    /** время ожидания ответа сервера, в милисекундах */
+    private static final int READ_TIMEOUT_MS = 50000;
+    /** интервал простоя, после которого отправляется {@link SharedDirService#KEEP_ALIVE}, в милисекундах */
+    private static final long KEEP_ALIVE_MS = 15000;
+    /** ip адрес удаленного пользователя */
+    private final String ipAddress;
+    /** порт сервера удаленного пользователя */
+    private final int remoteServerPort;
+    /** окно неподтвержденных операций */
+    private final Semaphore window;
+    /** объект для синхронизации записи кадров в соединение */
+    private final Object writeLock = new Object();
+    /** поток, периодически проверяющий соединение в периоды простоя и отсутствие ответов сервера */
+    private final ScheduledExecutorService keepAliveTimer;
+    /** текущее соединение, null если соединение не установлено */
+    private volatile Connection connection;
+    /** идентификатор последнего отправленного запроса */
+    private int lastRequestId;
+    /** время последнего обмена с сервером, в милисекундах */
+    private volatile long lastExchangeTime;
+    /** отправитель по отдельным соединениям: для передачи разницы больших файлов и для серверов, не поддерживающих
+     * постоянные соединения */
+    private final SocketChangesSender oneShotSender;
+    /** флаг, указывающий что удаленный сервер не поддерживает постоянные соединения */
+    private volatile boolean sessionUnsupported;
+    /** флаг, запрещающий восстановление соединения после закрытия отправителя */
+    private volatile boolean closed;
+    /** возможности сессии, запрашиваемые у сервера */
+    private final int requestedFeatures;
+    /** кодировщик содержимого, используется под {@link #writeLock} */
+    private final ContentCodec codec;
+    /** счетчики сжатия содержимого, общие для всех отправителей сервиса */
+    private final CompressionStats compressionStats;
+    /** ограничение скорости передачи, для каждого соединения создаются свои ограничения */
+    private final TrafficShaper shaper;
+    /** счетчики сервиса, в них записывается время ожидания ответов сервера */
+    private final SyncMetrics metrics;
+
+    /**
+     * @param sharedDirPath путь до используемой директории, относительно него передаются имена файлов
+     * @param clientIp ip адрес удаленного пользователя
+     * @param remoteServerPort порт сервера удаленного пользователя
+     * @param windowSize максимальное количество неподтвержденных операций
+     * @param deltaThreshold минимальный размер измененного файла, начиная с которого передается только разница с
+     *                       копией сервера, 0 отключает передачу разницы
+     * @param resumeThreshold минимальный размер файла, начиная с которого он передается частями с возможностью
+     *                        докачки по отдельному соединению, 0 отключает такую передачу
+     * @param compression true если содержимое файлов сжимается, когда сервер это поддерживает
+     * @param shaper ограничение скорости передачи
+     * @param metrics счетчики сервиса
+     */
+    public SessionChangesSender(File sharedDirPath, String clientIp, int remoteServerPort, int windowSize,
+                                long deltaThreshold, long resumeThreshold, boolean compression,
+                                TrafficShaper shaper, SyncMetrics metrics) {
+        this(sharedDirPath, clientIp, remoteServerPort, windowSize, deltaThreshold, resumeThreshold, compression,
+                shaper, metrics, new ContentSnapshots(0));
+    }
+
+    /** @param snapshots снимки содержимого, из которых отправляются файлы, прочитанные для нескольких пользователей */
+    SessionChangesSender(File sharedDirPath, String clientIp, int remoteServerPort, int windowSize,
+                         long deltaThreshold, long resumeThreshold, boolean compression,
+                         TrafficShaper shaper, SyncMetrics metrics, ContentSnapshots snapshots) {
+        this.ipAddress = clientIp;
+        this.remoteServerPort = remoteServerPort;
+        this.window = new Semaphore(windowSize);
+        this.requestedFeatures = SharedDirService.FEATURE_BATCH | SharedDirService.FEATURE_COPY
+                | SharedDirService.FEATURE_CHECKSUM | (compression ? ContentCodec.FEATURE_DEFLATE : 0);
+        this.compressionStats = metrics.getCompressionStats();
+        this.codec = new ContentCodec(compressionStats);
+        this.shaper = shaper;
+        this.metrics = metrics;
+        this.oneShotSender = new SocketChangesSender(sharedDirPath, clientIp, remoteServerPort, deltaThreshold,
+                resumeThreshold, shaper, metrics, snapshots);
+        this.keepAliveTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session keep-alive thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        keepAliveTimer.scheduleWithFixedDelay(this::keepAlive, KEEP_ALIVE_MS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean sendNew(File fnew) {
+        LOGGER.debug("client try to send new file");
+        return send(fnew, SharedDirService.NEW_FILE);
+    }
+
+    @Override
+    public boolean sendModify(File fmod) {
+        LOGGER.debug("client try to send mod file");
+        return send(fmod, SharedDirService.MODIFY_FILE);
+    }
+
+    @Override
+    public boolean sendDelete(File fdel) {
+        LOGGER.debug("client try to send del file");
+        return send(fdel, SharedDirService.DELETE_FILE);
+    }
+
+    @Override
+    public boolean sendDirectory(File directory, int receiverInstruction) {
+        LOGGER.debug("client try to send directory {}", receiverInstruction);
+        return send(directory, receiverInstruction);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        keepAliveTimer.shutdownNow();
+        Connection current = connection;
+        if (current != null) {
+            current.fail(new IOException("Sender is closed"));
+        }
+        synchronized (writeLock) {
+            codec.end();
+        }
+        oneShotSender.close();
+    }
+
+    /** @return счетчики сжатия содержимого файлов, отправленных через сессию, общие для всех отправителей с теми же
+     * {@link SyncMetrics} */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**Отправляет операцию и дожидается ответа на нее. Если соединение оборвалось, один раз восстанавливает его и
+     * повторяет операцию, так как все операции с файлами идемпотентны.
+     * @param file путь к отправляемому файлу
+     * @param receiverInstruction сигнал для сервера с инструкциями
+     * @return true если операция подтверждена сервером, false в остальных случаях
+     */
+    private boolean send(File file, int receiverInstruction) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                return submitOperation(file, receiverInstruction, new TransferResult.Sent()).get();
+            } catch (ExecutionException e) {
+                LOGGER.warn("IO exception during file sending", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /** Если сервер сверяет контрольные суммы, результат содержит MD5, вычисленный при отправке содержимого */
+    @Override
+    public CompletableFuture<TransferResult> submit(File file, int receiverInstruction) {
+        long start = System.nanoTime();
+        TransferResult.Sent sent = new TransferResult.Sent();
+        return TransferResult.of(start, sent, submitOperation(file, receiverInstruction, sent));
+    }
+
+    /**Ставит операцию в очередь отправки
+     * @param file путь к отправляемому файлу
+     * @param receiverInstruction сигнал для сервера с инструкциями
+     * @param sent сведения об операции, в которые записываются отправленные байты и MD5, вычисленный при отправке
+     * @return ответ сервера: true при подтверждении операции, false при отказе, исключение при обрыве соединения
+     */
+    private CompletableFuture<Boolean> submitOperation(File file, int receiverInstruction,
+                                                       TransferResult.Sent sent) {
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        if (receiverInstruction == SharedDirService.MODIFY_FILE && oneShotSender.isDeltaCandidate(file)) {
+            answer.complete(oneShotSender.sendDelta(file, sent));
+            return answer;
+        }
+        if (SharedDirService.carriesContent(receiverInstruction) && oneShotSender.isResumeCandidate(file)) {
+            answer.complete(oneShotSender.sendResumable(file, receiverInstruction, sent));
+            return answer;
+        }
+        if (sessionUnsupported) {
+            answer.complete(oneShotSender.send(file, receiverInstruction, sent));
+            return answer;
+        }
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            answer.completeExceptionally(e);
+            return answer;
+        }
+        answer.whenComplete((success, e) -> window.release());
+        synchronized (writeLock) {
+            Connection current;
+            try {
+                current = connect();
+            } catch (IOException e) {
+                answer.completeExceptionally(e);
+                return answer;
+            }
+            if (current == null) {
+                answer.complete(oneShotSender.send(file, receiverInstruction, sent));
+                return answer;
+            }
+            try {
+                current.write(file, receiverInstruction, answer, sent);
+            } catch (FileNotFoundException e) {
+                LOGGER.warn("File {} does not exist", file.getName());
+                answer.complete(false);
+            } catch (IOException e) {
+                current.fail(e);
+            }
+        }
+        return answer;
+    }
+
+    @Override
+    public boolean sendCopy(File source, File target, byte[] hash, int receiverInstruction) {
+        try {
+            return submitCopyOperation(source, target, hash, receiverInstruction).get();
+        } catch (ExecutionException e) {
+            LOGGER.warn("IO exception during file copy sending", e.getCause());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Сверка требует промежуточных ответов и выполняется через отдельное соединение */
+    @Override
+    public boolean reconcile(DirectoryIndex index, Set<File> filesToCreate, Set<File> filesToModify) {
+        return oneShotSender.reconcile(index, filesToCreate, filesToModify);
+    }
+
+    /** Если сервер не поддерживает такие операции в сессии, они отправляются через отдельное соединение */
+    @Override
+    public CompletableFuture<TransferResult> submitCopy(File source, File target, byte[] hash,
+                                                        int receiverInstruction) {
+        long start = System.nanoTime();
+        return TransferResult.of(start, new TransferResult.Sent(),
+                submitCopyOperation(source, target, hash, receiverInstruction));
+    }
+
+    /** @return ответ сервера на {@link #submitCopy(File, File, byte[], int)}, завершается так же, как ответ
+     * {@link #submitOperation(File, int, TransferResult.Sent)} */
+    private CompletableFuture<Boolean> submitCopyOperation(File source, File target, byte[] hash,
+                                                           int receiverInstruction) {
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        Connection current = null;
+        if (!sessionUnsupported) {
+            synchronized (writeLock) {
+                try {
+                    current = connect();
+                } catch (IOException e) {
+                    answer.completeExceptionally(e);
+                    return answer;
+                }
+            }
+        }
+        if (current == null || !current.copying) {
+            answer.complete(oneShotSender.sendCopy(source, target, hash, receiverInstruction));
+            return answer;
+        }
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            answer.completeExceptionally(e);
+            return answer;
+        }
+        answer.whenComplete((success, e) -> window.release());
+        synchronized (writeLock) {
+            try {
+                current = connect();
+                if (current == null || !current.copying) {
+                    throw new IOException("Remote server does not accept copies in session");
+                }
+            } catch (IOException e) {
+                answer.completeExceptionally(e);
+                return answer;
+            }
+            try {
+                current.writeCopy(source, target, hash, receiverInstruction, answer);
+            } catch (IOException e) {
+                current.fail(e);
+            }
+        }
+        return answer;
+    }
+
+    @Override
+    public Map<File, CompletableFuture<TransferResult>> submitBatch(Map<File, Integer> changes) {
+        long start = System.nanoTime();
+        Map<File, TransferResult.Sent> sent = new HashMap<>();
+        for (File file : changes.keySet()) {
+            sent.put(file, new TransferResult.Sent());
+        }
+        Map<File, CompletableFuture<Boolean>> answers = new LinkedHashMap<>();
+        Map<File, Integer> batch = new LinkedHashMap<>();
+        for (Map.Entry<File, Integer> change : changes.entrySet()) {
+            if (change.getValue() == SharedDirService.MODIFY_FILE && oneShotSender.isDeltaCandidate(change.getKey())) {
+                answers.put(change.getKey(), submitOperation(change.getKey(), change.getValue(),
+                        sent.get(change.getKey())));
+            } else {
+                batch.put(change.getKey(), change.getValue());
+            }
+        }
+        if (batch.size() > 1 && !sessionUnsupported && isBatchSupported()) {
+            submitFrame(batch, answers, sent);
+        } else {
+            for (Map.Entry<File, Integer> change : batch.entrySet()) {
+                answers.put(change.getKey(), submitOperation(change.getKey(), change.getValue(),
+                        sent.get(change.getKey())));
+            }
+        }
+        Map<File, CompletableFuture<TransferResult>> results = new LinkedHashMap<>();
+        for (Map.Entry<File, CompletableFuture<Boolean>> answer : answers.entrySet()) {
+            results.put(answer.getKey(), TransferResult.of(start, sent.get(answer.getKey()), answer.getValue()));
+        }
+        return results;
+    }
+
+    /**Проверяет, что сервер принимает кадры {@link SharedDirService#BATCH}, при необходимости устанавливая соединение.
+     * Если соединение не удалось установить, кадр все равно отправляется, и его операции завершаются исключением.
+     * @return false если сервер не поддерживает постоянные соединения или такие кадры
+     */
+    private boolean isBatchSupported() {
+        synchronized (writeLock) {
+            try {
+                Connection current = connect();
+                return current != null && current.batching;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+    }
+
+    /**Отправляет операции одним кадром {@link SharedDirService#BATCH}, занимая одно место в окне
+     * @param batch сигналы для сервера по путям к отправляемым файлам
+     * @param answers результаты, в которые добавляются результаты операций кадра
+     * @param sent сведения об операциях по путям к файлам, в которые записываются отправленные байты и MD5
+     */
+    private void submitFrame(Map<File, Integer> batch, Map<File, CompletableFuture<Boolean>> answers,
+                             Map<File, TransferResult.Sent> sent) {
+        Map<File, CompletableFuture<Boolean>> frameAnswers = new LinkedHashMap<>();
+        for (File file : batch.keySet()) {
+            frameAnswers.put(file, new CompletableFuture<>());
+        }
+        answers.putAll(frameAnswers);
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            frameAnswers.values().forEach(answer -> answer.completeExceptionally(e));
+            return;
+        }
+        CompletableFuture.allOf(frameAnswers.values().toArray(new CompletableFuture<?>[0]))
+                .whenComplete((success, e) -> window.release());
+        synchronized (writeLock) {
+            Connection current;
+            try {
+                current = connect();
+                if (current == null || !current.batching) {
+                    throw new IOException("Remote server does not accept batches");
+                }
+            } catch (IOException e) {
+                frameAnswers.values().forEach(answer -> answer.completeExceptionally(e));
+                return;
+            }
+            try {
+                current.writeBatch(batch, frameAnswers, sent);
+            } catch (IOException e) {
+                current.fail(e);
+            }
+        }
+    }
+
+    /**Устанавливает соединение, если оно еще не установлено, и открывает на нем сессию
+     * @return текущее соединение, или null если сервер не поддерживает постоянные соединения
+     * @throws IOException если соединение не удалось установить
+     */
+    private Connection connect() throws IOException {
+        Connection current = connection;
+        if (current != null) {
+            return current;
+        }
+        if (closed) {
+            throw new IOException("Sender is closed");
+        }
+        SocketChannel client = ChannelTransfer.connect(ipAddress, remoteServerPort, CONNECT_TIMEOUT_MS);
+        try {
+            client.socket().setSoTimeout(READ_TIMEOUT_MS);
+            client.socket().setTcpNoDelay(true);
+            DataOutputStream sessionOut = ChannelTransfer.output(client, shaper.sendThrottle());
+            /* ответ на открытие сессии читается без буфера и с таймаутом, дальше ответы читает поток без таймаута */
+            DataInputStream handshakeIn = new DataInputStream(client.socket().getInputStream());
+            sessionOut.writeInt(SharedDirService.SESSION_START);
+            sessionOut.writeInt(requestedFeatures);
+            sessionOut.flush();
+            if (handshakeIn.readInt() != SharedDirService.SUCCESS_SIGNAL) {
+                LOGGER.warn("Remote server does not support sessions, switching to one connection per file");
+                client.close();
+                sessionUnsupported = true;
+                return null;
+            }
+            int features = handshakeIn.readInt() & requestedFeatures;
+            LOGGER.debug("client opened session with features {}", features);
+            current = new Connection(client, sessionOut, ChannelTransfer.input(client, shaper.receiveThrottle()),
+                    features);
+            connection = current;
+            lastExchangeTime = System.currentTimeMillis();
+            current.reader.start();
+            return current;
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    /** отправляет {@link SharedDirService#KEEP_ALIVE}, если соединение простаивает дольше {@link #KEEP_ALIVE_MS}, и
+     * разрывает соединение, если сервер не отвечает на отправленные операции дольше {@link #READ_TIMEOUT_MS} */
+    private void keepAlive() {
+        Connection current = connection;
+        if (current == null) {
+            return;
+        }
+        if (current.isAnswerOverdue()) {
+            LOGGER.warn("Session server does not answer, closing connection");
+            current.fail(new SocketTimeoutException("No answer from server in " + READ_TIMEOUT_MS + " ms"));
+            return;
+        }
+        if (!current.inFlight.isEmpty() || System.currentTimeMillis() - lastExchangeTime < KEEP_ALIVE_MS) {
+            return;
+        }
+        synchronized (writeLock) {
+            try {
+                current.write(null, SharedDirService.KEEP_ALIVE, new CompletableFuture<>(), null);
+                LOGGER.debug("session keep-alive sent");
+            } catch (IOException e) {
+                LOGGER.info("Session keep-alive failed, connection will be restored on next send", e);
+                current.fail(e);
+            }
+        }
+    }
+
+    /** Одно установленное соединение сессии вместе с ожидающими ответа операциями и потоком чтения ответов */
+    private final class Connection {
+        private final SocketChannel socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        /** флаг согласованного сжатия содержимого */
+        private final boolean compressed;
+        /** флаг согласованной передачи кадров {@link SharedDirService#BATCH} */
+        private final boolean batching;
+        /** флаг согласованной передачи {@link SharedDirService#RENAME} и {@link SharedDirService#COPY_FROM} */
+        private final boolean copying;
+        /** флаг согласованной передачи MD5 за содержимым каждого файла */
+        private final boolean checksums;
+        /** кадры, ожидающие ответа сервера, по идентификатору запроса */
+        private final ConcurrentHashMap<Integer, Pending> inFlight = new ConcurrentHashMap<>();
+        /** поток, читающий ответы сервера */
+        private final Thread reader;
+        /** флаг обрыва соединения */
+        private volatile boolean failed;
+        /** флаг записи кадра, во время которой отсутствие ответов не считается обрывом соединения */
+        private volatile boolean writing;
+
+        private Connection(SocketChannel socket, DataOutputStream out, DataInputStream in, int features) {
+            this.socket = socket;
+            this.out = out;
+            this.in = in;
+            this.compressed = (features & ContentCodec.FEATURE_DEFLATE) != 0;
+            this.batching = (features & SharedDirService.FEATURE_BATCH) != 0;
+            this.copying = (features & SharedDirService.FEATURE_COPY) != 0;
+            this.checksums = (features & SharedDirService.FEATURE_CHECKSUM) != 0;
+            this.reader = new Thread(this::readAnswers);
+            reader.setName("session answer reader thread");
+            reader.setDaemon(true);
+        }
+
+        /**Записывает кадр операции в соединение. Содержимое файла открывается до записи заголовка, поэтому
+         * отсутствующий файл не нарушает разбиение потока на операции. Вызывается под {@link #writeLock}.
+         * @param file путь к отправляемому файлу, null для {@link SharedDirService#KEEP_ALIVE}
+         * @param receiverInstruction сигнал для сервера с инструкциями
+         * @param answer результат, который будет завершен при получении ответа
+         * @param sent сведения об операции, в которые до отправки кадра записываются отправленные байты и MD5,
+         *             вычисленный при записи содержимого, null для кадров без содержимого
+         * @throws FileNotFoundException если отправляемый файл не существует, кадр при этом не записывается
+         * @throws IOException если соединение было прервано
+         */
+        private void write(File file, int receiverInstruction, CompletableFuture<Boolean> answer,
+                           TransferResult.Sent sent) throws IOException {
+            FileChannel fileReader = null;
+            long fileLength = 0;
+            if (file != null && SharedDirService.carriesContent(receiverInstruction)) {
+                fileReader = oneShotSender.openContent(file);
+                fileLength = fileReader.size();
+            }
+            int requestId = ++lastRequestId;
+            Pending frame = new Pending(Collections.singletonList(answer), false);
+            inFlight.put(requestId, frame);
+            writing = true;
+            try {
+                if (failed) {
+                    throw new IOException("Connection is closed");
+                }
+                out.writeInt(requestId);
+                out.writeInt(receiverInstruction);
+                LOGGER.debug("client sent instruction {} to server in request {}", receiverInstruction, requestId);
+                if (file != null) {
+                    out.writeUTF(oneShotSender.nameOf(file));
+                    LOGGER.debug("client sent name to server {}", file.getName());
+                }
+                if (fileReader != null) {
+                    out.writeLong(fileLength);
+                    LOGGER.debug("client start send content of file to server");
+                    writeContent(fileReader, fileLength, file.getName(), sent);
+                }
+                out.flush();
+                frame.sentNanos = System.nanoTime();
+                LOGGER.debug("client finished send of request {}", requestId);
+            } finally {
+                lastExchangeTime = System.currentTimeMillis();
+                writing = false;
+                if (fileReader != null) {
+                    fileReader.close();
+                }
+            }
+        }
+
+        /**Записывает кадр {@link SharedDirService#BATCH}: количество операций и каждую операцию в том же виде, что и
+         * отдельный кадр, без идентификатора запроса. Операции над отсутствующими файлами завершаются неудачей и в
+         * кадр не попадают. Вызывается под {@link #writeLock}.
+         * @param batch сигналы для сервера по путям к отправляемым файлам
+         * @param answers результаты операций по путям к файлам
+         * @param sent сведения об операциях по путям к файлам, в которые записываются отправленные байты и MD5
+         * @throws IOException если соединение было прервано
+         */
+        private void writeBatch(Map<File, Integer> batch, Map<File, CompletableFuture<Boolean>> answers,
+                                Map<File, TransferResult.Sent> sent) throws IOException {
+            List<File> files = new ArrayList<>(batch.size());
+            List<FileChannel> fileReaders = new ArrayList<>(batch.size());
+            List<CompletableFuture<Boolean>> pending = new ArrayList<>(batch.size());
+            try {
+                for (Map.Entry<File, Integer> change : batch.entrySet()) {
+                    FileChannel fileReader = null;
+                    if (SharedDirService.carriesContent(change.getValue())) {
+                        try {
+                            fileReader = oneShotSender.openContent(change.getKey());
+                        } catch (FileNotFoundException e) {
+                            LOGGER.warn("File {} does not exist", change.getKey().getName());
+                            answers.get(change.getKey()).complete(false);
+                            continue;
+                        }
+                    }
+                    files.add(change.getKey());
+                    fileReaders.add(fileReader);
+                    pending.add(answers.get(change.getKey()));
+                }
+                if (files.isEmpty()) {
+                    return;
+                }
+                int requestId = ++lastRequestId;
+                Pending frame = new Pending(pending, true);
+                inFlight.put(requestId, frame);
+                writing = true;
+                if (failed) {
+                    throw new IOException("Connection is closed");
+                }
+                out.writeInt(requestId);
+                out.writeInt(SharedDirService.BATCH);
+                out.writeInt(files.size());
+                for (int i = 0; i < files.size(); i++) {
+                    File file = files.get(i);
+                    FileChannel fileReader = fileReaders.get(i);
+                    out.writeInt(batch.get(file));
+                    out.writeUTF(oneShotSender.nameOf(file));
+                    if (fileReader != null) {
+                        long fileLength = fileReader.size();
+                        out.writeLong(fileLength);
+                        writeContent(fileReader, fileLength, file.getName(), sent.get(file));
+                    }
+                }
+                out.flush();
+                frame.sentNanos = System.nanoTime();
+                LOGGER.debug("client sent batch of {} files in request {}", files.size(), requestId);
+            } finally {
+                lastExchangeTime = System.currentTimeMillis();
+                writing = false;
+                for (FileChannel fileReader : fileReaders) {
+                    if (fileReader != null) {
+                        fileReader.close();
+                    }
+                }
+            }
+        }
+
+        /**Записывает кадр {@link SharedDirService#RENAME} или {@link SharedDirService#COPY_FROM}. Вызывается под
+         * {@link #writeLock}.
+         * @throws IOException если соединение было прервано
+         */
+        private void writeCopy(File source, File target, byte[] hash, int receiverInstruction,
+                               CompletableFuture<Boolean> answer) throws IOException {
+            int requestId = ++lastRequestId;
+            Pending frame = new Pending(Collections.singletonList(answer), false);
+            inFlight.put(requestId, frame);
+            writing = true;
+            try {
+                if (failed) {
+                    throw new IOException("Connection is closed");
+                }
+                out.writeInt(requestId);
+                out.writeInt(receiverInstruction);
+                oneShotSender.writeCopy(out, source, target, hash);
+                out.flush();
+                frame.sentNanos = System.nanoTime();
+                LOGGER.debug("client sent {} of {} as {} in request {}", receiverInstruction, source.getName(),
+                        target.getName(), requestId);
+            } finally {
+                lastExchangeTime = System.currentTimeMillis();
+                writing = false;
+            }
+        }
+
+        /** записывает содержимое файла после его размера, сжимая его, если это согласовано при открытии сессии, и
+         * MD5 содержимого, если согласована сверка контрольных сумм. Количество записанных байт и сумма записываются в
+         * sent до отправки кадра, поэтому они известны к получению ответа сервера. */
+        private void writeContent(FileChannel fileReader, long fileLength, String name, TransferResult.Sent sent)
+                throws IOException {
+            MessageDigest digest = checksums ? DeltaTransfer.md5() : null;
+            if (compressed) {
+                sent.add(codec.write(out, socket, fileReader, fileLength, name, digest));
+            } else {
+                ChannelTransfer.sendFile(out, socket, fileReader, fileLength, digest);
+                sent.add(fileLength);
+            }
+            if (digest != null) {
+                byte[] hash = digest.digest();
+                sent.setHash(hash);
+                out.write(hash);
+                sent.add(hash.length);
+            }
+        }
+
+        /** читает ответы сервера и завершает соответствующие им операции, пока соединение не будет разорвано */
+        private void readAnswers() {
+            try {
+                while (!failed) {
+                    int requestId = in.readInt();
+                    boolean success = in.readInt() == SharedDirService.SUCCESS_SIGNAL;
+                    Pending pending = inFlight.get(requestId);
+                    if (pending == null) {
+                        throw new IOException("Received answer for unknown request " + requestId);
+                    }
+                    byte[] results = null;
+                    if (pending.batch) {
+                        results = new byte[in.readInt()];
+                        if (results.length != pending.answers.size()) {
+                            throw new IOException("Batch answer does not match request " + requestId);
+                        }
+                        in.readFully(results);
+                    }
+                    inFlight.remove(requestId);
+                    lastExchangeTime = System.currentTimeMillis();
+                    if (pending.sentNanos != 0) {
+                        metrics.recordAck(pending.sentNanos);
+                    }
+                    LOGGER.debug("client received {} answer from server for request {}", success, requestId);
+                    for (int i = 0; i < pending.answers.size(); i++) {
+                        pending.answers.get(i).complete(results == null ? success
+                                : results[i] == SharedDirService.SUCCESS_SIGNAL);
+                    }
+                }
+            } catch (IOException e) {
+                if (!failed) {
+                    LOGGER.warn("Session connection lost", e);
+                }
+                fail(e);
+            }
+        }
+
+        /** @return true если есть операции, ожидающие ответа, а обмена с сервером не было дольше {@link #READ_TIMEOUT_MS} */
+        private boolean isAnswerOverdue() {
+            return !inFlight.isEmpty() && !writing && System.currentTimeMillis() - lastExchangeTime >= READ_TIMEOUT_MS;
+        }
+
+        /**Закрывает соединение и завершает исключением все операции, ожидающие ответа
+         * @param cause причина обрыва соединения
+         */
+        private void fail(IOException cause) {
+            failed = true;
+            if (connection == this) {
+                connection = null;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.info("Exception occurred during socket closing", e);
+            }
+            for (Integer requestId : inFlight.keySet()) {
+                Pending pending = inFlight.remove(requestId);
+                if (pending != null) {
+                    pending.answers.forEach(answer -> answer.completeExceptionally(cause));
+                }
+            }
+        }
+    }
+
+    /** Операции одного кадра, ожидающие ответа сервера */
+    private static final class Pending {
+        private final List<CompletableFuture<Boolean>> answers;
+        /** true для кадра {@link SharedDirService#BATCH}, ответ на который содержит результат каждой операции */
+        private final boolean batch;
+        /** время {@link System#nanoTime()} окончания записи кадра, 0 пока кадр записывается */
+        private volatile long sentNanos;
+
+        private Pending(List<CompletableFuture<Boolean>> answers, boolean batch) {
+            this.answers = answers;
+            this.batch = batch;
+        }
+    }
+}
@@ -3,8 +3,12 @@ package com.pavel.shareddirectories;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class SharedDirService {
     /** сигнал для отправки нового файла от клиента к серверу */
@@ -13,15 +17,46 @@ public class SharedDirService {
     static final int MODIFY_FILE = 2;
     /** сигнал для удаления файла от клиента к серверу */
     static final int DELETE_FILE = 3;
+    /** сигнал открытия постоянного соединения, по которому передается несколько операций */
+    static final int SESSION_START = 4;
+    /** сигнал проверки постоянного соединения, не изменяет файлы */
+    static final int KEEP_ALIVE = 5;
+    /** сигнал для отправки измененного файла в виде разницы с копией сервера, только для отдельного соединения */
+    static final int MODIFY_DELTA = 6;
+    /** сигнал для отправки нескольких операций над маленькими файлами одним кадром, только внутри сессии */
+    static final int BATCH = 7;
+    /** возможность сессии: операции над маленькими файлами передаются кадрами {@link #BATCH} */
+    static final int FEATURE_BATCH = 2;
+    /** сигнал для отправки большого файла частями с возможностью докачки, только для отдельного соединения */
+    static final int RESUMABLE_FILE = 8;
+    /** сигнал о переименовании файла, содержимое которого уже есть у сервера под прежним именем */
+    static final int RENAME = 9;
+    /** сигнал о новом файле, содержимое которого сервер копирует из своего файла с тем же содержимым */
+    static final int COPY_FROM = 10;
+    /** возможность сессии: внутри нее передаются {@link #RENAME} и {@link #COPY_FROM} */
+    static final int FEATURE_COPY = 4;
+    /** возможность сессии: за содержимым каждого файла передается MD5, вычисленный при отправке, и сервер сверяет с ним
+     * полученное содержимое до замены файла */
+    static final int FEATURE_CHECKSUM = 8;
+    /** сигнал сверки состояния директорий по {@link ReconcileTree}, только для отдельного соединения */
+    static final int RECONCILE = 11;
+    /** сигнал для создания поддиректории */
+    static final int CREATE_DIRECTORY = 12;
+    /** сигнал для удаления поддиректории вместе с пустыми вложенными директориями */
+    static final int DELETE_DIRECTORY = 13;
     /** сигнал об успешности операции */
     static final int SUCCESS_SIGNAL = 0;
     /** сигнал об неудачности операции */
     static final int BAD_SIGNAL = 1;
     private static final Logger LOGGER = LoggerFactory.getLogger(SharedDirService.class);
-    /** объект для синхронизации монитора и сервера */
-    private static final Object locker = new Object();
-    /** коллекция, в которой хранится подтвержденное состояние директории */
-    private final ConcurrentHashMap<File, Long> sharedDirIndex = new ConcurrentHashMap<>();
+    /** количество объектов синхронизации операций над файлами */
+    private static final int PATH_LOCK_STRIPES = 64;
+    /** время хранения состояния прерванной передачи в кеш-директории, в милисекундах */
+    private static final long RESUME_STATE_MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+    /** объекты для синхронизации монитора и сервера при операциях над одним файлом */
+    private final PathLocks pathLocks = new PathLocks(PATH_LOCK_STRIPES);
+    /** подтвержденное состояние директории, сохраняемое между запусками */
+    private DirectoryIndex sharedDirIndex;
     /** путь до используемой директории */
     private final File sharedDirPath;
     /** ip адрес удаленного пользователя */
@@ -30,6 +65,14 @@ public class SharedDirService {
     private final int serverPort;
     /** порт сервера удаленного пользователя */
     private final int remoteServerPort;
+    /** дополнительные настройки сервиса */
+    private final SharedDirSettings settings;
+    /** ограничение скорости передачи для всех соединений сервиса */
+    private final TrafficShaper trafficShaper;
+    /** счетчики и гистограммы длительностей работы сервиса */
+    private final SyncMetrics metrics;
+    /** периодическая запись снимка {@link #metrics}, null если она отключена */
+    private MetricsReporter metricsReporter;
     private Monitor monitor;
 
     private ChangesReceiverServer server;
@@ -40,10 +83,29 @@ public class SharedDirService {
 
 
     public SharedDirService(String sharedDirPath, String ipAddress, int serverPort, int remoteServerPort) {
+        this(sharedDirPath, ipAddress, serverPort, remoteServerPort, new SharedDirSettings());
+    }
+
+    public SharedDirService(String sharedDirPath, String ipAddress, int serverPort, int remoteServerPort,
+                            SharedDirSettings settings) {
         this.sharedDirPath = new File(sharedDirPath);
         this.ipAddress = ipAddress;
         this.serverPort = serverPort;
         this.remoteServerPort = remoteServerPort;
+        this.settings = settings;
+        this.trafficShaper = new TrafficShaper(settings.getSendRate(), settings.getReceiveRate(),
+                settings.getConnectionSendRate(), settings.getConnectionReceiveRate(), settings.getRateSchedule());
+        this.metrics = new SyncMetrics(trafficShaper);
+    }
+
+    /** @return ограничение скорости передачи, его пределы можно менять во время работы сервиса */
+    public TrafficShaper getTrafficShaper() {
+        return trafficShaper;
+    }
+
+    /** @return счетчики и гистограммы длительностей работы сервиса */
+    public SyncMetrics getMetrics() {
+        return metrics;
     }
 
     /**запускает SharedDirService
@@ -61,21 +123,40 @@ public class SharedDirService {
             if (!downloadPath.mkdir() && !downloadPath.exists()) {
                 throw new DownloadCacheException("Cannot create download cache directory");
             } else {
+                long resumeStateTime = System.currentTimeMillis() - RESUME_STATE_MAX_AGE_MS;
                 for (File element : Objects.requireNonNull(downloadPath.listFiles())) {
+                    if (ResumableTransfer.isResumeState(element) && element.lastModified() > resumeStateTime) {
+                        continue;
+                    }
                     if (!element.delete()) {
                         throw new FileAccessException("Download cache clean failed");
                     }
                 }
             }
-            for (File file : Objects.requireNonNull(sharedDirPath.listFiles())) {
-                sharedDirIndex.put(file, file.lastModified());
+            sharedDirIndex = openIndex(new File(this.sharedDirPath, ".index"));
+            if (!sharedDirIndex.isRestored()) {
+                DirectoryScan.scan(sharedDirPath, element -> {
+                    if (element.isDirectory()) {
+                        sharedDirIndex.put(element, DirectoryIndex.DIRECTORY_LENGTH, 0, null);
+                    } else {
+                        sharedDirIndex.put(element, element.length(), element.lastModified(), null);
+                    }
+                });
             }
-            ChangesReceiver receiver = new SocketReceiver(sharedDirIndex, this.sharedDirPath, downloadPath);
-            server = new ChangesReceiverServer(receiver, locker, serverPort);
-            ChangesSender sender = new SocketChangesSender(ipAddress, remoteServerPort);
-            monitor = new Monitor(sharedDirIndex, sender, this.sharedDirPath, locker);
+            SocketReceiver receiver = new SocketReceiver(sharedDirIndex, this.sharedDirPath, downloadPath, pathLocks,
+                    metrics, new FileCommitter(settings.getDurability()));
+            server = settings.isSelectorServer()
+                    ? new SelectorReceiverServer(receiver, serverPort, settings.getReceiveThreads(), trafficShaper)
+                    : new SocketReceiverServer(receiver, serverPort, settings.getReceiveThreads(), trafficShaper);
+            monitor = new Monitor(sharedDirIndex, createPipelinedSender(), this.sharedDirPath, pathLocks, settings,
+                    metrics);
             monitor.start();
             server.start();
+            metrics.register(String.valueOf(serverPort));
+            if (settings.getMetricsIntervalMs() > 0) {
+                metricsReporter = new MetricsReporter(metrics, settings.getMetricsIntervalMs(),
+                        settings.getMetricsFile());
+            }
             LOGGER.info("SharedDIrService started");
         }
     }
@@ -89,8 +170,84 @@ public class SharedDirService {
             finishGuard = false;
             server.close(serverTimeout);
             monitor.close(monitorTimeout);
+            if (metricsReporter != null) {
+                metricsReporter.close();
+            }
+            metrics.unregister();
+            CompressionStats compressionStats = metrics.getCompressionStats();
+            if (compressionStats.getCompressedFiles() + compressionStats.getRawFiles() > 0) {
+                LOGGER.info("Session compression: {}", compressionStats);
+            }
+            try {
+                sharedDirIndex.close();
+            } catch (IOException e) {
+                LOGGER.warn("Directory index was not saved", e);
+            }
         }
     }
 
-}
+    /** @return отправитель изменений для монитора: основному удаленному пользователю или, если настроены
+     * дополнительные, всем пользователям через {@link FanOutChangesSender} */
+    private PipelinedChangesSender createPipelinedSender() {
+        if (settings.getPeers().isEmpty()) {
+            return createPipelinedSender(ipAddress, remoteServerPort, new ContentSnapshots(0));
+        }
+        ContentSnapshots snapshots = new ContentSnapshots(settings.getFanOutBuffer());
+        Map<String, PipelinedChangesSender> senders = new LinkedHashMap<>();
+        senders.put(ipAddress + ":" + remoteServerPort,
+                createPipelinedSender(ipAddress, remoteServerPort, snapshots));
+        for (InetSocketAddress peer : settings.getPeers()) {
+            senders.put(peer.getHostString() + ":" + peer.getPort(),
+                    createPipelinedSender(peer.getHostString(), peer.getPort(), snapshots));
+        }
+        return new FanOutChangesSender(senders, snapshots, settings.getPollIntervalMs());
+    }
+
+    /** @return отправитель изменений одному пользователю: полосы при нескольких соединениях, иначе полосы одного
+     * отправителя. Отправитель с конвейерной отправкой передает содержимое в вызывающем потоке, поэтому большие файлы
+     * идут через отдельную полосу того же соединения и не задерживают монитор, хотя маленькие файлы все равно ждут
+     * окончания их записи в соединение; отправитель без конвейерной отправки работает через одну полосу */
+    private PipelinedChangesSender createPipelinedSender(String host, int port, ContentSnapshots snapshots) {
+        if (settings.getSendConnections() > 1) {
+            return new LaneChangesSender(() -> createSender(host, port, snapshots),
+                    settings.getSendConnections() - settings.getLargeFileConnections(),
+                    settings.getLargeFileConnections(), settings.getLargeFileLength());
+        }
+        ChangesSender sender = createSender(host, port, snapshots);
+        return sender instanceof PipelinedChangesSender
+                ? new LaneChangesSender(() -> sender, 1, 1, settings.getLargeFileLength())
+                : new LaneChangesSender(() -> sender, 1, 0, Long.MAX_VALUE);
+    }
+
+    /** @return отправитель изменений по одному соединению в выбранном режиме */
+    private ChangesSender createSender(String host, int port, ContentSnapshots snapshots) {
+        return settings.isSessionMode() ? new SessionChangesSender(sharedDirPath, host, port,
+                settings.getSendWindow(), settings.getDeltaThreshold(), settings.getResumeThreshold(),
+                settings.isCompressionEnabled(), trafficShaper, metrics, snapshots)
+                : new SocketChangesSender(sharedDirPath, host, port, settings.getDeltaThreshold(),
+                settings.getResumeThreshold(), trafficShaper, metrics, snapshots);
+    }
 
+    /**Открывает сохраненный индекс директории. Если его не удается открыть, сервис работает с индексом в памяти, как
+     * при первом запуске
+     * @param indexPath путь до директории индекса
+     * @return индекс директории
+     */
+    private DirectoryIndex openIndex(File indexPath) {
+        if (!indexPath.mkdir() && !indexPath.isDirectory()) {
+            LOGGER.warn("Cannot create directory index directory, index will not be saved");
+            return DirectoryIndex.inMemory(sharedDirPath);
+        }
+        try {
+            return DirectoryIndex.open(sharedDirPath, indexPath);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot open directory index, index will not be saved", e);
+            return DirectoryIndex.inMemory(sharedDirPath);
+        }
+    }
+
+    /** @return true если за сигналом и именем файла передается его содержимое */
+    static boolean carriesContent(int instruction) {
+        return instruction == NEW_FILE || instruction == MODIFY_FILE;
+    }
+}
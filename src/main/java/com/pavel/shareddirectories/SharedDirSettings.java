@@ -0,0 +1,274 @@
+package com.pavel.shareddirectories;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/** Дополнительные настройки {@link SharedDirService}, читаются из того же файла config.properties. Для всех
+ * параметров предусмотрены значения по умолчанию, поэтому отсутствующие в конфигурации ключи не являются ошибкой.
+ */
+public class SharedDirSettings {
+    /** режим отслеживания изменений на основе событий {@link java.nio.file.WatchService} */
+    static final String MONITOR_WATCH = "watch";
+    /** режим отслеживания изменений периодическим опросом директории */
+    static final String MONITOR_POLL = "poll";
+    /** режим передачи изменений по одному постоянному соединению */
+    static final String CONNECTION_SESSION = "session";
+    /** режим передачи изменений с отдельным соединением на каждый файл */
+    static final String CONNECTION_ONESHOT = "oneshot";
+    /** сервер, обслуживающий каждое соединение в отдельном потоке */
+    static final String SERVER_THREADS = "threads";
+    /** сервер, обслуживающий все соединения одним потоком на {@link java.nio.channels.Selector} */
+    static final String SERVER_SELECTOR = "selector";
+    /** сжатие содержимого файлов, если удаленный сервер его поддерживает */
+    static final String COMPRESSION_AUTO = "auto";
+    /** передача содержимого файлов без сжатия */
+    static final String COMPRESSION_OFF = "off";
+    /** режим отслеживания изменений директории (watch или poll) */
+    private final String monitorMode;
+    /** интервал между полными проверками директории в режиме poll, в милисекундах */
+    private final long pollIntervalMs;
+    /** режим соединения с удаленным пользователем (session или oneshot) */
+    private final String connectionMode;
+    /** максимальное количество операций, отправленных по постоянному соединению без подтверждения */
+    private final int sendWindow;
+    /** минимальный размер измененного файла, начиная с которого передается только разница, 0 отключает передачу разницы */
+    private final long deltaThreshold;
+    /** минимальный размер файла, начиная с которого он передается частями с возможностью докачки, 0 отключает */
+    private final long resumeThreshold;
+    /** количество потоков сервера, параллельно принимающих изменения по отдельным соединениям */
+    private final int receiveThreads;
+    /** режим сервера (threads или selector) */
+    private final String serverMode;
+    /** режим сжатия содержимого файлов при отправке (auto или off) */
+    private final String compression;
+    /** количество параллельных соединений для отправки изменений, 1 отправляет все по одному соединению */
+    private final int sendConnections;
+    /** количество соединений из {@link #sendConnections}, выделенных для больших файлов */
+    private final int largeFileConnections;
+    /** минимальный размер файла, который отправляется по соединению для больших файлов, в байтах */
+    private final long largeFileLength;
+    /** общий предел скорости отправки, байт в секунду, 0 без ограничения */
+    private final long sendRate;
+    /** общий предел скорости получения, байт в секунду, 0 без ограничения */
+    private final long receiveRate;
+    /** предел скорости отправки по одному соединению, байт в секунду, 0 без ограничения */
+    private final long connectionSendRate;
+    /** предел скорости получения по одному соединению, байт в секунду, 0 без ограничения */
+    private final long connectionReceiveRate;
+    /** расписание общего предела скорости, см. {@link TrafficShaper#setSchedule(String)} */
+    private final String rateSchedule;
+    /** время, в течение которого размер и время изменения файла не должны меняться перед отправкой, в милисекундах,
+     * 0 отправляет файлы сразу */
+    private final long quietPeriodMs;
+    /** максимальное время задержки отправки файла, запись которого продолжается, в милисекундах */
+    private final long maxHoldMs;
+    /** интервал между снимками {@link SyncMetrics}, в милисекундах, 0 отключает снимки */
+    private final long metricsIntervalMs;
+    /** файл, в который записывается снимок в формате JSON, пустая строка записывает снимок в журнал */
+    private final String metricsFile;
+    /** надежность размещения полученных файлов: {@link FileCommitter#BATCHED}, {@link FileCommitter#PER_FILE} или
+     * {@link FileCommitter#NONE} */
+    private final String durability;
+    /** дополнительные удаленные пользователи, которым отправляются изменения, кроме основного */
+    private final List<InetSocketAddress> peers;
+    /** максимальный общий размер снимков содержимого при отправке нескольким пользователям, в байтах */
+    private final long fanOutBuffer;
+
+    /** создает настройки со значениями по умолчанию */
+    public SharedDirSettings() {
+        this(new Properties());
+    }
+
+    /** @param config свойства, из которых читаются настройки */
+    public SharedDirSettings(Properties config) {
+        this.monitorMode = config.getProperty("monitorMode", MONITOR_WATCH).trim();
+        if (!MONITOR_WATCH.equals(monitorMode) && !MONITOR_POLL.equals(monitorMode)) {
+            throw new IllegalArgumentException("Unknown monitorMode " + monitorMode);
+        }
+        this.pollIntervalMs = Long.parseLong(config.getProperty("pollInterval", "2000").trim());
+        this.connectionMode = config.getProperty("connectionMode", CONNECTION_SESSION).trim();
+        if (!CONNECTION_SESSION.equals(connectionMode) && !CONNECTION_ONESHOT.equals(connectionMode)) {
+            throw new IllegalArgumentException("Unknown connectionMode " + connectionMode);
+        }
+        this.sendWindow = Integer.parseInt(config.getProperty("sendWindow", "16").trim());
+        if (sendWindow < 1) {
+            throw new IllegalArgumentException("sendWindow must be positive");
+        }
+        this.deltaThreshold = Long.parseLong(config.getProperty("deltaThreshold", "8388608").trim());
+        this.resumeThreshold = Long.parseLong(config.getProperty("resumeThreshold", "16777216").trim());
+        this.receiveThreads = Integer.parseInt(config.getProperty("receiveThreads", "8").trim());
+        if (receiveThreads < 1) {
+            throw new IllegalArgumentException("receiveThreads must be positive");
+        }
+        this.serverMode = config.getProperty("serverMode", SERVER_THREADS).trim();
+        if (!SERVER_THREADS.equals(serverMode) && !SERVER_SELECTOR.equals(serverMode)) {
+            throw new IllegalArgumentException("Unknown serverMode " + serverMode);
+        }
+        this.compression = config.getProperty("compression", COMPRESSION_AUTO).trim();
+        if (!COMPRESSION_AUTO.equals(compression) && !COMPRESSION_OFF.equals(compression)) {
+            throw new IllegalArgumentException("Unknown compression " + compression);
+        }
+        this.sendConnections = Integer.parseInt(config.getProperty("sendConnections", "1").trim());
+        if (sendConnections < 1) {
+            throw new IllegalArgumentException("sendConnections must be positive");
+        }
+        this.largeFileConnections = Integer.parseInt(config.getProperty("largeFileConnections", "1").trim());
+        if (largeFileConnections < 0 || sendConnections > 1 && largeFileConnections >= sendConnections) {
+            throw new IllegalArgumentException("largeFileConnections must be less than sendConnections");
+        }
+        this.largeFileLength = Long.parseLong(config.getProperty("largeFileLength", "1048576").trim());
+        this.sendRate = Long.parseLong(config.getProperty("sendRate", "0").trim());
+        this.receiveRate = Long.parseLong(config.getProperty("receiveRate", "0").trim());
+        this.connectionSendRate = Long.parseLong(config.getProperty("connectionSendRate", "0").trim());
+        this.connectionReceiveRate = Long.parseLong(config.getProperty("connectionReceiveRate", "0").trim());
+        this.rateSchedule = config.getProperty("rateSchedule", "").trim();
+        this.quietPeriodMs = Long.parseLong(config.getProperty("quietPeriod", "1000").trim());
+        this.maxHoldMs = Long.parseLong(config.getProperty("maxHoldTime", "30000").trim());
+        if (quietPeriodMs < 0 || maxHoldMs < quietPeriodMs) {
+            throw new IllegalArgumentException("maxHoldTime must not be less than quietPeriod");
+        }
+        this.metricsIntervalMs = Long.parseLong(config.getProperty("metricsInterval", "0").trim());
+        if (metricsIntervalMs < 0) {
+            throw new IllegalArgumentException("metricsInterval must not be negative");
+        }
+        this.metricsFile = config.getProperty("metricsFile", "").trim();
+        this.durability = config.getProperty("durability", FileCommitter.BATCHED).trim();
+        if (!FileCommitter.BATCHED.equals(durability) && !FileCommitter.PER_FILE.equals(durability)
+                && !FileCommitter.NONE.equals(durability)) {
+            throw new IllegalArgumentException("Unknown durability " + durability);
+        }
+        this.peers = parsePeers(config.getProperty("peers", "").trim());
+        this.fanOutBuffer = Long.parseLong(config.getProperty("fanOutBuffer", "67108864").trim());
+        if (fanOutBuffer < 0) {
+            throw new IllegalArgumentException("fanOutBuffer must not be negative");
+        }
+    }
+
+    /** @return true если изменения директории отслеживаются через события файловой системы */
+    public boolean isWatchMode() {
+        return MONITOR_WATCH.equals(monitorMode);
+    }
+
+    public long getPollIntervalMs() {
+        return pollIntervalMs;
+    }
+
+    /** @return true если изменения передаются по одному постоянному соединению */
+    public boolean isSessionMode() {
+        return CONNECTION_SESSION.equals(connectionMode);
+    }
+
+    public int getSendWindow() {
+        return sendWindow;
+    }
+
+    public long getDeltaThreshold() {
+        return deltaThreshold;
+    }
+
+    public long getResumeThreshold() {
+        return resumeThreshold;
+    }
+
+    public int getReceiveThreads() {
+        return receiveThreads;
+    }
+
+    /** @return true если соединения обслуживаются одним потоком на {@link java.nio.channels.Selector} */
+    public boolean isSelectorServer() {
+        return SERVER_SELECTOR.equals(serverMode);
+    }
+
+    /** @return true если содержимое файлов сжимается при отправке по постоянному соединению */
+    public boolean isCompressionEnabled() {
+        return COMPRESSION_AUTO.equals(compression);
+    }
+
+    public int getSendConnections() {
+        return sendConnections;
+    }
+
+    public int getLargeFileConnections() {
+        return largeFileConnections;
+    }
+
+    public long getLargeFileLength() {
+        return largeFileLength;
+    }
+
+    public long getSendRate() {
+        return sendRate;
+    }
+
+    public long getReceiveRate() {
+        return receiveRate;
+    }
+
+    public long getConnectionSendRate() {
+        return connectionSendRate;
+    }
+
+    public long getConnectionReceiveRate() {
+        return connectionReceiveRate;
+    }
+
+    public String getRateSchedule() {
+        return rateSchedule;
+    }
+
+    public long getQuietPeriodMs() {
+        return quietPeriodMs;
+    }
+
+    public long getMaxHoldMs() {
+        return maxHoldMs;
+    }
+
+    public long getMetricsIntervalMs() {
+        return metricsIntervalMs;
+    }
+
+    /** @return файл снимка {@link SyncMetrics} в формате JSON, null если снимок записывается в журнал */
+    public File getMetricsFile() {
+        return metricsFile.isEmpty() ? null : new File(metricsFile);
+    }
+
+    /** @return политика сброса полученных файлов на диск: {@link FileCommitter#BATCHED}, {@link FileCommitter#PER_FILE}
+     * или {@link FileCommitter#NONE} */
+    public String getDurability() {
+        return durability;
+    }
+
+    /** @return дополнительные удаленные пользователи, пустой список если изменения отправляются одному */
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    public long getFanOutBuffer() {
+        return fanOutBuffer;
+    }
+
+    /**@param peers адреса через запятую в виде host:port
+     * @return адреса пользователей
+     */
+    private static List<InetSocketAddress> parsePeers(String peers) {
+        if (peers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            String address = peer.trim();
+            int separator = address.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Wrong peer " + address + ", expected host:port");
+            }
+            addresses.add(InetSocketAddress.createUnresolved(address.substring(0, separator),
+                    Integer.parseInt(address.substring(separator + 1))));
+        }
+        return Collections.unmodifiableList(addresses);
+    }
+}
@@ -23,7 +23,7 @@ public class SharedDirStarter {
             Scanner in = new Scanner(System.in);
             SharedDirService sharedDirService = new SharedDirService(config.getProperty("directoryPath"),
                     config.getProperty("ipAdress"),Integer.parseInt(config.getProperty("serverPort")),
-                    Integer.parseInt(config.getProperty("remoteserverPort")));
+                    Integer.parseInt(config.getProperty("remoteserverPort")), new SharedDirSettings(config));
             sharedDirService.start();
             //noinspection StatementWithEmptyBody
             while (!in.next().equals("q")){
@@ -1,45 +1,94 @@
 package com.pavel.shareddirectories;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
 
 public class SocketChangesSender implements ChangesSender {
     private static final Logger LOGGER = LoggerFactory.getLogger(SocketChangesSender.class);
+    /** путь до используемой директории, относительно него передаются имена файлов */
+    private final File sharedDirPath;
     /** ip адрес удаленного пользователя */
     private final String ipAddress;
     /** порт сервера удаленного пользователя */
     private final int remoteServerPort;
-    /** сокет для коммуникации с удаленным пользователем */
-    private volatile Socket socket;
+    /** минимальный размер измененного файла, начиная с которого передается только разница, 0 отключает */
+    private final long deltaThreshold;
+    /** минимальный размер файла, начиная с которого он передается частями с возможностью докачки, 0 отключает */
+    private final long resumeThreshold;
+    /** ограничение скорости передачи, для каждого соединения создаются свои ограничения */
+    private final TrafficShaper shaper;
+    /** счетчики сервиса, в них записывается время ожидания ответов сервера */
+    private final SyncMetrics metrics;
+    /** снимки содержимого, общие для отправителей всех удаленных пользователей */
+    private final ContentSnapshots snapshots;
+    /** канал для коммуникации с удаленным пользователем */
+    private volatile SocketChannel socket;
 
     public SocketChangesSender(String clientIp, int remoteServerPort) {
+        this(null, clientIp, remoteServerPort, 0, 0, new TrafficShaper(), new SyncMetrics());
+    }
+
+    /**
+     * @param sharedDirPath путь до используемой директории, null если передаются только файлы ее корня
+     * @param clientIp ip адрес удаленного пользователя
+     * @param remoteServerPort порт сервера удаленного пользователя
+     * @param deltaThreshold минимальный размер измененного файла, начиная с которого передается только разница с
+     *                       копией сервера, 0 отключает передачу разницы
+     * @param resumeThreshold минимальный размер файла, начиная с которого он передается частями с возможностью
+     *                        докачки, 0 отключает такую передачу
+     * @param shaper ограничение скорости передачи
+     * @param metrics счетчики сервиса
+     */
+    public SocketChangesSender(File sharedDirPath, String clientIp, int remoteServerPort, long deltaThreshold,
+                               long resumeThreshold, TrafficShaper shaper, SyncMetrics metrics) {
+        this(sharedDirPath, clientIp, remoteServerPort, deltaThreshold, resumeThreshold, shaper, metrics,
+                new ContentSnapshots(0));
+    }
+
+    /** @param snapshots снимки содержимого, из которых отправляются файлы, прочитанные для нескольких пользователей */
+    SocketChangesSender(File sharedDirPath, String clientIp, int remoteServerPort, long deltaThreshold,
+                        long resumeThreshold, TrafficShaper shaper, SyncMetrics metrics, ContentSnapshots snapshots) {
+        this.snapshots = snapshots;
+        this.sharedDirPath = sharedDirPath;
         this.ipAddress = clientIp;
         this.remoteServerPort = remoteServerPort;
+        this.deltaThreshold = deltaThreshold;
+        this.resumeThreshold = resumeThreshold;
+        this.shaper = shaper;
+        this.metrics = metrics;
     }
 
-    /**Отправляет файл и его содержимое на сервер через сокет
+    /**Отправляет файл и его содержимое на сервер через сокет. Содержимое файла открывается до отправки заголовка, поэтому
+     * отсутствующий файл не отправляется вовсе
      * @param file путь к отправляемому файлу
      * @param receiverInstruction сигнал для сервера с инструкциями (1 - новый файл, 2 модифицированный файл, 3 - удаленный файл)
+     * @param sent сведения об операции, в которые добавляется количество отправленных байт содержимого
      * @return true если файл был отправлен и получен подтверждающий это сигнал от сервера, false в остальных случаях
      */
-    private boolean send(File file, int receiverInstruction) {
-            try (Socket client = new Socket(ipAddress, remoteServerPort);
-                 DataOutputStream out = new DataOutputStream((new BufferedOutputStream(client.getOutputStream())));
-                 DataInputStream inwaiter = new DataInputStream((new BufferedInputStream(client.getInputStream())))) {
+    boolean send(File file, int receiverInstruction, TransferResult.Sent sent) {
+            try (FileChannel content = SharedDirService.carriesContent(receiverInstruction)
+                    ? openContent(file) : null;
+                 SocketChannel client = ChannelTransfer.connect(ipAddress, remoteServerPort, 0);
+                 DataOutputStream out = ChannelTransfer.output(client, shaper.sendThrottle());
+                 DataInputStream inwaiter = ChannelTransfer.timedInput(client, shaper.receiveThrottle())) {
                  socket = client;
-                 client.setSoTimeout(50000);
+                 client.socket().setSoTimeout(50000);
                  out.writeInt(receiverInstruction);
                  LOGGER.debug("client sent instruction to server: {}", receiverInstruction);
-                 out.writeUTF(file.getName());
+                 out.writeUTF(nameOf(file));
                  LOGGER.debug("client sent name to server {}", file.getName());
+                 if (content != null) {
+                     sent.add(sendFileContent(out, client, content));
+                 }
                  out.flush();
-                 sendFileContent(out, file);
                  LOGGER.debug("client finished send to server, starts to wait answer from server");
-                 boolean success = inwaiter.readInt() == SharedDirService.SUCCESS_SIGNAL;
+                 boolean success = readAnswer(inwaiter);
                  LOGGER.debug("client received {} answer from server ", success);
                  return success;
             } catch (FileNotFoundException e) {
@@ -54,19 +103,206 @@ public class SocketChangesSender implements ChangesSender {
     @Override
     public boolean sendNew(File fnew) {
         LOGGER.debug("client try to send new file");
-        return send(fnew, SharedDirService.NEW_FILE);
+        return sendChange(fnew, SharedDirService.NEW_FILE, new TransferResult.Sent());
     }
 
     @Override
     public boolean sendModify(File fmod) {
         LOGGER.debug("client try to send mod file");
-        return send(fmod, SharedDirService.MODIFY_FILE);
+        return sendChange(fmod, SharedDirService.MODIFY_FILE, new TransferResult.Sent());
+    }
+
+    /**Отправляет операцию над файлом или директорией, выбирая для измененного файла передачу разницы, а для большого
+     * файла - передачу частями
+     * @param file путь к отправляемому файлу
+     * @param receiverInstruction сигнал для сервера с инструкциями
+     * @param sent сведения об операции, в которые добавляется количество отправленных байт содержимого
+     * @return true если файл был отправлен и получен подтверждающий это сигнал от сервера, false в остальных случаях
+     */
+    boolean sendChange(File file, int receiverInstruction, TransferResult.Sent sent) {
+        if (receiverInstruction == SharedDirService.MODIFY_FILE && isDeltaCandidate(file)) {
+            return sendDelta(file, sent);
+        }
+        if (SharedDirService.carriesContent(receiverInstruction) && isResumeCandidate(file)) {
+            return sendResumable(file, receiverInstruction, sent);
+        }
+        return send(file, receiverInstruction, sent);
+    }
+
+    /** @return true если измененный файл достаточно велик, чтобы передавать только разницу */
+    boolean isDeltaCandidate(File fmod) {
+        return deltaThreshold > 0 && fmod.length() >= deltaThreshold;
+    }
+
+    /**Отправляет измененный файл в виде разницы с копией сервера: получает от сервера сигнатуры блоков его копии и
+     * передает только отличающиеся участки. Если сервер не поддерживает передачу разницы, отправляет файл целиком.
+     * @param file путь к измененному файлу
+     * @param sent сведения об операции, в которые добавляется количество отправленных байт разницы
+     * @return true если файл был отправлен и получен подтверждающий это сигнал от сервера, false в остальных случаях
+     */
+    boolean sendDelta(File file, TransferResult.Sent sent) {
+        try (SocketChannel client = ChannelTransfer.connect(ipAddress, remoteServerPort, 0);
+             DataOutputStream out = ChannelTransfer.output(client, shaper.sendThrottle());
+             DataInputStream inwaiter = ChannelTransfer.timedInput(client, shaper.receiveThrottle())) {
+            socket = client;
+            client.socket().setSoTimeout(50000);
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file.getPath());
+            }
+            long fileLength = file.length();
+            out.writeInt(SharedDirService.MODIFY_DELTA);
+            out.writeUTF(nameOf(file));
+            out.writeLong(fileLength);
+            out.flush();
+            LOGGER.debug("client sent delta request for {}", file.getName());
+            if (inwaiter.readInt() == SharedDirService.SUCCESS_SIGNAL) {
+                DeltaTransfer.Signatures signatures = DeltaTransfer.Signatures.read(inwaiter);
+                LOGGER.debug("client received {} block signatures", signatures.getCount());
+                sent.add(DeltaTransfer.writeDelta(file, fileLength, signatures, out));
+                out.flush();
+                boolean success = readAnswer(inwaiter);
+                LOGGER.debug("client received {} answer from server ", success);
+                return success;
+            }
+        } catch (FileNotFoundException e) {
+            LOGGER.warn("File {} does not exist", file.getName());
+            return false;
+        } catch (IOException e) {
+            LOGGER.warn("IO exception during file delta sending", e);
+            return false;
+        }
+        LOGGER.info("Remote server refused delta of {}, sending whole file", file.getName());
+        return send(file, SharedDirService.MODIFY_FILE, sent);
+    }
+
+    /** @return true если файл достаточно велик, чтобы передавать его частями с возможностью докачки */
+    boolean isResumeCandidate(File file) {
+        return resumeThreshold > 0 && file.length() >= resumeThreshold;
+    }
+
+    /**Отправляет файл частями с контрольными суммами ({@link ResumableTransfer}), начиная со смещения, которое сообщил
+     * сервер, поэтому после обрыва соединения передача продолжается с последней проверенной части. Если сервер не
+     * поддерживает такую передачу, отправляет файл целиком.
+     * @param file путь к отправляемому файлу
+     * @param receiverInstruction сигнал, с которым файл отправляется целиком, если сервер отказался от передачи частями
+     * @param sent сведения об операции, в которые добавляется количество отправленных байт частей
+     * @return true если файл был отправлен и получен подтверждающий это сигнал от сервера, false в остальных случаях
+     */
+    boolean sendResumable(File file, int receiverInstruction, TransferResult.Sent sent) {
+        try (FileChannel content = new FileInputStream(file).getChannel();
+             SocketChannel client = ChannelTransfer.connect(ipAddress, remoteServerPort, 0);
+             DataOutputStream out = ChannelTransfer.output(client, shaper.sendThrottle());
+             DataInputStream inwaiter = ChannelTransfer.timedInput(client, shaper.receiveThrottle())) {
+            socket = client;
+            client.socket().setSoTimeout(50000);
+            long fileLength = content.size();
+            out.writeInt(SharedDirService.RESUMABLE_FILE);
+            out.writeUTF(nameOf(file));
+            out.writeLong(fileLength);
+            out.writeLong(file.lastModified());
+            out.flush();
+            LOGGER.debug("client sent resumable request for {}", file.getName());
+            if (inwaiter.readInt() == SharedDirService.SUCCESS_SIGNAL) {
+                long offset = inwaiter.readLong();
+                if (offset > 0) {
+                    LOGGER.info("Resuming transfer of {} from {} of {} bytes", file.getName(), offset, fileLength);
+                }
+                sent.add(ResumableTransfer.sendChunks(out, content, offset, fileLength));
+                out.flush();
+                boolean success = readAnswer(inwaiter);
+                LOGGER.debug("client received {} answer from server ", success);
+                return success;
+            }
+        } catch (FileNotFoundException e) {
+            LOGGER.warn("File {} does not exist", file.getName());
+            return false;
+        } catch (IOException e) {
+            LOGGER.warn("IO exception during resumable file sending", e);
+            return false;
+        }
+        LOGGER.info("Remote server refused resumable transfer of {}, sending whole file", file.getName());
+        return send(file, receiverInstruction, sent);
     }
 
     @Override
     public boolean sendDelete(File fdel) {
         LOGGER.debug("client try to send del file");
-        return send(fdel, SharedDirService.DELETE_FILE);
+        return send(fdel, SharedDirService.DELETE_FILE, new TransferResult.Sent());
+    }
+
+    @Override
+    public boolean sendDirectory(File directory, int receiverInstruction) {
+        LOGGER.debug("client try to send directory {}", receiverInstruction);
+        return send(directory, receiverInstruction, new TransferResult.Sent());
+    }
+
+    /** @return путь файла относительно используемой директории, в котором он передается серверу */
+    String nameOf(File file) {
+        return RelativePaths.of(sharedDirPath, file);
+    }
+
+    @Override
+    public boolean sendCopy(File source, File target, byte[] hash, int receiverInstruction) {
+        LOGGER.debug("client try to send {} of {} as {}", receiverInstruction, source.getName(), target.getName());
+        try (SocketChannel client = ChannelTransfer.connect(ipAddress, remoteServerPort, 0);
+             DataOutputStream out = ChannelTransfer.output(client, shaper.sendThrottle());
+             DataInputStream inwaiter = ChannelTransfer.timedInput(client, shaper.receiveThrottle())) {
+            socket = client;
+            client.socket().setSoTimeout(50000);
+            out.writeInt(receiverInstruction);
+            writeCopy(out, source, target, hash);
+            out.flush();
+            boolean success = readAnswer(inwaiter);
+            LOGGER.debug("client received {} answer from server ", success);
+            return success;
+        } catch (IOException e) {
+            LOGGER.warn("IO exception during file copy sending", e);
+            return false;
+        }
+    }
+
+    /**Записывает тело операций {@link SharedDirService#RENAME} и {@link SharedDirService#COPY_FROM}: имя нового файла,
+     * имя файла с тем же содержимым, размер и MD5 содержимого
+     * @throws IOException if I/O errors occurred
+     */
+    void writeCopy(DataOutputStream out, File source, File target, byte[] hash) throws IOException {
+        out.writeUTF(nameOf(target));
+        out.writeUTF(nameOf(source));
+        out.writeLong(target.length());
+        out.writeByte(hash.length);
+        out.write(hash);
+    }
+
+    /** Сверка выполняется через отдельное соединение, найденные файлы добавляются только после ее успешного
+     * завершения */
+    @Override
+    public boolean reconcile(DirectoryIndex index, Set<File> filesToCreate, Set<File> filesToModify) {
+        LOGGER.debug("client try to reconcile directory");
+        try (SocketChannel client = ChannelTransfer.connect(ipAddress, remoteServerPort, 0);
+             DataOutputStream out = ChannelTransfer.output(client, shaper.sendThrottle());
+             DataInputStream inwaiter = ChannelTransfer.timedInput(client, shaper.receiveThrottle())) {
+            socket = client;
+            client.socket().setSoTimeout(50000);
+            out.writeInt(SharedDirService.RECONCILE);
+            out.writeInt(ReconcileTree.LEAF_COUNT);
+            out.flush();
+            if (inwaiter.readInt() != SharedDirService.SUCCESS_SIGNAL) {
+                LOGGER.info("Remote server refused reconciliation");
+                return true;
+            }
+            Set<File> created = new HashSet<>();
+            Set<File> modified = new HashSet<>();
+            ReconcileTree.request(inwaiter, out, index, created, modified);
+            if (inwaiter.readInt() != SharedDirService.SUCCESS_SIGNAL) {
+                return false;
+            }
+            filesToCreate.addAll(created);
+            filesToModify.addAll(modified);
+            return true;
+        } catch (IOException e) {
+            LOGGER.debug("IO exception during reconciliation", e);
+            return false;
+        }
     }
 
     @Override
@@ -76,18 +312,38 @@ public class SocketChangesSender implements ChangesSender {
         }
     }
 
-    /**читает содержимое указанного файла и отправляет его через output stream
+    /**Читает ответ сервера на полностью записанную операцию и записывает время его ожидания
+     * @param inwaiter поток ответов сервера
+     * @return true если сервер подтвердил операцию
+     * @throws IOException if I/O errors occurred
+     */
+    private boolean readAnswer(DataInputStream inwaiter) throws IOException {
+        long sentNanos = System.nanoTime();
+        boolean success = inwaiter.readInt() == SharedDirService.SUCCESS_SIGNAL;
+        metrics.recordAck(sentNanos);
+        return success;
+    }
+
+    /**Открывает содержимое отправляемого целиком файла: из снимка, если файл прочитан для нескольких пользователей,
+     * иначе с диска
+     * @throws FileNotFoundException если файл не существует и снимка нет
+     */
+    FileChannel openContent(File file) throws IOException {
+        return snapshots.open(file);
+    }
+
+    /**отправляет размер и содержимое открытого файла, большие файлы передаются напрямую из файла в сокет
      * @param out OutputStream через который отправляется файл
-     * @param file путь к файлу, котоырй необходимо отправить
+     * @param client канал соединения
+     * @param content канал файла, который необходимо отправить
+     * @return количество отправленных байт содержимого
      * @throws IOException if I/O errors occurred
      */
-    private void sendFileContent(DataOutputStream out, File file) throws IOException{
-        if (file.exists()) {
-            InputStream fileReader = new FileInputStream(file);
-            out.writeLong(file.length());
-            LOGGER.debug("client start send content of file to server");
-            IOUtils.copy(fileReader, out);
-            out.flush();
-        }
+    private long sendFileContent(DataOutputStream out, SocketChannel client, FileChannel content) throws IOException{
+        long fileLength = content.size();
+        out.writeLong(fileLength);
+        LOGGER.debug("client start send content of file to server");
+        ChannelTransfer.sendFile(out, client, content, fileLength);
+        return fileLength;
     }
 }
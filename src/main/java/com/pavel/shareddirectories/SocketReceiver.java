@@ -1,132 +1,940 @@
 package com.pavel.shareddirectories;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class SocketReceiver implements ChangesReceiver {
+public class SocketReceiver implements ChangesReceiver, AsyncChangesReceiver {
     private static final Logger LOGGER = LoggerFactory.getLogger(SocketReceiver.class);
+    /** размер MD5, который передается за содержимым файла в сессиях со сверкой контрольных сумм, в байтах */
+    private static final int CHECKSUM_LENGTH = 16;
+    /** причина неудачи переименования или копирования, если файла с переданным содержимым в директории нет */
+    private static final String NO_SOURCE = "no source file with same content";
     /** коллекция, в которой хранится подтвержденное состояние директории */
-    private final ConcurrentHashMap<File, Long> sharedDirIndex;
+    private final DirectoryIndex sharedDirIndex;
     /** путь до используемой директории */
     private final File sharedDirPath;
     /** путь до кеш-директории */
     private final File downloadDirPath;
+    /** объекты для синхронизации операций над одним файлом с монитором и другими соединениями */
+    private final PathLocks pathLocks;
+    /** счетчики сервиса, в них записывается время ожидания объектов синхронизации */
+    private final SyncMetrics metrics;
+    /** размещение полученных файлов с выбранной надежностью */
+    private final FileCommitter committer;
+    /** счетчик для уникальных имен временных файлов */
+    private final AtomicLong uploadCounter = new AtomicLong();
+    /** имена файлов в кеш-директории ({@link RelativePaths#flatten(String)}), которые в данный момент принимаются
+     * частями, второе соединение для них отклоняется */
+    private final Set<String> resumableTransfers = ConcurrentHashMap.newKeySet();
 
-    SocketReceiver( ConcurrentHashMap<File, Long> sharedDirIndex, File sharedDirPath, File downloadDirPath) {
+    SocketReceiver(DirectoryIndex sharedDirIndex, File sharedDirPath, File downloadDirPath, PathLocks pathLocks,
+                   SyncMetrics metrics) {
+        this(sharedDirIndex, sharedDirPath, downloadDirPath, pathLocks, metrics, new FileCommitter(FileCommitter.NONE));
+    }
+
+    SocketReceiver(DirectoryIndex sharedDirIndex, File sharedDirPath, File downloadDirPath, PathLocks pathLocks,
+                   SyncMetrics metrics, FileCommitter committer) {
         this.sharedDirIndex = sharedDirIndex;
+        this.metrics = metrics;
+        this.committer = committer;
         this.sharedDirPath = sharedDirPath;
         this.downloadDirPath= downloadDirPath;
+        this.pathLocks = pathLocks;
     }
 
     /**Получает необходимую информацию о создании/изменении/удалении файла и выполняет это действие, временно хранит
-     * в {@link SocketReceiver#downloadDirPath} скачиваемый файл.
+     * в {@link SocketReceiver#downloadDirPath} скачиваемый файл. Поток не закрывается и читается ровно до конца операции,
+     * так как по одному соединению может передаваться несколько операций. После выполнения действия обновляет
+     * {@link SocketReceiver#sharedDirIndex}, для полученного файла вместе с контрольной суммой его содержимого. Операции
+     * над одним файлом выполняются по очереди, над разными - параллельно. Содержимое записывается во временный файл без
+     * объекта синхронизации, он берется только на время замены файла и обновления индекса.
      * @param in input stream
      * @param onlyDeleteFile флаг, если true, то запускает инструкции удаления файла, иначе инструкции создания/изменения
-     * @return File если файл успешно получен/изменён/удалён, null в иных случаях
+     * @param encoded флаг, если true, то содержимое файла передано в формате {@link ContentCodec}
+     * @param checksummed флаг, если true, то за содержимым передан MD5, с которым сверяется полученное содержимое
+     * @return результат получения/изменения/удаления файла
      */
-    private File receive(InputStream in, boolean onlyDeleteFile) {
-        File temporaryFile= null;
-        try (DataInputStream ins = new DataInputStream(new BufferedInputStream(in))){
-            File file = new File(sharedDirPath,ins.readUTF());
-            LOGGER.debug("received file {}", file.getName());
+    private ReceiveResult receive(InputStream in, boolean onlyDeleteFile, boolean encoded, boolean checksummed) {
+        DataInputStream ins = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        File file;
+        try {
+            file = resolveReceived(ins.readUTF());
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return ReceiveResult.failed(null, e);
+        }
+        if (onlyDeleteFile) {
+            if (file == null) {
+                return ReceiveResult.failed(null, ReceiveResult.REFUSED_NAME);
+            }
+            long waitStart = System.nanoTime();
+            synchronized (pathLocks.lockFor(file)) {
+                metrics.recordLockWait(waitStart);
+                return deleteLocked(file);
+            }
+        }
+        File temporaryFile = null;
+        try {
+            long fileLength = ins.readLong();
+            boolean chunked = encoded && ContentCodec.readEncoding(ins);
+            if (file == null) {
+                skipContent(ins, fileLength, chunked, checksummed);
+                return ReceiveResult.failed(null, ReceiveResult.REFUSED_NAME);
+            }
             if (file.isDirectory()) {
                 LOGGER.warn("Names conflict (Directory with same name already exists)");
-                return null;
+                skipContent(ins, fileLength, chunked, checksummed);
+                return ReceiveResult.failed(file, ReceiveResult.DIRECTORY_EXISTS);
             }
-            if (onlyDeleteFile){//if received delete file signal
-                if (file.exists() && !file.delete()){
-                    throw new IOException("Cannot delete file");
-                }
-            }else {//if received create or modify file signal
-                LOGGER.debug("entered create/modify block");
-                temporaryFile = new File(downloadDirPath, file.getName());
-                if (!temporaryFile.createNewFile()) {//never happened in usual situation
-                    LOGGER.warn("Temporary file was not delete early");
-                    temporaryFile.delete();
-                    if (!temporaryFile.createNewFile()) {
-                    throw new IOException("Temporary file with same name already exists");
-                    }
-                }
-                LOGGER.debug("created file{}", temporaryFile.getName());
-                fillTemporaryFile(ins, temporaryFile);
-                LOGGER.debug("temporaryFile {} downloaded", temporaryFile.getName());
-                if (file.exists() && !file.delete()) {
-                    throw new IOException("Cannot delete existing file");
-                }
-                if(!temporaryFile.renameTo(file)){
-                    throw new IOException("Cannot replace existing file with received one");
-                }
+            try {
+                temporaryFile = createTemporaryFile(file);
+            } catch (IOException e) {
+                skipContent(ins, fileLength, chunked, checksummed);
+                throw e;
             }
-            return file;
-        } catch (IOException e){
+            byte[] hash = fillTemporaryFile(ins, temporaryFile, fileLength, chunked, checksummed);
+            LOGGER.debug("temporaryFile {} downloaded", temporaryFile.getName());
+            FileCommitter.Placement placement = placement(temporaryFile, file, hash);
+            committer.place(Collections.singletonList(placement));
+            if (!placement.isPlaced()) {
+                deleteTemporaryFile(temporaryFile);
+                return ReceiveResult.failed(file, placement.getFailure());
+            }
+            return ReceiveResult.received(file);
+        } catch (ChecksumMismatchException e) {
+            LOGGER.warn("File {} was corrupted in transfer", file.getName());
+            deleteTemporaryFile(temporaryFile);
+            return ReceiveResult.failed(file, e);
+        } catch (IOException e) {
             LOGGER.debug("receiver IO exception", e);
-            if (temporaryFile!=null) {
-                if (!temporaryFile.delete() && temporaryFile.exists()) {
-                LOGGER.error("Temporary file {} delete issue", temporaryFile.getName());
+            deleteTemporaryFile(temporaryFile);
+            return ReceiveResult.failed(file, e);
+        }
+    }
+
+    /**Создает размещение полученного файла: временный файл заменяет файл, и индекс обновляется под объектом
+     * синхронизации файла
+     * @param temporaryFile временный файл с полученным содержимым
+     * @param file путь, по которому размещается файл
+     * @param hash MD5 полученного содержимого
+     * @return размещение для {@link FileCommitter#place(List)}
+     */
+    private FileCommitter.Placement placement(File temporaryFile, File file, byte[] hash) {
+        return new FileCommitter.Placement(temporaryFile, file.getParentFile(), () -> {
+            long waitStart = System.nanoTime();
+            synchronized (pathLocks.lockFor(file)) {
+                metrics.recordLockWait(waitStart);
+                if (file.isDirectory()) {
+                    throw new IOException("Names conflict (Directory with same name already exists)");
                 }
+                replaceFile(temporaryFile, file);
+                putReceived(file, hash);
             }
+        });
+    }
+
+    /**Преобразует полученное имя в путь внутри директории. Отклоненное имя записывается в журнал, а содержимое
+     * операции пропускается вызывающим методом, чтобы не нарушить разбиение потока на операции.
+     * @param name путь относительно директории, полученный от удаленного пользователя
+     * @return путь к файлу, null если имя отклонено {@link RelativePaths#resolve(File, String)}
+     */
+    private File resolveReceived(String name) {
+        try {
+            File file = RelativePaths.resolve(sharedDirPath, name);
+            LOGGER.debug("received file {}", file.getName());
+            return file;
+        } catch (IOException e) {
+            LOGGER.warn("Refused file {}: {}", name, e.getMessage());
             return null;
         }
     }
 
+    /**записывает в индекс файл, полученный от удаленного пользователя, вызывается под объектом синхронизации файла
+     * @param file полученный файл
+     * @param hash MD5 его содержимого
+     */
+    private void putReceived(File file, byte[] hash) {
+        sharedDirIndex.put(file, file.length(), file.lastModified(), hash);
+    }
+
     /**
      * try to create new file and put in
      * @param in input stream with needful data
-     * @return file path if receive operation ends correctly, null otherwise
+     * @return result of receive operation with the failure reason if it did not end correctly
      */
     @Override
-    public File receiveToCreate(InputStream in){
+    public ReceiveResult receiveToCreate(InputStream in){
         LOGGER.debug("try to receive new file");
-        File file = receive(in,false);
-        if (file!=null){
+        ReceiveResult result = receive(in,false,false,false);
+        if (result.isSuccess()){
             LOGGER.debug("new file received");
-            sharedDirIndex.put(file,file.lastModified());
         }
         else
-            LOGGER.debug("file receive failed");
-        return file;
+            LOGGER.debug("file receive failed: {}", result.getFailure());
+        return result;
     }
     @Override
-    public File receiveToMod(InputStream in){
+    public ReceiveResult receiveToMod(InputStream in){
         LOGGER.debug("try to receive modify file");
-        File file = receive(in,false);
-        if (file!=null){
+        ReceiveResult result = receive(in,false,false,false);
+        if (result.isSuccess()){
             LOGGER.debug("modify file received");
-            sharedDirIndex.put(file,file.lastModified());
         } else {
-            LOGGER.debug("file receive failed");
+            LOGGER.debug("file receive failed: {}", result.getFailure());
         }
-        return file;
+        return result;
     }
     @Override
-    public File receiveToDel(InputStream in){
+    public ReceiveResult receiveToDel(InputStream in){
         LOGGER.debug("try to receive del file");
-        File file = receive(in,true);
-        if (file!=null) {
+        ReceiveResult result = receive(in,true,false,false);
+        if (result.isSuccess()) {
             LOGGER.debug("file deleted");
-            sharedDirIndex.remove(file);
         }
         else
+            LOGGER.debug("file receive failed: {}", result.getFailure());
+        return result;
+    }
+
+    @Override
+    public ReceiveResult receiveInSession(InputStream in, boolean encoded, boolean checksummed) {
+        LOGGER.debug("try to receive session file");
+        ReceiveResult result = receive(in, false, encoded, checksummed);
+        if (result.isSuccess()) {
+            LOGGER.debug("session file received");
+        } else {
+            LOGGER.debug("file receive failed: {}", result.getFailure());
+        }
+        return result;
+    }
+
+    /** Полученные файлы кадра размещаются одной группой {@link FileCommitter#place(List)}, затем остальные операции
+     * применяются по порядку под объектами синхронизации всех их файлов, взятыми один раз. Индекс обновляется по
+     * результату каждой операции */
+    @Override
+    public ReceiveResult[] receiveBatch(InputStream in, boolean encoded, boolean checksummed) {
+        DataInputStream ins = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        List<BatchEntry> entries = new ArrayList<>();
+        try {
+            int count = ins.readInt();
+            LOGGER.debug("try to receive batch of {} files", count);
+            for (int i = 0; i < count; i++) {
+                BatchEntry entry = new BatchEntry(ins.readInt(), resolveReceived(ins.readUTF()));
+                entries.add(entry);
+                if (entry.instruction == SharedDirService.DELETE_FILE
+                        || entry.instruction == SharedDirService.CREATE_DIRECTORY
+                        || entry.instruction == SharedDirService.DELETE_DIRECTORY) {
+                    continue;
+                }
+                if (entry.instruction != SharedDirService.NEW_FILE
+                        && entry.instruction != SharedDirService.MODIFY_FILE) {
+                    throw new IOException("Unknown instruction " + entry.instruction + " in batch");
+                }
+                long fileLength = ins.readLong();
+                boolean chunked = encoded && ContentCodec.readEncoding(ins);
+                if (entry.file == null) {
+                    skipContent(ins, fileLength, chunked, checksummed);
+                    continue;
+                }
+                if (entry.file.isDirectory()) {
+                    LOGGER.warn("Names conflict (Directory with same name already exists)");
+                    skipContent(ins, fileLength, chunked, checksummed);
+                    entry.result = ReceiveResult.failed(entry.file, ReceiveResult.DIRECTORY_EXISTS);
+                    continue;
+                }
+                entry.temporaryFile = new File(downloadDirPath,
+                        entry.file.getName() + "." + uploadCounter.incrementAndGet());
+                try {
+                    entry.hash = fillTemporaryFile(ins, entry.temporaryFile, fileLength, chunked, checksummed);
+                } catch (ChecksumMismatchException e) {
+                    LOGGER.warn("File {} was corrupted in transfer", entry.file.getName());
+                    deleteTemporaryFile(entry.temporaryFile);
+                    entry.temporaryFile = null;
+                    entry.result = ReceiveResult.failed(entry.file, e);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            for (BatchEntry entry : entries) {
+                deleteTemporaryFile(entry.temporaryFile);
+            }
+            return null;
+        }
+        List<FileCommitter.Placement> placements = new ArrayList<>();
+        List<File> files = new ArrayList<>(entries.size());
+        for (BatchEntry entry : entries) {
+            if (entry.temporaryFile != null) {
+                entry.placement = placement(entry.temporaryFile, entry.file, entry.hash);
+                placements.add(entry.placement);
+            } else if (entry.file != null && entry.result == null) {
+                files.add(entry.file);
+            }
+        }
+        committer.place(placements);
+        long waitStart = System.nanoTime();
+        ReceiveResult[] results = pathLocks.withLocks(files, () -> {
+            metrics.recordLockWait(waitStart);
+            ReceiveResult[] applied = new ReceiveResult[entries.size()];
+            for (int i = 0; i < applied.length; i++) {
+                applied[i] = applyBatchEntry(entries.get(i));
+            }
+            LOGGER.debug("batch of {} files received", applied.length);
+            return applied;
+        });
+        return results;
+    }
+
+    /**Применяет одну операцию кадра {@link SharedDirService#BATCH}, вызывается под объектом синхронизации файла.
+     * Полученный файл к этому моменту уже размещен, учитывается только результат размещения.
+     * @param entry операция с уже полученным содержимым
+     * @return результат операции
+     */
+    private ReceiveResult applyBatchEntry(BatchEntry entry) {
+        if (entry.placement != null) {
+            if (!entry.placement.isPlaced()) {
+                deleteTemporaryFile(entry.temporaryFile);
+                return ReceiveResult.failed(entry.file, entry.placement.getFailure());
+            }
+            return ReceiveResult.received(entry.file);
+        }
+        if (entry.file == null) {
+            return ReceiveResult.failed(null, ReceiveResult.REFUSED_NAME);
+        }
+        if (entry.result != null) {
+            return entry.result;
+        }
+        if (entry.instruction == SharedDirService.DELETE_FILE) {
+            return deleteLocked(entry.file);
+        }
+        if (entry.instruction == SharedDirService.CREATE_DIRECTORY) {
+            return createDirectoryLocked(entry.file);
+        }
+        if (entry.instruction == SharedDirService.DELETE_DIRECTORY) {
+            return deleteDirectoryLocked(entry.file);
+        }
+        return ReceiveResult.failed(entry.file, "unknown instruction " + entry.instruction);
+    }
+
+    private static void deleteTemporaryFile(File temporaryFile) {
+        if (temporaryFile != null && !temporaryFile.delete() && temporaryFile.exists()) {
+            LOGGER.error("Temporary file {} delete issue", temporaryFile.getName());
+        }
+    }
+
+    @Override
+    public ReceiveResult receiveToModDelta(InputStream in, OutputStream out) {
+        LOGGER.debug("try to receive modify file delta");
+        DataInputStream ins = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        DataOutputStream outs = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+        File file;
+        long fileLength;
+        try {
+            file = RelativePaths.resolve(sharedDirPath, ins.readUTF());
+            fileLength = ins.readLong();
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return ReceiveResult.failed(null, e);
+        }
+        LOGGER.debug("received file {}", file.getName());
+        ReceiveResult result;
+        long waitStart = System.nanoTime();
+        synchronized (pathLocks.lockFor(file)) {
+            metrics.recordLockWait(waitStart);
+            result = receiveDelta(ins, outs, file, fileLength);
+        }
+        if (result.isSuccess()) {
+            committer.commitDirectory(file.getParentFile());
+        }
+        return result;
+    }
+
+    /**Обменивается с отправителем сигнатурами и разницей и собирает новую версию файла, вызывается под объектом
+     * синхронизации этого файла
+     * @param ins поток, из которого читается разница
+     * @param outs поток для ответов отправителю
+     * @param file путь к файлу
+     * @param fileLength размер новой версии, объявленный отправителем
+     * @return результат изменения файла
+     */
+    private ReceiveResult receiveDelta(DataInputStream ins, DataOutputStream outs, File file, long fileLength) {
+        File temporaryFile = null;
+        try {
+            if (file.isDirectory()) {
+                LOGGER.warn("Names conflict (Directory with same name already exists)");
+                outs.writeInt(SharedDirService.BAD_SIGNAL);
+                outs.flush();
+                return ReceiveResult.failed(file, ReceiveResult.DIRECTORY_EXISTS);
+            }
+            DeltaTransfer.Signatures signatures = DeltaTransfer.computeSignatures(file);
+            outs.writeInt(SharedDirService.SUCCESS_SIGNAL);
+            signatures.write(outs);
+            outs.flush();
+            LOGGER.debug("sent {} block signatures", signatures.getCount());
+            temporaryFile = createTemporaryFile(file);
+            byte[] hash = DeltaTransfer.applyDelta(ins, file, signatures, temporaryFile, fileLength);
+            LOGGER.debug("temporaryFile {} rebuilt from delta", temporaryFile.getName());
+            committer.syncContent(temporaryFile);
+            replaceFile(temporaryFile, file);
+            LOGGER.debug("modify file received");
+            putReceived(file, hash);
+            return ReceiveResult.received(file);
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            if (temporaryFile != null && !temporaryFile.delete() && temporaryFile.exists()) {
+                LOGGER.error("Temporary file {} delete issue", temporaryFile.getName());
+            }
             LOGGER.debug("file receive failed");
-        return file;
+            return ReceiveResult.failed(file, e);
+        }
+    }
+
+    /** Части записываются без объекта синхронизации файла, он берется только на время замены файла и обновления
+     * индекса. Частично полученный файл не удаляется при ошибке, чтобы следующая передача продолжилась с него. */
+    @Override
+    public ReceiveResult receiveResumable(InputStream in, OutputStream out) {
+        LOGGER.debug("try to receive resumable file");
+        DataInputStream ins = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        DataOutputStream outs = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+        File file;
+        long fileLength;
+        long sourceModified;
+        try {
+            file = RelativePaths.resolve(sharedDirPath, ins.readUTF());
+            fileLength = ins.readLong();
+            sourceModified = ins.readLong();
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return ReceiveResult.failed(null, e);
+        }
+        LOGGER.debug("received file {}", file.getName());
+        String name = RelativePaths.flatten(RelativePaths.of(sharedDirPath, file));
+        try {
+            if (file.isDirectory() || !resumableTransfers.add(name)) {
+                LOGGER.warn("Cannot receive {}: directory with same name exists or transfer is in progress", name);
+                outs.writeInt(SharedDirService.BAD_SIGNAL);
+                outs.flush();
+                return ReceiveResult.failed(file, file.isDirectory() ? ReceiveResult.DIRECTORY_EXISTS
+                        : "transfer is in progress");
+            }
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return ReceiveResult.failed(file, e);
+        }
+        try {
+            long offset = ResumableTransfer.resumeOffset(downloadDirPath, name, fileLength, sourceModified);
+            if (offset > 0) {
+                LOGGER.info("Resuming transfer of {} from {} of {} bytes", name, offset, fileLength);
+            }
+            outs.writeInt(SharedDirService.SUCCESS_SIGNAL);
+            outs.writeLong(offset);
+            outs.flush();
+            File partial = ResumableTransfer.receiveChunks(ins, downloadDirPath, name, fileLength, sourceModified,
+                    offset);
+            byte[] hash = DirectoryIndex.computeHash(partial);
+            FileCommitter.Placement placement = placement(partial, file, hash);
+            committer.place(Collections.singletonList(placement));
+            if (!placement.isPlaced()) {
+                throw new IOException("Resumed file was not placed", placement.getFailure());
+            }
+            ResumableTransfer.discard(downloadDirPath, name);
+            LOGGER.debug("resumable file received");
+            return ReceiveResult.received(file);
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            LOGGER.debug("file receive failed");
+            return ReceiveResult.failed(file, e);
+        } finally {
+            resumableTransfers.remove(name);
+        }
+    }
+
+    @Override
+    public ReceiveResult receiveCopy(InputStream in, boolean move) {
+        LOGGER.debug("try to receive {} file", move ? "renamed" : "copied");
+        DataInputStream ins = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        File file;
+        File source;
+        long fileLength;
+        byte[] hash;
+        try {
+            file = RelativePaths.resolve(sharedDirPath, ins.readUTF());
+            source = RelativePaths.resolve(sharedDirPath, ins.readUTF());
+            fileLength = ins.readLong();
+            hash = new byte[ins.readUnsignedByte()];
+            ins.readFully(hash);
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return ReceiveResult.failed(null, e);
+        }
+        LOGGER.debug("received file {} from {}", file.getName(), source.getName());
+        if (file.isDirectory()) {
+            LOGGER.warn("Names conflict (Directory with same name already exists)");
+            return ReceiveResult.failed(file, ReceiveResult.DIRECTORY_EXISTS);
+        }
+        ReceiveResult received = move ? renameFrom(source, file, fileLength, hash)
+                : copyFrom(source, file, fileLength, hash);
+        if (received.isSuccess()) {
+            if (move) {
+                committer.commitDirectories(new HashSet<>(Arrays.asList(source.getParentFile(),
+                        file.getParentFile())));
+            }
+            LOGGER.debug("file {} received from {}", file.getName(), source.getName());
+        } else {
+            LOGGER.debug("file {} cannot be received from {}: {}", file.getName(), source.getName(),
+                    received.getFailure());
+        }
+        return received;
+    }
+
+    /**Переименовывает файл с тем же содержимым под объектами синхронизации обоих файлов
+     * @param source файл, который переименовывается
+     * @param file новый путь файла
+     * @param fileLength размер содержимого
+     * @param hash MD5 содержимого
+     * @return результат переименования
+     */
+    private ReceiveResult renameFrom(File source, File file, long fileLength, byte[] hash) {
+        long waitStart = System.nanoTime();
+        return pathLocks.withLocks(Arrays.asList(source, file), () -> {
+            metrics.recordLockWait(waitStart);
+            try {
+                if (!hasContent(source, fileLength, hash)) {
+                    return ReceiveResult.failed(file, NO_SOURCE);
+                }
+                replaceFile(source, file);
+                sharedDirIndex.remove(source);
+                putReceived(file, hash);
+                return ReceiveResult.received(file);
+            } catch (IOException e) {
+                LOGGER.debug("receiver IO exception", e);
+                return ReceiveResult.failed(file, e);
+            }
+        });
+    }
+
+    /**@return true если файл существует и совпадает по содержимому с указанным. Контрольная сумма берется из индекса,
+     * если файл не изменялся после записи в индекс, иначе вычисляется заново */
+    private boolean hasContent(File source, long fileLength, byte[] hash) throws IOException {
+        if (!source.isFile() || source.length() != fileLength) {
+            return false;
+        }
+        DirectoryIndex.Entry indexed = sharedDirIndex.get(source);
+        byte[] sourceHash = indexed != null && indexed.getHash() != null && indexed.matches(source)
+                ? indexed.getHash() : DirectoryIndex.computeHash(source);
+        return Arrays.equals(sourceHash, hash);
+    }
+
+    /**Копирует файл с тем же содержимым во временный файл, сверяя контрольную сумму копии, и затем заменяет им файл.
+     * Копирование выполняется без объектов синхронизации, так как содержимое копии проверяется целиком.
+     * @param source файл, который копируется
+     * @param file путь к новому файлу
+     * @param fileLength размер содержимого
+     * @param hash MD5 содержимого
+     * @return результат копирования
+     */
+    private ReceiveResult copyFrom(File source, File file, long fileLength, byte[] hash) {
+        File temporaryFile = new File(downloadDirPath, file.getName() + "." + uploadCounter.incrementAndGet());
+        try {
+            if (!source.isFile() || source.length() != fileLength) {
+                return ReceiveResult.failed(file, NO_SOURCE);
+            }
+            MessageDigest digest = DeltaTransfer.md5();
+            long copied;
+            try (InputStream in = new FileInputStream(source);
+                 OutputStream out = new DigestOutputStream(new FileOutputStream(temporaryFile), digest)) {
+                copied = IOUtils.copyLarge(in, out);
+            }
+            if (copied != fileLength || !Arrays.equals(digest.digest(), hash)) {
+                deleteTemporaryFile(temporaryFile);
+                return ReceiveResult.failed(file, NO_SOURCE);
+            }
+            FileCommitter.Placement placement = placement(temporaryFile, file, hash);
+            committer.place(Collections.singletonList(placement));
+            if (!placement.isPlaced()) {
+                deleteTemporaryFile(temporaryFile);
+                return ReceiveResult.failed(file, placement.getFailure());
+            }
+            return ReceiveResult.received(file);
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            deleteTemporaryFile(temporaryFile);
+            return ReceiveResult.failed(file, e);
+        }
+    }
+
+    @Override
+    public boolean answerReconcile(InputStream in, OutputStream out) {
+        LOGGER.debug("try to answer reconciliation");
+        DataInputStream ins = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        DataOutputStream outs = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+        try {
+            if (ins.readInt() != ReconcileTree.LEAF_COUNT) {
+                LOGGER.warn("Cannot reconcile with remote directory: different tree format");
+                outs.writeInt(SharedDirService.BAD_SIGNAL);
+                outs.flush();
+                return false;
+            }
+            int completed = sharedDirIndex.completeHashes();
+            if (completed > 0) {
+                LOGGER.debug("computed hashes of {} files before reconciliation", completed);
+            }
+            outs.writeInt(SharedDirService.SUCCESS_SIGNAL);
+            outs.flush();
+            ReconcileTree.answer(ins, outs, sharedDirIndex);
+            return true;
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return false;
+        }
+    }
+
+    /** Временный файл получает уникальное имя, так как содержимое записывается без объекта синхронизации файла, который
+     * берется только на время замены файла и обновления индекса */
+    @Override
+    public Upload startFile(String name, long length) throws IOException {
+        File file = RelativePaths.resolve(sharedDirPath, name);
+        LOGGER.debug("received file {}", file.getName());
+        if (file.isDirectory()) {
+            LOGGER.warn("Names conflict (Directory with same name already exists)");
+            return null;
+        }
+        File temporaryFile = new File(downloadDirPath, file.getName() + "." + uploadCounter.incrementAndGet());
+        return new Upload(file, temporaryFile, FileCommitter.openTemporary(temporaryFile, length), DeltaTransfer.md5());
+    }
+
+    @Override
+    public void writeContent(Upload upload, ByteBuffer content) throws IOException {
+        upload.digest.update(content.duplicate());
+        while (content.hasRemaining()) {
+            upload.channel.write(content);
+        }
+    }
+
+    @Override
+    public ReceiveResult finishFile(Upload upload, byte[] expectedHash) {
+        try {
+            byte[] hash = upload.digest.digest();
+            if (expectedHash != null && !MessageDigest.isEqual(expectedHash, hash)) {
+                LOGGER.warn("File {} was corrupted in transfer", upload.file.getName());
+                abortFile(upload);
+                return ReceiveResult.failed(upload.file, new ChecksumMismatchException());
+            }
+            upload.channel.close();
+            FileCommitter.Placement placement = placement(upload.temporaryFile, upload.file, hash);
+            committer.place(Collections.singletonList(placement));
+            if (!placement.isPlaced()) {
+                abortFile(upload);
+                return ReceiveResult.failed(upload.file, placement.getFailure());
+            }
+            LOGGER.debug("file {} received", upload.file.getName());
+            return ReceiveResult.received(upload.file);
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            abortFile(upload);
+            return ReceiveResult.failed(upload.file, e);
+        }
+    }
+
+    @Override
+    public void abortFile(Upload upload) {
+        try {
+            upload.channel.close();
+        } catch (IOException e) {
+            LOGGER.info("Exception occurred during temporary file closing", e);
+        }
+        if (!upload.temporaryFile.delete() && upload.temporaryFile.exists()) {
+            LOGGER.error("Temporary file {} delete issue", upload.temporaryFile.getName());
+        }
+    }
+
+    @Override
+    public ReceiveResult deleteFile(String name) {
+        File file;
+        try {
+            file = RelativePaths.resolve(sharedDirPath, name);
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return ReceiveResult.failed(null, e);
+        }
+        LOGGER.debug("received file {}", file.getName());
+        long waitStart = System.nanoTime();
+        synchronized (pathLocks.lockFor(file)) {
+            metrics.recordLockWait(waitStart);
+            return deleteLocked(file);
+        }
+    }
+
+    @Override
+    public ReceiveResult changeDirectory(String name, boolean create) {
+        File directory;
+        try {
+            directory = RelativePaths.resolve(sharedDirPath, name);
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return ReceiveResult.failed(null, e);
+        }
+        LOGGER.debug("received directory {}", directory.getName());
+        long waitStart = System.nanoTime();
+        synchronized (pathLocks.lockFor(directory)) {
+            metrics.recordLockWait(waitStart);
+            return create ? createDirectoryLocked(directory) : deleteDirectoryLocked(directory);
+        }
+    }
+
+    @Override
+    public ReceiveResult receiveDirectory(InputStream in, boolean create) {
+        LOGGER.debug("try to {} directory", create ? "create" : "delete");
+        DataInputStream ins = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        try {
+            return changeDirectory(ins.readUTF(), create);
+        } catch (IOException e) {
+            LOGGER.debug("receiver IO exception", e);
+            return ReceiveResult.failed(null, e);
+        }
+    }
+
+    /**создает директорию, вызывается под объектом синхронизации этой директории
+     * @param directory путь к директории
+     * @return результат, успешный если директория создана или уже существовала
+     */
+    private ReceiveResult createDirectoryLocked(File directory) {
+        if (directory.exists() && !directory.isDirectory()) {
+            LOGGER.warn("Names conflict (File with same name already exists)");
+            return ReceiveResult.failed(directory, ReceiveResult.FILE_EXISTS);
+        }
+        if (!createDirectories(directory)) {
+            LOGGER.debug("Cannot create directory {}", directory.getName());
+            return ReceiveResult.failed(directory, "cannot create directory");
+        }
+        sharedDirIndex.put(directory, DirectoryIndex.DIRECTORY_LENGTH, 0, null);
+        LOGGER.debug("directory created");
+        return ReceiveResult.received(directory);
+    }
+
+    /**удаляет директорию вместе с пустыми вложенными директориями, вызывается под объектом синхронизации этой
+     * директории. Директория, в которой остались файлы, не удаляется: это файлы, которые удаленный пользователь еще не
+     * получил или удаление которых еще не пришло.
+     * @param directory путь к директории
+     * @return результат, успешный если директория удалена или отсутствовала
+     */
+    private ReceiveResult deleteDirectoryLocked(File directory) {
+        if (directory.exists()) {
+            if (!directory.isDirectory()) {
+                LOGGER.warn("Names conflict (File with same name already exists)");
+                return ReceiveResult.failed(directory, ReceiveResult.FILE_EXISTS);
+            }
+            if (containsFiles(directory)) {
+                LOGGER.debug("Directory {} is not empty", directory.getName());
+                return ReceiveResult.failed(directory, "directory is not empty");
+            }
+            try {
+                FileUtils.deleteDirectory(directory);
+            } catch (IOException e) {
+                LOGGER.debug("Cannot delete directory {}", directory.getName(), e);
+                return ReceiveResult.failed(directory, e);
+            }
+        }
+        sharedDirIndex.removeTree(directory);
+        LOGGER.debug("directory deleted");
+        return ReceiveResult.received(directory);
+    }
+
+    /** @return true если в директории на любой глубине есть что-то кроме директорий */
+    private static boolean containsFiles(File directory) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return true;
+        }
+        for (File child : children) {
+            if (!child.isDirectory() || Files.isSymbolicLink(child.toPath()) || containsFiles(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**создает директорию вместе с отсутствующими родительскими директориями и записывает созданные директории в
+     * индекс, чтобы монитор не принял их за локальные изменения
+     * @param directory путь к директории
+     * @return true если директория существует
+     */
+    private boolean createDirectories(File directory) {
+        List<File> missing = new ArrayList<>();
+        for (File parent = directory; parent != null && !parent.exists();
+             parent = parent.getParentFile()) {
+            missing.add(parent);
+        }
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            return false;
+        }
+        for (File created : missing) {
+            sharedDirIndex.put(created, DirectoryIndex.DIRECTORY_LENGTH, 0, null);
+        }
+        return true;
+    }
+
+    /**удаляет файл, вызывается под объектом синхронизации этого файла
+     * @param file путь к файлу
+     * @return результат, успешный если файл удален или отсутствовал
+     */
+    private ReceiveResult deleteLocked(File file) {
+        if (file.isDirectory()) {
+            LOGGER.warn("Names conflict (Directory with same name already exists)");
+            return ReceiveResult.failed(file, ReceiveResult.DIRECTORY_EXISTS);
+        }
+        if (file.exists() && !file.delete()) {
+            LOGGER.debug("Cannot delete file {}", file.getName());
+            return ReceiveResult.failed(file, "cannot delete file");
+        }
+        sharedDirIndex.remove(file);
+        LOGGER.debug("file deleted");
+        return ReceiveResult.received(file);
+    }
+
+    /**создает пустой временный файл в {@link SocketReceiver#downloadDirPath} для получаемого файла
+     * @param file путь, по которому будет размещен полученный файл
+     * @return временный файл
+     * @throws IOException если временный файл не удалось создать
+     */
+    private File createTemporaryFile(File file) throws IOException {
+        File temporaryFile = new File(downloadDirPath, file.getName() + "." + uploadCounter.incrementAndGet());
+        if (!temporaryFile.createNewFile()) {//never happened in usual situation
+            LOGGER.warn("Temporary file was not delete early");
+            temporaryFile.delete();
+            if (!temporaryFile.createNewFile()) {
+                throw new IOException("Temporary file with same name already exists");
+            }
+        }
+        LOGGER.debug("created file{}", temporaryFile.getName());
+        return temporaryFile;
+    }
+
+    /**заменяет файл полученным временным файлом
+     * @param temporaryFile полностью полученный временный файл
+     * @param file путь, по которому размещается полученный файл
+     * @throws IOException если файл не удалось заменить
+     */
+    private void replaceFile(File temporaryFile, File file) throws IOException {
+        if (!createDirectories(file.getParentFile())) {
+            throw new IOException("Cannot create parent directory");
+        }
+        FileCommitter.move(temporaryFile, file);
+    }
+
+    /**пропускает содержимое файла, которое не может быть записано
+     * @param ins input stream, из которого читается содержимое
+     * @param fileLength размер файла, указанный отправителем
+     * @param chunked флаг, если true, то содержимое передано частями {@link ContentCodec}
+     * @param checksummed флаг, если true, то за содержимым передан его MD5
+     * @throws IOException если соединение было прервано
+     */
+    private static void skipContent(DataInputStream ins, long fileLength, boolean chunked, boolean checksummed)
+            throws IOException {
+        if (chunked) {
+            ContentCodec.skipChunks(ins, fileLength);
+        } else {
+            IOUtils.skipFully(ins, fileLength);
+        }
+        if (checksummed) {
+            IOUtils.skipFully(ins, CHECKSUM_LENGTH);
+        }
     }
 
     /**получает содержимое файла через input stream и записывает его в указанный файл
-     * @param ins input stream, который содержит необходимую для наполнения файла информацию (размер файла и его содержание)
+     * @param ins input stream, который содержит необходимую для наполнения файла информацию (содержание файла)
      * @param temporaryFile путь до существующего файла
+     * @param fileLength размер файла, указанный отправителем
+     * @param chunked флаг, если true, то содержимое передано частями {@link ContentCodec}, возможно сжатыми
+     * @param checksummed флаг, если true, то за содержимым передан MD5, вычисленный отправителем; тогда содержимое
+     *                    не принимается напрямую из канала, а сумма вычисляется при записи и сверяется с переданной
+     * @return MD5 полученного содержимого, для больших файлов, принятых напрямую из канала соединения, вычисляется
+     * по записанному файлу
+     * @throws ChecksumMismatchException если содержимое полностью получено, но не совпадает с переданной суммой
      * @throws IOException если размер полученного файла не совпадает с указанным размером
      */
-    private void fillTemporaryFile (DataInputStream ins, File temporaryFile) throws IOException {
-        long fileLength = ins.readLong();
+    private byte[] fillTemporaryFile(DataInputStream ins, File temporaryFile, long fileLength, boolean chunked,
+                                     boolean checksummed) throws IOException {
         LOGGER.debug("started to write content in temporaryFile");
-        fileLength-=IOUtils.copyLarge(ins, new FileOutputStream(temporaryFile),0,fileLength);
-        LOGGER.debug("ended to write content in temporaryFile");
-        if (fileLength > 0) {
-            throw new IOException("File was not received full");
+        byte[] hash = null;
+        try (FileChannel channel = FileCommitter.openTemporary(temporaryFile, fileLength)) {
+            if (chunked) {
+                MessageDigest digest = DeltaTransfer.md5();
+                ContentCodec.readChunks(ins, new DigestOutputStream(Channels.newOutputStream(channel), digest),
+                        fileLength);
+                fileLength = 0;
+                hash = digest.digest();
+            } else if (!checksummed && ins instanceof ChannelTransfer.ChannelDataInput
+                    && fileLength >= ChannelTransfer.CHANNEL_TRANSFER_THRESHOLD) {
+                fileLength -= ((ChannelTransfer.ChannelDataInput) ins).transferTo(channel, fileLength);
+                if (fileLength == 0) {
+                    hash = DirectoryIndex.computeHash(temporaryFile);
+                }
+            } else {
+                MessageDigest digest = DeltaTransfer.md5();
+                fileLength -= IOUtils.copyLarge(ins, new DigestOutputStream(Channels.newOutputStream(channel), digest),
+                        0, fileLength);
+                hash = digest.digest();
+            }
+            LOGGER.debug("ended to write content in temporaryFile");
+            if (fileLength > 0) {
+                throw new IOException("File was not received full");
+            }
+            if (checksummed) {
+                byte[] expected = new byte[CHECKSUM_LENGTH];
+                ins.readFully(expected);
+                if (!MessageDigest.isEqual(expected, hash)) {
+                    throw new ChecksumMismatchException();
+                }
+            }
+        }
+        return hash;
+    }
+
+    /** Полученное содержимое не совпадает с контрольной суммой отправителя, при этом операция прочитана полностью и
+     * соединение можно использовать дальше */
+    private static final class ChecksumMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ChecksumMismatchException() {
+            super("Received content does not match sender checksum");
+        }
+    }
+
+    /** Операция кадра {@link SharedDirService#BATCH} и полученное для нее содержимое */
+    private static final class BatchEntry {
+        private final int instruction;
+        /** путь к файлу, null если имя отклонено */
+        private final File file;
+        /** временный файл с полученным содержимым, null для удаления, для пропущенного и для поврежденного при передаче
+         * содержимого */
+        private File temporaryFile;
+        private byte[] hash;
+        /** размещение полученного файла, null для операций без содержимого */
+        private FileCommitter.Placement placement;
+        /** результат операции, содержимое которой не было записано, null если операция еще не выполнена */
+        private ReceiveResult result;
+
+        private BatchEntry(int instruction, File file) {
+            this.instruction = instruction;
+            this.file = file;
         }
     }
 }
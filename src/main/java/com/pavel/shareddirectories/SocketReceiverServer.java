@@ -0,0 +1,362 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.*;
+
+public class SocketReceiverServer implements ChangesReceiverServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SocketReceiverServer.class);
+    /** возможности сессии, которые сервер поддерживает */
+    private static final int SUPPORTED_FEATURES = ContentCodec.FEATURE_DEFLATE | SharedDirService.FEATURE_BATCH
+            | SharedDirService.FEATURE_COPY | SharedDirService.FEATURE_CHECKSUM;
+    /** наибольшее количество одновременно обслуживаемых постоянных соединений, следующие соединения закрываются */
+    static final int MAX_SESSIONS = 64;
+    /** время, после которого простаивающий поток постоянных соединений завершается, в милисекундах */
+    private static final long SESSION_THREAD_IDLE_MS = 60000;
+    private final ChangesReceiver receiver;
+    /** порт сервера текущего пользователя */
+    private final int port;
+    /** сокет для прослушивания входящих соединений от удаленного пользователя*/
+    private volatile ServerSocket serverSocket;
+    /** потоки, параллельно обслуживающие входящие соединения */
+    private final ThreadPoolExecutor workers;
+    /** потоки постоянных соединений, не больше {@link #MAX_SESSIONS}, создаются по мере необходимости */
+    private final ThreadPoolExecutor sessions;
+    /** поток в котором запускается проверка серверного сокета*/
+    private volatile Thread server;
+    /** сокеты открытых соединений, в том числе постоянных, каждое из которых обслуживается потоком
+     * {@link #sessions} */
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    /** ограничение скорости передачи, для каждого соединения создаются свои ограничения */
+    private final TrafficShaper shaper;
+    private volatile boolean serverClosed;
+
+    public SocketReceiverServer(ChangesReceiver reciever, int port, int receiveThreads) {
+        this(reciever, port, receiveThreads, new TrafficShaper());
+    }
+
+    /**
+     * @param reciever получатель изменений, сам синхронизирующий операции над одним файлом
+     * @param port порт сервера текущего пользователя
+     * @param receiveThreads количество потоков, параллельно обслуживающих входящие соединения
+     * @param shaper ограничение скорости передачи
+     */
+    public SocketReceiverServer(ChangesReceiver reciever, int port, int receiveThreads, TrafficShaper shaper) {
+        this.receiver = reciever;
+        this.port = port;
+        this.shaper = shaper;
+        this.workers = new ThreadPoolExecutor(receiveThreads, receiveThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(receiveThreads * 4), r -> {
+                    Thread thread = new Thread(r, "server receive thread");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.sessions = new ThreadPoolExecutor(0, MAX_SESSIONS, SESSION_THREAD_IDLE_MS, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "server session thread");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+    /**запускает сервер в отдельном потоке */
+    @Override
+    public synchronized void start(){
+        if (server== null) {
+            serverClosed = false;
+            server = new Thread(this::check);
+            server.setName("server Thread");
+            server.start();
+            LOGGER.debug("server started");
+        } else {
+            LOGGER.debug("Start denied. Server already started");
+        }
+    }
+    /**Прослушивает {@link SocketReceiverServer#serverSocket} и передает каждое входящее соединение в
+     * {@link SocketReceiverServer#workers}, поэтому медленная передача одного файла не задерживает остальные. Если все
+     * потоки заняты и очередь заполнена, соединение обрабатывается в потоке сервера, что приостанавливает прием новых.
+     */
+    private void check(){
+        try (ServerSocketChannel s = ServerSocketChannel.open()) {
+            s.socket().setReuseAddress(true);
+            s.bind(new InetSocketAddress(port));
+            serverSocket = s.socket();
+            while (!serverClosed) {
+                LOGGER.debug("server start new iteration");
+                try {
+                    SocketChannel clientChannel = s.accept();
+                    connections.add(clientChannel.socket());
+                    workers.execute(() -> serve(clientChannel));
+                } catch (IOException e) {
+                    if (!serverClosed) {
+                        LOGGER.warn("server IO exception ", e);
+                    }
+                }
+                LOGGER.debug("server end iteration");
+            }
+        } catch (IOException e) {
+            LOGGER.error("Problem with server socket", e);
+        }
+        LOGGER.debug("server end of check");
+    }
+
+    /**Обслуживает входящее соединение: проверяет полученную инструкцию, перенаправляя ее исполнение на
+     * {@link SocketReceiverServer#receiver}, и по результату выполнения отправляет подтверждающий сигнал. Постоянное
+     * соединение передается в поток {@link SocketReceiverServer#sessions}.
+     * @param clientChannel канал соединения с удаленным пользователем
+     */
+    private void serve(SocketChannel clientChannel) {
+        Socket client = clientChannel.socket();
+        boolean sessionStarted = false;
+        try {
+            client.setSoTimeout(50000);
+            DataInputStream in = ChannelTransfer.timedInput(clientChannel, shaper.receiveThrottle());
+            DataOutputStream outanswer = ChannelTransfer.output(clientChannel, shaper.sendThrottle());
+            int instruction = in.readInt();
+            if (instruction == SharedDirService.SESSION_START) {
+                sessionStarted = startSession(client, in, outanswer);
+            } else if (instruction == SharedDirService.RECONCILE) {
+                LOGGER.debug("server want to answer reconciliation");
+                answer(outanswer, receiver.answerReconcile(in, outanswer));
+            } else {
+                answer(outanswer, succeeded(receive(instruction, in, outanswer)));
+            }
+        } catch (IOException e) {
+            if (!serverClosed) {
+                LOGGER.warn("server IO exception ", e);
+            }
+        } finally {
+            if (!sessionStarted) {
+                connections.remove(client);
+                closeQuietly(client);
+            }
+        }
+    }
+
+    /**Передает постоянное соединение в {@link SocketReceiverServer#sessions}, чтобы оно не занимало поток
+     * {@link SocketReceiverServer#workers} все время своего существования. Если уже обслуживается
+     * {@link #MAX_SESSIONS} постоянных соединений, новое соединение отклоняется, и отправитель повторит операции позже.
+     * @param client сокет удаленного пользователя
+     * @param in входящий поток соединения
+     * @param outanswer исходящий поток соединения
+     * @return false если соединение отклонено и должно быть закрыто вызывающим методом
+     */
+    private boolean startSession(Socket client, DataInputStream in, DataOutputStream outanswer) {
+        Runnable session = () -> {
+            try {
+                serveSession(client, in, outanswer);
+            } catch (IOException e) {
+                if (!serverClosed) {
+                    LOGGER.warn("server session IO exception ", e);
+                }
+            } finally {
+                connections.remove(client);
+                closeQuietly(client);
+            }
+        };
+        try {
+            sessions.execute(session);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (!serverClosed) {
+                LOGGER.warn("Session from {} refused, {} sessions are already open", client.getRemoteSocketAddress(),
+                        MAX_SESSIONS);
+            }
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.info("Exception occurred during socket closing", e);
+        }
+    }
+
+    /**Обслуживает постоянное соединение: принимает последовательность операций, каждая из которых предваряется
+     * идентификатором запроса, и отвечает на каждую идентификатором и сигналом результата. Соединение завершается, когда
+     * удаленный пользователь закрывает его, или при ошибке ввода-вывода.
+     * @param client сокет удаленного пользователя
+     * @param in входящий поток соединения
+     * @param outanswer исходящий поток соединения
+     * @throws IOException если соединение было прервано или получена неизвестная инструкция
+     */
+    private void serveSession(Socket client, DataInputStream in, DataOutputStream outanswer) throws IOException {
+        int features = in.readInt() & SUPPORTED_FEATURES;
+        boolean encoded = (features & ContentCodec.FEATURE_DEFLATE) != 0;
+        boolean batching = (features & SharedDirService.FEATURE_BATCH) != 0;
+        boolean checksummed = (features & SharedDirService.FEATURE_CHECKSUM) != 0;
+        LOGGER.debug("server opened session with features {}", features);
+        client.setTcpNoDelay(true);
+        outanswer.writeInt(SharedDirService.SUCCESS_SIGNAL);
+        outanswer.writeInt(features);
+        outanswer.flush();
+        while (!serverClosed) {
+            int requestId;
+            try {
+                requestId = in.readInt();
+            } catch (EOFException e) {
+                LOGGER.debug("session closed by client");
+                return;
+            }
+            int instruction = in.readInt();
+            if (instruction == SharedDirService.BATCH && batching) {
+                answerBatch(requestId, receiver.receiveBatch(in, encoded, checksummed), outanswer);
+                continue;
+            }
+            boolean success = true;
+            if (instruction != SharedDirService.KEEP_ALIVE) {
+                if (!isSessionInstruction(instruction)) {
+                    throw new IOException("Unknown instruction " + instruction + " in session");
+                }
+                if ((encoded || checksummed) && SharedDirService.carriesContent(instruction)) {
+                    LOGGER.debug("server want to receive session file");
+                    success = succeeded(receiver.receiveInSession(in, encoded, checksummed));
+                } else {
+                    success = succeeded(receive(instruction, in, outanswer));
+                }
+            }
+            outanswer.writeInt(requestId);
+            answer(outanswer, success);
+        }
+    }
+
+    /**Отвечает на кадр {@link SharedDirService#BATCH}: идентификатор запроса, сигнал успеха, количество операций и
+     * сигнал результата каждой из них одним байтом
+     * @param requestId идентификатор запроса
+     * @param results результаты операций, null если кадр не был получен полностью
+     * @param outanswer исходящий поток соединения
+     * @throws IOException если кадр не был получен полностью или соединение было прервано
+     */
+    private void answerBatch(int requestId, ReceiveResult[] results, DataOutputStream outanswer)
+            throws IOException {
+        if (results == null) {
+            throw new IOException("Batch was not received full");
+        }
+        outanswer.writeInt(requestId);
+        outanswer.writeInt(SharedDirService.SUCCESS_SIGNAL);
+        outanswer.writeInt(results.length);
+        for (ReceiveResult result : results) {
+            outanswer.writeByte(succeeded(result) ? SharedDirService.SUCCESS_SIGNAL : SharedDirService.BAD_SIGNAL);
+        }
+        outanswer.flush();
+        LOGGER.debug("sent batch answer for request {}", requestId);
+    }
+
+    /**Перенаправляет исполнение инструкции на {@link SocketReceiverServer#receiver}
+     * @param instruction полученная инструкция
+     * @param in поток, из которого читается остальная часть операции
+     * @param outanswer поток для промежуточных ответов операций, требующих обмена с отправителем
+     * @return результат операции
+     */
+    private ReceiveResult receive(int instruction, DataInputStream in, DataOutputStream outanswer) {
+        switch (instruction) {
+            case (SharedDirService.NEW_FILE):
+                LOGGER.debug("server want to receive new file");
+                return receiver.receiveToCreate(in);
+            case (SharedDirService.MODIFY_FILE):
+                LOGGER.debug("server want to receive mod file");
+                return receiver.receiveToMod(in);
+            case (SharedDirService.DELETE_FILE):
+                LOGGER.debug("server want to receive del file");
+                return receiver.receiveToDel(in);
+            case (SharedDirService.MODIFY_DELTA):
+                LOGGER.debug("server want to receive mod file delta");
+                return receiver.receiveToModDelta(in, outanswer);
+            case (SharedDirService.RENAME):
+                LOGGER.debug("server want to receive renamed file");
+                return receiver.receiveCopy(in, true);
+            case (SharedDirService.COPY_FROM):
+                LOGGER.debug("server want to receive copied file");
+                return receiver.receiveCopy(in, false);
+            case (SharedDirService.CREATE_DIRECTORY):
+                LOGGER.debug("server want to create directory");
+                return receiver.receiveDirectory(in, true);
+            case (SharedDirService.DELETE_DIRECTORY):
+                LOGGER.debug("server want to delete directory");
+                return receiver.receiveDirectory(in, false);
+            case (SharedDirService.RESUMABLE_FILE):
+                LOGGER.debug("server want to receive resumable file");
+                return receiver.receiveResumable(in, outanswer);
+            default:
+                LOGGER.warn("Unknown instruction {}", instruction);
+                return ReceiveResult.failed(null, "unknown instruction " + instruction);
+        }
+    }
+
+    /** @return true если операция выполнена; причина неудачи записывается в журнал */
+    static boolean succeeded(ReceiveResult result) {
+        if (!result.isSuccess()) {
+            LOGGER.debug("operation failed: {}", result);
+        }
+        return result.isSuccess();
+    }
+
+    /** @return true если инструкция может передаваться внутри сессии (не требует промежуточных ответов) */
+    private static boolean isSessionInstruction(int instruction) {
+        return instruction == SharedDirService.NEW_FILE || instruction == SharedDirService.MODIFY_FILE
+                || instruction == SharedDirService.DELETE_FILE || instruction == SharedDirService.RENAME
+                || instruction == SharedDirService.COPY_FROM || instruction == SharedDirService.CREATE_DIRECTORY
+                || instruction == SharedDirService.DELETE_DIRECTORY;
+    }
+
+    /**отправляет подтверждающий сигнал по результату выполнения операции
+     * @param outanswer поток, в который записывается сигнал
+     * @param success результат операции
+     * @throws IOException if I/O errors occurred
+     */
+    private void answer(DataOutputStream outanswer, boolean success) throws IOException {
+        if (success) {
+            LOGGER.debug("File successfully received");
+            outanswer.writeInt(SharedDirService.SUCCESS_SIGNAL);
+            LOGGER.debug("sent success signal");
+        } else {
+            outanswer.writeInt(SharedDirService.BAD_SIGNAL);
+            LOGGER.debug("sent bad signal");
+        }
+        outanswer.flush();
+    }
+
+    /** Пытается корректно завершить метод {@link SocketReceiverServer#check()} за выделенное время, иначе обрывает все
+     * соединения
+     * @param timeoutMs время, выделяемое для штатного завершения цикла, в милисекундах
+     */
+    @Override
+    public synchronized void close(long timeoutMs){
+        serverClosed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            try {
+                server.join(timeoutMs);
+                workers.shutdown();
+                if (!workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    LOGGER.warn("Server receive threads did not finish in time");
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("Server join interrupted ", e);
+            }
+            for (Socket connection : connections) {
+                connection.close();
+            }
+            sessions.shutdown();
+            try {
+                if (!sessions.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    LOGGER.warn("Server session threads did not finish in time");
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("Server join interrupted ", e);
+            }
+        } catch (IOException e) {
+            LOGGER.info("Exception occurred during socket closing", e);
+        }
+    }
+}
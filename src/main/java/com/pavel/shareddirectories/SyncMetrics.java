@@ -0,0 +1,285 @@
+package com.pavel.shareddirectories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Счетчики и гистограммы длительностей конвейера синхронизации: проверки директории монитором, очереди операций,
+ * отправки и подтверждения операций, ожидание объектов синхронизации при получении, объем переданных данных. Запись
+ * значений не выделяет память и не блокирует. Значения доступны через JMX после {@link #register(String)} и в виде
+ * текстового или JSON снимка, который периодически записывает {@link MetricsReporter}.
+ */
+public class SyncMetrics implements SyncMetricsMBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyncMetrics.class);
+    /** домен имен JMX объектов сервиса */
+    private static final String JMX_DOMAIN = "com.pavel.shareddirectories";
+    /** минимальный интервал, за который вычисляется скорость передачи, в наносекундах */
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** длительность проверки директории монитором */
+    private final LatencyHistogram scanTimes = new LatencyHistogram();
+    /** время от начала отправки операции до получения ее результата */
+    private final LatencyHistogram sendTimes = new LatencyHistogram();
+    /** время от окончания записи операции в соединение до получения ответа сервера */
+    private final LatencyHistogram ackTimes = new LatencyHistogram();
+    /** время ожидания объекта синхронизации файла при получении изменений */
+    private final LatencyHistogram lockWaitTimes = new LatencyHistogram();
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder filesScanned = new LongAdder();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    /** количество файлов, проверенных последней проверкой */
+    private volatile long lastScanFiles;
+    private volatile int inFlightOperations;
+    private volatile int retryQueueLength;
+    private volatile int heldFiles;
+    /** счетчики сжатия содержимого для всех отправителей сервиса */
+    private final CompressionStats compressionStats = new CompressionStats();
+    /** ограничение скорости, в котором учитываются переданные байты */
+    private final TrafficShaper trafficShaper;
+    /** время и счетчики последнего вычисления скорости передачи, изменяются под монитором объекта */
+    private long rateTime = System.nanoTime();
+    private long rateSentBytes;
+    private long rateReceivedBytes;
+    private long sentBytesPerSecond;
+    private long receivedBytesPerSecond;
+    /** имена зарегистрированных JMX объектов */
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    /** создает счетчики без учета переданных байт */
+    public SyncMetrics() {
+        this(new TrafficShaper());
+    }
+
+    /** @param trafficShaper ограничение скорости, через которое проходят все соединения сервиса */
+    public SyncMetrics(TrafficShaper trafficShaper) {
+        this.trafficShaper = trafficShaper;
+    }
+
+    /**Записывает проверку директории
+     * @param nanos длительность проверки
+     * @param files количество проверенных файлов и директорий
+     */
+    void recordScan(long nanos, int files) {
+        scanTimes.record(nanos);
+        scans.increment();
+        filesScanned.add(files);
+        lastScanFiles = files;
+    }
+
+    /**Записывает размеры очередей монитора
+     * @param inFlight операции, ожидающие результата
+     * @param retryQueue файлы, которые не удалось отправить и которые будут отправлены повторно
+     * @param held файлы, задержанные до окончания записи
+     */
+    void recordQueues(int inFlight, int retryQueue, int held) {
+        inFlightOperations = inFlight;
+        retryQueueLength = retryQueue;
+        heldFiles = held;
+    }
+
+    /** @param nanos время от начала отправки успешной операции до получения ее результата */
+    void recordOperation(long nanos) {
+        sendTimes.record(nanos);
+        operations.increment();
+    }
+
+    /** записывает операцию, которую не удалось выполнить после всех попыток */
+    void recordFailure() {
+        failures.increment();
+    }
+
+    /** @param count количество повторно отправляемых операций */
+    void recordRetries(int count) {
+        retries.add(count);
+    }
+
+    /** @param sentNanos время {@link System#nanoTime()} окончания записи операции в соединение */
+    void recordAck(long sentNanos) {
+        ackTimes.record(System.nanoTime() - sentNanos);
+    }
+
+    /** @param waitStartNanos время {@link System#nanoTime()} начала ожидания объекта синхронизации */
+    void recordLockWait(long waitStartNanos) {
+        lockWaitTimes.record(System.nanoTime() - waitStartNanos);
+    }
+
+    public LatencyHistogram getScanTimes() {
+        return scanTimes;
+    }
+
+    public LatencyHistogram getSendTimes() {
+        return sendTimes;
+    }
+
+    public LatencyHistogram getAckTimes() {
+        return ackTimes;
+    }
+
+    public LatencyHistogram getLockWaitTimes() {
+        return lockWaitTimes;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    @Override
+    public long getScans() {
+        return scans.sum();
+    }
+
+    @Override
+    public long getFilesScanned() {
+        return filesScanned.sum();
+    }
+
+    @Override
+    public long getLastScanFiles() {
+        return lastScanFiles;
+    }
+
+    @Override
+    public int getInFlightOperations() {
+        return inFlightOperations;
+    }
+
+    @Override
+    public int getRetryQueueLength() {
+        return retryQueueLength;
+    }
+
+    @Override
+    public int getHeldFiles() {
+        return heldFiles;
+    }
+
+    @Override
+    public long getOperations() {
+        return operations.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getSentBytes() {
+        return trafficShaper.getSentBytes();
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return trafficShaper.getReceivedBytes();
+    }
+
+    /** @return средняя скорость отправки за последний интервал не короче секунды, байт в секунду */
+    @Override
+    public synchronized long getSentBytesPerSecond() {
+        updateRates();
+        return sentBytesPerSecond;
+    }
+
+    /** @return средняя скорость получения за последний интервал не короче секунды, байт в секунду */
+    @Override
+    public synchronized long getReceivedBytesPerSecond() {
+        updateRates();
+        return receivedBytesPerSecond;
+    }
+
+    /** пересчитывает скорость передачи, если с прошлого вычисления прошло не меньше {@link #RATE_WINDOW_NANOS} */
+    private void updateRates() {
+        long now = System.nanoTime();
+        long elapsed = now - rateTime;
+        if (elapsed < RATE_WINDOW_NANOS) {
+            return;
+        }
+        long sent = getSentBytes();
+        long received = getReceivedBytes();
+        sentBytesPerSecond = (sent - rateSentBytes) * RATE_WINDOW_NANOS / elapsed;
+        receivedBytesPerSecond = (received - rateReceivedBytes) * RATE_WINDOW_NANOS / elapsed;
+        rateTime = now;
+        rateSentBytes = sent;
+        rateReceivedBytes = received;
+    }
+
+    /**Регистрирует счетчики, гистограммы, {@link CompressionStats} и {@link TrafficShaper} в платформенном
+     * MBeanServer. Ошибка регистрации не мешает работе сервиса и только записывается в журнал.
+     * @param instance имя экземпляра сервиса, отличающее его объекты от объектов других сервисов того же процесса
+     */
+    public synchronized void register(String instance) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String prefix = JMX_DOMAIN + ":instance=" + ObjectName.quote(instance) + ",type=";
+        try {
+            register(server, prefix + "SyncMetrics", this);
+            register(server, prefix + "TrafficShaper", trafficShaper);
+            register(server, prefix + "CompressionStats", compressionStats);
+            register(server, prefix + "Latency,name=scan", scanTimes);
+            register(server, prefix + "Latency,name=send", sendTimes);
+            register(server, prefix + "Latency,name=ack", ackTimes);
+            register(server, prefix + "Latency,name=lockWait", lockWaitTimes);
+        } catch (JMException e) {
+            LOGGER.warn("Metrics were not registered in JMX", e);
+        }
+    }
+
+    private void register(MBeanServer server, String name, Object bean) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        server.registerMBean(bean, objectName);
+        registered.add(objectName);
+    }
+
+    /** удаляет из MBeanServer объекты, зарегистрированные {@link #register(String)} */
+    public synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                LOGGER.info("Metrics were not unregistered from JMX", e);
+            }
+        }
+        registered.clear();
+    }
+
+    /** @return снимок всех значений в виде объекта JSON в одну строку */
+    public String toJson() {
+        return String.format("{\"time\":%d,\"scans\":%d,\"filesScanned\":%d,\"lastScanFiles\":%d,"
+                        + "\"inFlightOperations\":%d,\"retryQueueLength\":%d,\"heldFiles\":%d,\"operations\":%d,"
+                        + "\"failures\":%d,\"retries\":%d,\"sentBytes\":%d,\"receivedBytes\":%d,"
+                        + "\"sentBytesPerSecond\":%d,\"receivedBytesPerSecond\":%d,\"scanTime\":%s,\"sendTime\":%s,"
+                        + "\"ackTime\":%s,\"lockWaitTime\":%s,\"compression\":{\"compressedFiles\":%d,"
+                        + "\"rawFiles\":%d,\"contentBytes\":%d,\"compressedBytes\":%d,\"cpuNanos\":%d}}",
+                System.currentTimeMillis(), getScans(), getFilesScanned(), getLastScanFiles(),
+                getInFlightOperations(), getRetryQueueLength(), getHeldFiles(), getOperations(), getFailures(),
+                getRetries(), getSentBytes(), getReceivedBytes(), getSentBytesPerSecond(),
+                getReceivedBytesPerSecond(), scanTimes.toJson(), sendTimes.toJson(), ackTimes.toJson(),
+                lockWaitTimes.toJson(), compressionStats.getCompressedFiles(), compressionStats.getRawFiles(),
+                compressionStats.getContentBytes(), compressionStats.getSentBytes(), compressionStats.getCpuNanos());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scans %d (%d files, last %d), queues: in flight %d, retry %d, held %d; "
+                        + "operations %d, failures %d, retries %d; sent %d bytes (%d B/s), received %d bytes (%d B/s); "
+                        + "scan time [%s]; send time [%s]; ack time [%s]; lock wait [%s]; compression [%s]",
+                getScans(), getFilesScanned(), getLastScanFiles(), getInFlightOperations(), getRetryQueueLength(),
+                getHeldFiles(), getOperations(), getFailures(), getRetries(), getSentBytes(),
+                getSentBytesPerSecond(), getReceivedBytes(), getReceivedBytesPerSecond(), scanTimes, sendTimes,
+                ackTimes, lockWaitTimes, compressionStats);
+    }
+}
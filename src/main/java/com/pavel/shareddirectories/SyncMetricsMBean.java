@@ -0,0 +1,31 @@
+package com.pavel.shareddirectories;
+
+/** Атрибуты {@link SyncMetrics}, доступные через JMX. Гистограммы длительностей регистрируются отдельными
+ * {@link LatencyHistogramMBean} */
+public interface SyncMetricsMBean {
+    long getScans();
+
+    long getFilesScanned();
+
+    long getLastScanFiles();
+
+    int getInFlightOperations();
+
+    int getRetryQueueLength();
+
+    int getHeldFiles();
+
+    long getOperations();
+
+    long getFailures();
+
+    long getRetries();
+
+    long getSentBytes();
+
+    long getReceivedBytes();
+
+    long getSentBytesPerSecond();
+
+    long getReceivedBytesPerSecond();
+}
@@ -0,0 +1,274 @@
+package com.pavel.shareddirectories;
+
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Ограничение скорости передачи по алгоритму token bucket. Для каждого направления (отправка и получение) действуют
+ * общий предел на все соединения сервиса и предел на одно соединение, 0 означает отсутствие ограничения. Общий предел
+ * может меняться по расписанию времени суток, все пределы можно менять во время работы сервиса.
+ * <p>Ограничение применяется к потокам {@link ChannelTransfer}: содержимое передается частями не больше
+ * {@link #CHUNK_SIZE}, поэтому соединения делят общий предел поровну. Передачи меньше {@link #METADATA_BYTES} -
+ * заголовки операций, ответы сервера, {@link SharedDirService#KEEP_ALIVE} - не учитываются, чтобы ограничение
+ * массовой передачи не увеличивало задержку маленьких операций. Соединения {@link SelectorReceiverServer} не
+ * ограничиваются, так как ожидание остановило бы все соединения сервера, но переданные по ним байты учитываются в
+ * счетчиках {@link #getSentBytes()} и {@link #getReceivedBytes()}.
+ */
+public class TrafficShaper implements TrafficShaperMBean {
+    /** максимальный размер передачи, которая не учитывается в ограничении, в байтах */
+    static final int METADATA_BYTES = 1024;
+    /** максимальный объем одной передачи при действующем ограничении, в байтах */
+    static final int CHUNK_SIZE = 64 * 1024;
+    private final Direction send = new Direction();
+    private final Direction receive = new Direction();
+    /** окна расписания общего предела, пустой список если расписание не задано */
+    private volatile List<Window> schedule = Collections.emptyList();
+    /** расписание в том виде, в котором оно было задано */
+    private volatile String scheduleText = "";
+
+    /** создает ограничение без пределов */
+    public TrafficShaper() {
+    }
+
+    /**
+     * @param sendRate общий предел скорости отправки, байт в секунду
+     * @param receiveRate общий предел скорости получения, байт в секунду
+     * @param connectionSendRate предел скорости отправки по одному соединению, байт в секунду
+     * @param connectionReceiveRate предел скорости получения по одному соединению, байт в секунду
+     * @param schedule расписание общего предела, см. {@link #setSchedule(String)}
+     */
+    public TrafficShaper(long sendRate, long receiveRate, long connectionSendRate, long connectionReceiveRate,
+                         String schedule) {
+        setSendRate(sendRate);
+        setReceiveRate(receiveRate);
+        setConnectionSendRate(connectionSendRate);
+        setConnectionReceiveRate(connectionReceiveRate);
+        setSchedule(schedule);
+    }
+
+    public long getSendRate() {
+        return send.rate;
+    }
+
+    public void setSendRate(long sendRate) {
+        send.rate = checkRate(sendRate);
+    }
+
+    public long getReceiveRate() {
+        return receive.rate;
+    }
+
+    public void setReceiveRate(long receiveRate) {
+        receive.rate = checkRate(receiveRate);
+    }
+
+    public long getConnectionSendRate() {
+        return send.connectionRate;
+    }
+
+    public void setConnectionSendRate(long connectionSendRate) {
+        send.connectionRate = checkRate(connectionSendRate);
+    }
+
+    public long getConnectionReceiveRate() {
+        return receive.connectionRate;
+    }
+
+    public void setConnectionReceiveRate(long connectionReceiveRate) {
+        receive.connectionRate = checkRate(connectionReceiveRate);
+    }
+
+    /** @return общий предел скорости отправки с учетом расписания, 0 если он не ограничен */
+    public long getEffectiveSendRate() {
+        return effectiveRate(send);
+    }
+
+    /** @return общий предел скорости получения с учетом расписания, 0 если он не ограничен */
+    public long getEffectiveReceiveRate() {
+        return effectiveRate(receive);
+    }
+
+    /** @return количество байт, отправленных по всем соединениям сервиса */
+    public long getSentBytes() {
+        return send.transferred.sum();
+    }
+
+    /** @return количество байт, полученных по всем соединениям сервиса */
+    public long getReceivedBytes() {
+        return receive.transferred.sum();
+    }
+
+    /** @return расписание общего предела, пустая строка если оно не задано */
+    public String getSchedule() {
+        return scheduleText;
+    }
+
+    /**Задает расписание общего предела. Во время окна расписания общий предел обоих направлений равен пределу окна,
+     * вне окон действуют {@link #getSendRate()} и {@link #getReceiveRate()}.
+     * @param schedule окна через запятую в формате ЧЧ:ММ-ЧЧ:ММ=предел, например "09:00-18:00=262144,18:00-09:00=0";
+     *                 окно может переходить через полночь, пустая строка или null отменяют расписание
+     * @throws IllegalArgumentException если расписание записано неверно
+     */
+    public void setSchedule(String schedule) {
+        List<Window> windows = new ArrayList<>();
+        if (schedule != null) {
+            for (String entry : schedule.split(",")) {
+                if (!entry.trim().isEmpty()) {
+                    windows.add(Window.parse(entry.trim()));
+                }
+            }
+        }
+        this.schedule = Collections.unmodifiableList(windows);
+        this.scheduleText = schedule == null ? "" : schedule.trim();
+    }
+
+    /** @return ограничение отправки по новому соединению */
+    Throttle sendThrottle() {
+        return new Throttle(send);
+    }
+
+    /** @return ограничение получения по новому соединению */
+    Throttle receiveThrottle() {
+        return new Throttle(receive);
+    }
+
+    private long effectiveRate(Direction direction) {
+        List<Window> windows = schedule;
+        if (!windows.isEmpty()) {
+            int minute = LocalTime.now().toSecondOfDay() / 60;
+            for (Window window : windows) {
+                if (window.contains(minute)) {
+                    return window.rate;
+                }
+            }
+        }
+        return direction.rate;
+    }
+
+    private static long checkRate(long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate must not be negative");
+        }
+        return rate;
+    }
+
+    /** Ограничение одного направления одного соединения */
+    final class Throttle {
+        private final Direction direction;
+        private final TokenBucket bucket = new TokenBucket();
+
+        private Throttle(Direction direction) {
+            this.direction = direction;
+        }
+
+        /** @return true если на направление действует хотя бы один предел */
+        boolean isLimited() {
+            return direction.connectionRate > 0 || effectiveRate(direction) > 0;
+        }
+
+        /** @return объем следующей передачи: не больше {@link #CHUNK_SIZE}, если действует ограничение */
+        long chunk(long wanted) {
+            return isLimited() ? Math.min(wanted, CHUNK_SIZE) : wanted;
+        }
+
+        /**Учитывает переданные байты в счетчике направления, не ограничивая скорость
+         * @param bytes количество переданных байт
+         */
+        void record(long bytes) {
+            direction.transferred.add(bytes);
+        }
+
+        /**Учитывает переданные байты и, если предел превышен, ожидает, пока скорость не вернется к пределу
+         * @param bytes количество переданных байт
+         * @throws InterruptedIOException если ожидание было прервано
+         */
+        void acquire(long bytes) throws InterruptedIOException {
+            record(bytes);
+            if (bytes < METADATA_BYTES) {
+                return;
+            }
+            long now = System.nanoTime();
+            long waitNanos = Math.max(direction.bucket.reserve(bytes, effectiveRate(direction), now),
+                    bucket.reserve(bytes, direction.connectionRate, now));
+            if (waitNanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling transfer");
+            }
+        }
+    }
+
+    /** Пределы и общие счетчики одного направления */
+    private static final class Direction {
+        private final TokenBucket bucket = new TokenBucket();
+        /** количество переданных байт */
+        private final LongAdder transferred = new LongAdder();
+        private volatile long rate;
+        private volatile long connectionRate;
+    }
+
+    /** Счетчик разрешенных байт. Передача может уйти в долг, тогда вызывающий ожидает, пока долг не будет погашен */
+    private static final class TokenBucket {
+        private double tokens;
+        private long updated = System.nanoTime();
+
+        /**Списывает переданные байты
+         * @param bytes количество байт
+         * @param rate предел, байт в секунду, 0 если не ограничен
+         * @param now текущее время {@link System#nanoTime()}
+         * @return время ожидания в наносекундах, 0 если предел не превышен
+         */
+        private synchronized long reserve(long bytes, long rate, long now) {
+            if (rate <= 0) {
+                tokens = 0;
+                updated = now;
+                return 0;
+            }
+            double burst = Math.max(rate, CHUNK_SIZE);
+            tokens = Math.min(burst, tokens + (now - updated) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+            updated = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+    }
+
+    /** Окно расписания: интервал времени суток и общий предел в нем */
+    private static final class Window {
+        private final int from;
+        private final int to;
+        private final long rate;
+
+        private Window(int from, int to, long rate) {
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+        }
+
+        private static Window parse(String entry) {
+            try {
+                String[] interval = entry.substring(0, entry.indexOf('=')).split("-");
+                long rate = checkRate(Long.parseLong(entry.substring(entry.indexOf('=') + 1).trim()));
+                return new Window(minuteOf(interval[0]), minuteOf(interval[1]), rate);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Wrong schedule entry " + entry, e);
+            }
+        }
+
+        private static int minuteOf(String time) {
+            return LocalTime.parse(time.trim()).toSecondOfDay() / 60;
+        }
+
+        /** @return true если минута суток попадает в окно */
+        private boolean contains(int minute) {
+            return from <= to ? minute >= from && minute < to : minute >= from || minute < to;
+        }
+    }
+}
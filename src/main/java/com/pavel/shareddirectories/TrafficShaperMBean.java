@@ -0,0 +1,32 @@
+package com.pavel.shareddirectories;
+
+/** Атрибуты {@link TrafficShaper}, доступные через JMX: пределы скорости можно менять во время работы сервиса */
+public interface TrafficShaperMBean {
+    long getSendRate();
+
+    void setSendRate(long sendRate);
+
+    long getReceiveRate();
+
+    void setReceiveRate(long receiveRate);
+
+    long getConnectionSendRate();
+
+    void setConnectionSendRate(long connectionSendRate);
+
+    long getConnectionReceiveRate();
+
+    void setConnectionReceiveRate(long connectionReceiveRate);
+
+    long getEffectiveSendRate();
+
+    long getEffectiveReceiveRate();
+
+    String getSchedule();
+
+    void setSchedule(String schedule);
+
+    long getSentBytes();
+
+    long getReceivedBytes();
+}
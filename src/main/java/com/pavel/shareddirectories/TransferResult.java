@@ -0,0 +1,133 @@
+package com.pavel.shareddirectories;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Результат операции отправки: подтверждена ли она сервером, количество байт, записанных в соединение, длительность от
+ * постановки в очередь отправки до ответа сервера, хеш содержимого, если он вычислялся при отправке, и, для неудавшейся
+ * операции, причина неудачи. Результаты
+ * {@link PipelinedChangesSender} всегда завершаются значением, обрыв соединения тоже описывается результатом.
+ */
+public final class TransferResult {
+    /** причина неудачи, если сервер отказался выполнить операцию или не подтвердил ее */
+    static final String NOT_CONFIRMED = "not confirmed by remote server";
+    private final boolean success;
+    /** количество байт содержимого, записанных в соединение: после сжатия, для разницы - размер разницы, для докачки -
+     * только дописанные части; 0 для операций без содержимого */
+    private final long bytes;
+    private final long durationNanos;
+    /** причина неудачи, null для успешной операции */
+    private final String failure;
+    /** исключение, которым завершилась операция, null если сервер ответил */
+    private final Throwable cause;
+    /** MD5 отправленного содержимого, вычисленный при его передаче и сверенный сервером, null если не вычислялся */
+    private final byte[] hash;
+
+    private TransferResult(boolean success, long bytes, long durationNanos, String failure, Throwable cause,
+                           byte[] hash) {
+        this.success = success;
+        this.bytes = bytes;
+        this.durationNanos = durationNanos;
+        this.failure = failure;
+        this.cause = cause;
+        this.hash = hash;
+    }
+
+    static TransferResult success(long bytes, long durationNanos) {
+        return new TransferResult(true, bytes, durationNanos, null, null, null);
+    }
+
+    /** @return результат операции, которую сервер не подтвердил */
+    static TransferResult notConfirmed(long durationNanos) {
+        return new TransferResult(false, 0, durationNanos, NOT_CONFIRMED, null, null);
+    }
+
+    /** @return результат операции, прерванной исключением, например обрывом соединения */
+    static TransferResult failed(Throwable cause, long durationNanos) {
+        Throwable unwrapped = cause instanceof CompletionException || cause instanceof ExecutionException
+                ? cause.getCause() : cause;
+        return new TransferResult(false, 0, durationNanos, String.valueOf(unwrapped), unwrapped, null);
+    }
+
+    /**Превращает ответ сервера в результат операции
+     * @param startNanos время {@link System#nanoTime()} постановки операции в очередь отправки
+     * @param sent сведения, которые отправитель записал при передаче операции
+     * @param answer ответ сервера: true при подтверждении, false при отказе, исключение при обрыве соединения
+     * @return результат, который завершается вместе с ответом и никогда не завершается исключением
+     */
+    static CompletableFuture<TransferResult> of(long startNanos, Sent sent, CompletableFuture<Boolean> answer) {
+        return answer.handle((confirmed, e) -> {
+            long duration = System.nanoTime() - startNanos;
+            if (e != null) {
+                return failed(e, duration);
+            }
+            return confirmed ? new TransferResult(true, sent.getBytes(), duration, null, null, sent.hash)
+                    : notConfirmed(duration);
+        });
+    }
+
+    /** @return тот же результат с другой длительностью */
+    TransferResult withDuration(long durationNanos) {
+        return new TransferResult(success, bytes, durationNanos, failure, cause, hash);
+    }
+
+
+    /** @return true если операция подтверждена сервером */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /** @return количество байт содержимого, записанных в соединение */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /** @return причина неудачи, null для успешной операции */
+    public String getFailure() {
+        return failure;
+    }
+
+    /** @return исключение, которым завершилась операция, null если сервер ответил */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /** @return MD5 отправленного содержимого, сверенный сервером, null если он не вычислялся при отправке */
+    byte[] getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        String duration = String.format("%.1f ms", durationNanos / 1e6);
+        return success ? bytes + " bytes in " + duration : "failed in " + duration + ": " + failure;
+    }
+
+    /** Сведения об одной операции, которые отправитель записывает, пока передает ее: количество байт содержимого,
+     * записанных в соединение, и MD5 содержимого, если сервер его сверяет. Операция может передаваться в несколько
+     * попыток, байты всех попыток суммируются. */
+    static final class Sent {
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile byte[] hash;
+
+        /** @param count количество байт содержимого, записанных в соединение */
+        void add(long count) {
+            bytes.addAndGet(count);
+        }
+
+        /** @param hash MD5 отправленного содержимого, записывается до отправки кадра операции */
+        void setHash(byte[] hash) {
+            this.hash = hash;
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.pavel.SharedDirestories;
+
+import com.pavel.shareddirectories.SharedDirService;
+import com.pavel.shareddirectories.SharedDirSettings;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Нагрузочная проверка синхронизации через loopback: запускает два {@link SharedDirService} во временных
+ * директориях, как {@link DirOne} и {@link DirTwo}, выполняет нагрузки в первой директории и измеряет время от
+ * окончания локальной записи до появления идентичного файла во второй. С replicas=N запускается N удаленных
+ * сервисов, первый отправляет изменения всем через настройку peers, и время измеряется до появления файла у всех. Для каждой нагрузки выводятся p50/p99 этого
+ * времени, скорость в МБ/с и файлах в секунду; результат - один объект JSON в стандартном выводе и, если задан out, в
+ * файле.
+ * <p>Аргументы в виде ключ=значение: workloads (через запятую из tiny, huge, churn, rename), tinyFiles, tinySize,
+ * hugeFiles, hugeSize, churnFiles, renameFiles, replicas, timeout (секунды на нагрузку), out. Остальные ключи передаются в
+ * {@link SharedDirSettings} обоих сервисов, например quietPeriod=0 или sendConnections=3.
+ */
+public class LoadTest {
+    /** интервал проверки директории удаленного пользователя, в милисекундах */
+    private static final long POLL_MS = 5;
+    private static final Set<String> OPTIONS = new HashSet<>(Arrays.asList("workloads", "tinyFiles", "tinySize",
+            "hugeFiles", "hugeSize", "churnFiles", "renameFiles", "replicas", "timeout", "out"));
+    private final Properties options;
+    private final File local;
+    /** директории удаленных сервисов */
+    private final List<File> peers;
+    private final Random random = new Random(42);
+    private final long timeoutNanos;
+
+    private LoadTest(Properties options, File local, List<File> peers) {
+        this.options = options;
+        this.local = local;
+        this.peers = peers;
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getProperty("timeout", "300")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options = new Properties();
+        Properties config = new Properties();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Argument must be key=value: " + arg);
+            }
+            (OPTIONS.contains(pair[0]) ? options : config).setProperty(pair[0], pair[1]);
+        }
+        File root = Files.createTempDirectory("load-test").toFile();
+        File local = new File(root, "local");
+        if (!local.mkdir()) {
+            throw new IOException("Cannot create test directories");
+        }
+        int localPort = freePort();
+        List<File> peers = new ArrayList<>();
+        List<Integer> peerPorts = new ArrayList<>();
+        StringBuilder extraPeers = new StringBuilder();
+        for (int i = 0; i < Integer.parseInt(options.getProperty("replicas", "1")); i++) {
+            File peer = new File(root, "peer" + i);
+            if (!peer.mkdir()) {
+                throw new IOException("Cannot create test directories");
+            }
+            peers.add(peer);
+            peerPorts.add(freePort());
+            if (i > 0) {
+                extraPeers.append(extraPeers.length() > 0 ? "," : "").append("localhost:").append(peerPorts.get(i));
+            }
+        }
+        Properties localConfig = new Properties();
+        localConfig.putAll(config);
+        localConfig.setProperty("peers", extraPeers.toString());
+        List<SharedDirService> services = new ArrayList<>();
+        services.add(new SharedDirService(local.getPath(), "localhost", localPort, peerPorts.get(0),
+                new SharedDirSettings(localConfig)));
+        for (int i = 0; i < peers.size(); i++) {
+            services.add(new SharedDirService(peers.get(i).getPath(), "localhost", peerPorts.get(i), localPort,
+                    new SharedDirSettings(config)));
+        }
+        services.forEach(SharedDirService::start);
+        StringBuilder report = new StringBuilder("{\"settings\":").append(toJson(config)).append(",\"workloads\":[");
+        try {
+            LoadTest test = new LoadTest(options, local, peers);
+            String separator = "";
+            for (String workload : options.getProperty("workloads", "tiny,huge,churn,rename").split(",")) {
+                Result result = test.run(workload.trim());
+                System.err.println(result.name + ": " + result.toJson());
+                report.append(separator).append(result.toJson());
+                separator = ",";
+            }
+        } finally {
+            for (SharedDirService service : services) {
+                service.finish(10000, 10000);
+            }
+            FileUtils.deleteQuietly(root);
+        }
+        report.append("]}");
+        System.out.println(report);
+        String out = options.getProperty("out");
+        if (out != null) {
+            Files.write(new File(out).toPath(), Collections.singletonList(report));
+        }
+        System.exit(0);
+    }
+
+    private Result run(String workload) throws IOException, InterruptedException {
+        switch (workload) {
+            case "tiny":
+                return tiny();
+            case "huge":
+                return huge();
+            case "churn":
+                return churn();
+            case "rename":
+                return rename();
+            default:
+                throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+    }
+
+    /** пачка маленьких файлов, записанных подряд */
+    private Result tiny() throws IOException, InterruptedException {
+        File directory = directory("tiny");
+        int files = intOption("tinyFiles", 1000);
+        int size = intOption("tinySize", 1024);
+        List<Expectation> expectations = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            expectations.add(write(new File(directory, "f" + i), size));
+        }
+        return await("tiny", expectations);
+    }
+
+    /** несколько очень больших файлов */
+    private Result huge() throws IOException, InterruptedException {
+        File directory = directory("huge");
+        int files = intOption("hugeFiles", 3);
+        long size = Long.parseLong(options.getProperty("hugeSize", String.valueOf(256L << 20)));
+        List<Expectation> expectations = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            expectations.add(write(new File(directory, "f" + i), size));
+        }
+        return await("huge", expectations);
+    }
+
+    /** изменения и удаления уже синхронизированных файлов, каждый файл затрагивается один раз */
+    private Result churn() throws IOException, InterruptedException {
+        File directory = directory("churn");
+        int files = intOption("churnFiles", 500);
+        List<File> prepared = prepare(directory, files);
+        List<Expectation> expectations = new ArrayList<>();
+        for (File file : prepared) {
+            if (random.nextBoolean()) {
+                expectations.add(write(file, 1024 + random.nextInt(64 * 1024)));
+            } else {
+                Files.delete(file.toPath());
+                expectations.add(new Expectation(Collections.emptyList(), peerFiles(file), 0, null,
+                        System.nanoTime()));
+            }
+        }
+        return await("churn", expectations);
+    }
+
+    /** переименования уже синхронизированных файлов */
+    private Result rename() throws IOException, InterruptedException {
+        File directory = directory("rename");
+        int files = intOption("renameFiles", 200);
+        List<File> prepared = prepare(directory, files);
+        List<Expectation> expectations = new ArrayList<>();
+        for (File file : prepared) {
+            File target = new File(directory, "renamed-" + file.getName());
+            byte[] hash = hash(file);
+            long length = file.length();
+            Files.move(file.toPath(), target.toPath());
+            expectations.add(new Expectation(peerFiles(target), peerFiles(file), length, hash, System.nanoTime()));
+        }
+        return await("rename", expectations);
+    }
+
+    /** создает файлы и дожидается их синхронизации, это время не измеряется */
+    private List<File> prepare(File directory, int files) throws IOException, InterruptedException {
+        List<File> prepared = new ArrayList<>();
+        List<Expectation> expectations = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            File file = new File(directory, "f" + i);
+            expectations.add(write(file, 1024 + random.nextInt(64 * 1024)));
+            prepared.add(file);
+        }
+        Result result = await("prepare", expectations);
+        if (result.timeouts > 0) {
+            throw new IllegalStateException(result.timeouts + " files were not synchronized before the workload");
+        }
+        return prepared;
+    }
+
+    /** создает поддиректорию нагрузки и дожидается ее появления у удаленного пользователя */
+    private File directory(String name) throws IOException, InterruptedException {
+        File directory = new File(local, name);
+        if (!directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        for (File copy : peerFiles(directory)) {
+            while (!copy.isDirectory() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(POLL_MS);
+            }
+        }
+        return directory;
+    }
+
+    /** записывает файл случайного содержимого и возвращает ожидаемое состояние его копии */
+    private Expectation write(File file, long size) throws IOException {
+        MessageDigest digest = md5();
+        byte[] chunk = new byte[(int) Math.min(size, 1 << 20)];
+        try (OutputStream out = Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                int length = (int) Math.min(chunk.length, size - written);
+                out.write(chunk, 0, length);
+                digest.update(chunk, 0, length);
+            }
+        }
+        return new Expectation(peerFiles(file), Collections.emptyList(), size, digest.digest(), System.nanoTime());
+    }
+
+    /**Дожидается, пока все ожидаемые состояния не появятся у удаленного пользователя, или таймаута
+     * @param name название нагрузки
+     * @param expectations ожидаемые состояния в порядке записи
+     * @return результат нагрузки
+     * @throws InterruptedException если ожидание было прервано
+     */
+    private Result await(String name, List<Expectation> expectations) throws InterruptedException {
+        long start = expectations.isEmpty() ? System.nanoTime() : expectations.get(0).writtenNanos;
+        long deadline = System.nanoTime() + timeoutNanos;
+        List<Expectation> pending = new LinkedList<>(expectations);
+        List<Long> latencies = new ArrayList<>();
+        long bytes = 0;
+        long last = start;
+        while (!pending.isEmpty() && System.nanoTime() < deadline) {
+            for (Iterator<Expectation> iterator = pending.iterator(); iterator.hasNext(); ) {
+                Expectation expectation = iterator.next();
+                long observed = System.nanoTime();
+                if (expectation.isMet()) {
+                    iterator.remove();
+                    latencies.add(observed - expectation.writtenNanos);
+                    if (expectation.absent.isEmpty()) {
+                        bytes += expectation.length;
+                    }
+                    last = Math.max(last, observed);
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(POLL_MS);
+        }
+        return new Result(name, latencies, pending.size(), bytes, last - start);
+    }
+
+    /** @return копии файла во всех удаленных директориях */
+    private List<File> peerFiles(File file) {
+        String relative = local.toPath().relativize(file.toPath()).toString();
+        List<File> copies = new ArrayList<>();
+        for (File peer : peers) {
+            copies.add(new File(peer, relative));
+        }
+        return copies;
+    }
+
+    private int intOption(String key, int defaultValue) {
+        return Integer.parseInt(options.getProperty(key, String.valueOf(defaultValue)));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hash(File file) throws IOException {
+        MessageDigest digest = md5();
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+            byte[] buffer = new byte[1 << 16];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) != -1) {
+                // read to the end
+            }
+        }
+        return digest.digest();
+    }
+
+    private static String toJson(Properties properties) {
+        StringBuilder json = new StringBuilder("{");
+        String separator = "";
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            json.append(separator).append('"').append(key).append("\":\"")
+                    .append(properties.getProperty(key).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            separator = ",";
+        }
+        return json.append('}').toString();
+    }
+
+    /** Ожидаемое состояние у удаленных пользователей после одной операции */
+    private static final class Expectation {
+        /** копии файла, которые должны появиться с указанным содержимым, пустой список для удаления */
+        private final List<File> present;
+        /** копии файла, которые должны исчезнуть, пустой список если таких нет */
+        private final List<File> absent;
+        private final long length;
+        private final byte[] hash;
+        /** время {@link System#nanoTime()} окончания локальной операции */
+        private final long writtenNanos;
+
+        private Expectation(List<File> present, List<File> absent, long length, byte[] hash, long writtenNanos) {
+            this.present = present;
+            this.absent = absent;
+            this.length = length;
+            this.hash = hash;
+            this.writtenNanos = writtenNanos;
+        }
+
+        /** @return true если все удаленные пользователи уже пришли к ожидаемому состоянию */
+        private boolean isMet() {
+            for (File copy : absent) {
+                if (copy.exists()) {
+                    return false;
+                }
+            }
+            for (File copy : present) {
+                if (copy.length() != length) {
+                    return false;
+                }
+                try {
+                    if (!Arrays.equals(hash, hash(copy))) {
+                        return false;
+                    }
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Результат одной нагрузки */
+    private static final class Result {
+        private final String name;
+        /** время от локальной операции до ее появления у удаленного пользователя, в наносекундах */
+        private final long[] latencies;
+        /** операции, не появившиеся у удаленного пользователя за время ожидания */
+        private final int timeouts;
+        /** объем переданного содержимого, переименования и удаления его не передают */
+        private final long bytes;
+        /** время от первой локальной операции до появления последней, в наносекундах */
+        private final long durationNanos;
+
+        private Result(String name, List<Long> latencies, int timeouts, long bytes, long durationNanos) {
+            this.name = name;
+            this.latencies = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            this.timeouts = timeouts;
+            this.bytes = bytes;
+            this.durationNanos = Math.max(1, durationNanos);
+        }
+
+        private double percentileMs(double fraction) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(fraction * latencies.length) - 1;
+            return latencies[Math.max(0, rank)] / 1e6;
+        }
+
+        private String toJson() {
+            double seconds = durationNanos / 1e9;
+            return String.format(Locale.ROOT, "{\"name\":\"%s\",\"operations\":%d,\"timeouts\":%d,\"bytes\":%d,"
+                            + "\"durationMs\":%.1f,\"mbPerSecond\":%.2f,\"filesPerSecond\":%.1f,"
+                            + "\"latencyMs\":{\"p50\":%.1f,\"p99\":%.1f,\"max\":%.1f}}",
+                    name, latencies.length, timeouts, bytes, durationNanos / 1e6, bytes / seconds / (1 << 20),
+                    latencies.length / seconds, percentileMs(0.5), percentileMs(0.99), percentileMs(1));
+        }
+    }
+}
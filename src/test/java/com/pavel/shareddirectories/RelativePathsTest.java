@@ -0,0 +1,113 @@
+package com.pavel.shareddirectories;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/** Проверка имен, полученных от удаленного пользователя: {@link RelativePaths#resolve(File, String)} - единственная
+ * защита файловой системы от имен в протоколе */
+public class RelativePathsTest {
+    private File root;
+    private File outside;
+
+    @Before
+    public void createDirectories() throws IOException {
+        root = Files.createTempDirectory("shared").toFile();
+        outside = Files.createTempDirectory("outside").toFile();
+    }
+
+    @After
+    public void deleteDirectories() throws IOException {
+        FileUtils.deleteDirectory(root);
+        FileUtils.deleteDirectory(outside);
+    }
+
+    @Test
+    public void resolvesNestedName() throws IOException {
+        assertEquals(new File(root, "a" + File.separator + "b.txt"), RelativePaths.resolve(root, "a/b.txt"));
+    }
+
+    @Test
+    public void resolvesNameThroughExistingDirectory() throws IOException {
+        assertEquals(true, new File(root, "a").mkdir());
+        assertEquals(new File(root, "a" + File.separator + "b.txt"), RelativePaths.resolve(root, "a/b.txt"));
+    }
+
+    @Test
+    public void resolvesServiceDirectoryNameBelowRoot() throws IOException {
+        assertEquals(new File(root, "a" + File.separator + ".index"), RelativePaths.resolve(root, "a/.index"));
+    }
+
+    @Test
+    public void resolvesNameStartingLikeServiceDirectory() throws IOException {
+        assertEquals(new File(root, ".indexes"), RelativePaths.resolve(root, ".indexes"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyName() throws IOException {
+        RelativePaths.resolve(root, "");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAbsoluteName() throws IOException {
+        RelativePaths.resolve(root, "/etc/passwd");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsParentSegment() throws IOException {
+        RelativePaths.resolve(root, "a/../../b");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCurrentSegment() throws IOException {
+        RelativePaths.resolve(root, "./a");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptySegment() throws IOException {
+        RelativePaths.resolve(root, "a//b");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsIndexDirectory() throws IOException {
+        RelativePaths.resolve(root, ".index");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileInIndexDirectory() throws IOException {
+        RelativePaths.resolve(root, ".index/journal");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileInDownloadDirectory() throws IOException {
+        RelativePaths.resolve(root, ".download/a.txt.1");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNameThroughLinkedDirectory() throws IOException {
+        Files.createSymbolicLink(new File(root, "link").toPath(), outside.toPath());
+        RelativePaths.resolve(root, "link/a.txt");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNameThroughNestedLinkedDirectory() throws IOException {
+        assertEquals(true, new File(root, "a").mkdir());
+        Files.createSymbolicLink(new File(root, "a" + File.separator + "link").toPath(), outside.toPath());
+        RelativePaths.resolve(root, "a/link/b/c.txt");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLinkedFile() throws IOException {
+        File target = new File(outside, "target.txt");
+        assertEquals(true, target.createNewFile());
+        Files.createSymbolicLink(new File(root, "link.txt").toPath(), target.toPath());
+        RelativePaths.resolve(root, "link.txt");
+    }
+}